@@ -0,0 +1,22 @@
+package multiplayerserver;
+
+/**
+ * What the server does when a client's outbound queue goes over its budget (the client reads slower than the server sends).
+ * In every policy UDP packets to an over-budget client are dropped, since they would only add to the congestion.
+ * Reliable (TCP) packets are never dropped, so a client that stays over twice its budget is always disconnected.
+ * That keeps the memory used per client bounded.
+ * <p>
+ * Packet types that only need their newest state can be made coalesced with PacketOptions.coalesce(),
+ * then a newer packet replaces the queued one with the same key, whatever the policy is.
+ */
+public enum BackpressurePolicy {
+	/**
+	 * Drop unreliable packets while over budget, keep queueing reliable packets.
+	 */
+	DROP_UNRELIABLE,
+	
+	/**
+	 * Disconnect the client as soon as it goes over budget.
+	 */
+	DISCONNECT;
+}
@@ -0,0 +1,61 @@
+package multiplayerserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Several frames that are queued and written as one, for example the retained packets for a client that joined.
+ * On the wire they are normal frames one after another, so the receiver doesn't need to know about batches.
+ * Batches are only written to TCP.
+ */
+class BatchFrame extends TCPFrame {
+	private final List<OutboundFrame> frames;
+	private final int size;
+	
+	BatchFrame(List<OutboundFrame> frames) {
+		this.frames = frames;
+		
+		int total = 0;
+		for (OutboundFrame frame : frames) {
+			total += frame.size() + Constants.PACKET_LENGTH_PREFIX_BYTES * 2;
+		}
+		this.size = total;
+	}
+	
+	List<OutboundFrame> getFrames() {
+		return frames;
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public void writeTCP(OutputStream out, SocketChannel channel) throws IOException {
+		for (OutboundFrame frame : frames) {
+			frame.writeTCP(out, channel);
+		}
+	}
+	
+	@Override
+	void writeTCP(OutputStream out, SocketChannel channel, Compression compression) throws IOException {
+		for (OutboundFrame frame : frames) {
+			frame.writeTCP(out, channel, compression);
+		}
+	}
+	
+	@Override
+	public void writeTCP(OutputStream out) throws IOException {
+		for (OutboundFrame frame : frames) {
+			frame.writeTCP(out);
+		}
+	}
+	
+	@Override
+	public void written() {
+		frames.forEach(OutboundFrame::written);
+	}
+}
@@ -0,0 +1,103 @@
+package multiplayerserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Input and output streams that read and write the socket's channel directly.
+ * TCP sockets are opened through SocketChannel so files can be sent with FileChannel.transferTo().
+ * The streams of a channel's socket (and Channels.newInputStream()) share one lock between reading and writing on older Java versions,
+ * so a thread waiting for data would block every write. SocketChannel itself has separate locks for reading and writing.
+ * <p>
+ * The streams are not buffered, so after reading a header the rest of the frame can be read straight from the channel.
+ * A closed channel is reported as a SocketException, like with normal sockets.
+ */
+class ChannelStreams {
+	private ChannelStreams() {}
+	
+	static InputStream inputOf(Socket socket) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		if (channel == null) {
+			return socket.getInputStream();
+		}
+		
+		return new InputStream() {
+			private final byte[] single = new byte[1];
+			private ByteBuffer wrapped; //Reused while reads go to the same array, like a receive buffer.
+			
+			@Override
+			public int read() throws IOException {
+				int n = read(single, 0, 1);
+				return n == -1 ? -1 : single[0] & 0xFF;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				
+				ByteBuffer buffer = wrapped;
+				if (buffer == null || buffer.array() != b) {
+					buffer = ByteBuffer.wrap(b);
+					wrapped = buffer;
+				}
+				buffer.limit(off + len).position(off);
+				
+				try {
+					return channel.read(buffer);
+				} catch (ClosedChannelException e) {
+					throw closed(e);
+				}
+			}
+			
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+	
+	static OutputStream outputOf(Socket socket) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		if (channel == null) {
+			return socket.getOutputStream();
+		}
+		
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+				try {
+					while (buf.hasRemaining()) {
+						channel.write(buf);
+					}
+				} catch (ClosedChannelException e) {
+					throw closed(e);
+				}
+			}
+			
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+	
+	private static SocketException closed(ClosedChannelException cause) {
+		SocketException e = new SocketException("Socket closed");
+		e.initCause(cause);
+		return e;
+	}
+}
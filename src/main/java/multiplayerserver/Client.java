@@ -1,6 +1,7 @@
 package multiplayerserver;
 
 import com.google.gson.JsonSyntaxException;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
@@ -10,26 +11,99 @@ import java.net.BindException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import multiplayerserver.packets.DataPacket;
+import multiplayerserver.packets.FileChunkPacket;
+import multiplayerserver.packets.HeartbeatPacket;
+import multiplayerserver.packets.MultiplexPacket;
 import multiplayerserver.packets.Packet;
+import multiplayerserver.packets.PacketOptions;
 import multiplayerserver.packets.PacketRegistry;
 import multiplayerserver.packets.SendUuid;
+import multiplayerserver.packets.SessionInfo;
+import multiplayerserver.packets.SessionRoster;
+import multiplayerserver.packets.StreamChunkPacket;
+import multiplayerserver.packets.VirtualClientPacket;
 
 public class Client implements HasUUID {
 	private final InetAddress serverIP;
 	private final int serverPort;
-	private Socket tcpSocket;
+	private volatile Socket tcpSocket; //Replaced when the session is resumed on a new connection.
 	private DatagramSocket udpSocket;
+	private volatile LoopbackChannel loopback; //To a server in the same JVM, null when connected over the network.
+	private InetAddress multicastGroup; //Null if the client doesn't listen to multicast.
+	private int multicastPort;
+	private NetworkInterface multicastInterface;
+	private MulticastSocket multicastSocket; //Null if not joined.
 	private final UUID uuid;
 	
 	private final PacketRegistry packetRegistry;
 	
 	private boolean running = false;
 	
+	private ScheduledExecutorService timer; //Sends heartbeats and checks if the server has gone silent.
+	private long heartbeatInterval = Constants.DEFAULT_HEARTBEAT_INTERVAL_MS;
+	private long serverTimeout = Constants.DEFAULT_TIMEOUT_MS;
+	private volatile long lastReceivedTime;
+	private volatile LossEstimator udpLoss = new LossEstimator(); //From the server's UDP heartbeats.
+	private int udpHeartbeatSequence = 0; //Only used by the timer thread.
+	private volatile double autoMaxUdpLoss = Constants.DEFAULT_AUTO_MAX_UDP_LOSS;
+	private volatile PayloadCodec[] codecs = {new DeflateCodec()}; //Server can compress frames with these, sent in SendUuid.
+	
+	private OutputStream tcpOutput; //Buffered, guarded by tcpLock so sync and async sends don't interleave.
+	private final Object tcpLock = new Object();
+	
+	private volatile String resumeToken; //Received from the server in SessionInfo.
+	private volatile int sessionId = 0; //Received from the server in SessionInfo, sent in packets instead of the UUID.
+	private volatile UUID[] roster = new UUID[0]; //UUIDs of the clients by session ID. Replaced, not changed, when clients join or leave.
+	private boolean autoResume = false;
+	private long resumeWindow = Constants.DEFAULT_RESUME_WINDOW_MS;
+	private volatile long resumeDeadline = 0; //Set when the connection drops, cleared when the server confirms the session.
+	private long resumeBackoff = 0;
+	private volatile long receivedFrames = 0; //TCP frames received in this session, acknowledged in heartbeats and sent when resuming.
+	private long connectionStart = 0; //receivedFrames when the current connection started, only used by the TCP listener thread.
+	private final List<PendingSend> pendingSends = new ArrayList<>(); //Async sends waiting for the writer thread, guarded by itself.
+	private boolean flushRequested = false;
+	private boolean autoFlush = true;
+	
+	private final List<PendingSend> pendingImmediate = new ArrayList<>(); //Streams and heartbeats, guarded by pendingSends. These don't wait for flush().
+	private final PriorityQueue<OutboundStream> activeStreams = new PriorityQueue<>(OutboundStream::compare); //Guarded by pendingSends.
+	private long streamSequence = 0;
+	private final AtomicInteger nextStreamId = new AtomicInteger(0);
+	private final InboundStreams inboundStreams = new InboundStreams();
+	private final InboundFiles inboundFiles = new InboundFiles();
+	private int streamThreshold = Constants.DEFAULT_STREAM_THRESHOLD_BYTES;
+	private int streamChunkSize = Constants.DEFAULT_STREAM_CHUNK_BYTES;
+	private int maxFrameBytes = Constants.DEFAULT_MAX_FRAME_BYTES;
+	
+	private static final int RECEIVE_BUFFER_BYTES = 64 * 1024; //Larger TCP frames get their own array.
+	private static final byte[] NO_DATA = new byte[0];
+	
+	private volatile boolean inboxMode = false;
+	private final ConcurrentLinkedQueue<Packet> inbox = new ConcurrentLinkedQueue<>(); //Lock-free, listener threads add and the game thread drains.
+	
+	private final Map<UUID, VirtualClient> virtualClients = new ConcurrentHashMap<>(); //Players that share this connection.
+	
 	public Client(InetAddress serverIP, int serverPort, PacketRegistry registry) {
 		this(serverIP, serverPort, UUID.randomUUID(), registry);
 	}
@@ -45,18 +119,39 @@ public class Client implements HasUUID {
 	public void connect() throws IOException { //TODO: Make it possible to choose the protocol
 		try {
 			running = true;
+			sessionId = 0;
+			receivedFrames = 0;
+			roster = new UUID[0];
+			udpLoss = new LossEstimator();
+			udpHeartbeatSequence = 0;
+			loopback = null;
 			
-			tcpSocket = new Socket(serverIP, serverPort);
+			tcpSocket = SocketChannel.open(new InetSocketAddress(serverIP, serverPort)).socket(); //Opened through a channel, so files can be received straight to disk.
 			tcpSocket.setKeepAlive(true);
+			tcpOutput = new BufferedOutputStream(ChannelStreams.outputOf(tcpSocket));
 			
 			udpSocket = new DatagramSocket();
 			udpSocket.connect(serverIP, serverPort);
+			joinMulticast();
 			printMessage("Client connected!");
 			
+			lastReceivedTime = System.currentTimeMillis();
+			
 			new Thread(this::listenTCP).start();
 			new Thread(this::listenUDP).start();
 			
-			sendPacket(new SendUuid(uuid, udpSocket.getLocalPort()), Protocol.TCP); //Sending UUID and udpPort to the server.
+			Thread writer = new Thread(this::writeLoop, "Client-writer");
+			writer.setDaemon(true);
+			writer.start();
+			
+			sendPacket(createSendUuid(null), Protocol.TCP); //Sending UUID and udpPort to the server.
+			
+			timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "Client-timer");
+				t.setDaemon(true);
+				return t;
+			});
+			timer.scheduleAtFixedRate(this::heartbeatTick, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
 		} catch (BindException e) {
 			printMessage("TCP port already in use");
 			throw e;
@@ -69,48 +164,260 @@ public class Client implements HasUUID {
 		}
 	}
 	
+	/**
+	 * Connects to a server in the same JVM, for example the host player's client in a listen server.
+	 * No sockets are opened, and packets are passed to the server as objects without serializing them,
+	 * so sending costs about as much as adding to a queue. Handlers and targets work like with connect().
+	 * <p>
+	 * Received packets can be the same objects the server and other clients got, so don't modify them,
+	 * and don't modify a packet after sending it. Heartbeats, compression and files aren't used.
+	 * Only one client per server can connect this way, other clients in the same JVM should use connect().
+	 * @param server Started server.
+	 * @throws IOException If the server isn't running, or already has a loopback client.
+	 */
+	public void connect(Server server) throws IOException {
+		running = true;
+		sessionId = 0;
+		roster = new UUID[0];
+		lastReceivedTime = System.currentTimeMillis();
+		
+		loopback = server.attachLoopback(this, new SendUuid(uuid, -1));
+		printMessage("Client connected to the local server!");
+	}
+	
+	/**
+	 * Called on the loopback thread with what the server sent.
+	 * @param packetOrFrame Packet object, or a frame the server had already serialized.
+	 */
+	void receiveLoopback(Object packetOrFrame) {
+		lastReceivedTime = System.currentTimeMillis();
+		
+		if (packetOrFrame instanceof Packet) {
+			handlePacket((Packet) packetOrFrame);
+		} else if (packetOrFrame instanceof BatchFrame) {
+			for (OutboundFrame frame : ((BatchFrame) packetOrFrame).getFrames()) {
+				receiveLoopback(frame);
+			}
+		} else if (packetOrFrame instanceof OutboundFrame) {
+			OutboundFrame frame = (OutboundFrame) packetOrFrame;
+			handleFrame(frame.getJsonBytes(), frame.getRawBytes() != null ? frame.getRawBytes() : new byte[0]);
+		}
+	}
+	
+	/**
+	 * Called when the server closes the loopback connection, for example when it stops.
+	 */
+	void loopbackClosed() {
+		if (running) {
+			printMessage("Local server closed the connection.");
+			stop();
+		}
+	}
+	
 	private void listenTCP() {
 		printMessage("Listening TCP!");
 		
-		try (InputStream in = tcpSocket.getInputStream();
+		while (readTCP()) { //Connection was lost.
+			inboundFiles.closeAll();
+			inboundStreams.clear(); //Unfinished streams can't continue on a new connection.
+			
+			if (!resumeSession()) {
+				break;
+			}
+		}
+		
+		closeQuietly(tcpSocket); //In case stop() was called while reconnecting.
+		inboundFiles.closeAll();
+	}
+	
+	/**
+	 * Reads packets from the current TCP connection until it ends.
+	 * @return True if the connection was lost while the client was still running.
+	 */
+	private boolean readTCP() {
+		try (InputStream in = ChannelStreams.inputOf(tcpSocket);
 				DataInputStream dataInput = new DataInputStream(in)) {
 			
+			byte[] buffer = new byte[RECEIVE_BUFFER_BYTES]; //Frames are read into the same buffer, and parsed from it.
+			connectionStart = receivedFrames;
+			
 			while (running) {
-				dataInput.readInt(); //Total length not needed in the client
-				int jsonLength = dataInput.readInt();
-				byte[] jsonBytes = new byte[jsonLength];
-				dataInput.readFully(jsonBytes);
-				
-				String json = new String(jsonBytes);
+				dataInput.readFully(buffer, 0, 2 * Integer.BYTES); //Header in one read instead of one per byte.
+				int totalLength = readInt(buffer, 0);
+				int jsonLength = readInt(buffer, Integer.BYTES);
+				if (!FrameLimits.isValidTCP(totalLength, jsonLength, maxFrameBytes, true)) { //Stream can't be trusted after a bad header.
+					throw new IOException("Server sent an invalid or too large frame: " + totalLength + " bytes");
+				}
 				
-				try {
-					Packet packet = packetRegistry.parsePacket(json);
-					
-					if (packet instanceof DataPacket) { //Manually read and set the raw data if packet is DataPacket
-						DataPacket dataPacket = (DataPacket) packet;
-						byte[] rawBytes = new byte[dataPacket.dataLength];
-						dataInput.readFully(rawBytes);
-						
-						dataPacket.setData(rawBytes);
-					}
+				if (Compression.isCompressed(jsonLength)) {
+					byte[] body = new byte[totalLength];
+					dataInput.readFully(body);
+					lastReceivedTime = System.currentTimeMillis();
 					
-					packetRegistry.callHandler(packet);
-				} catch (JsonSyntaxException e) {
-					e.printStackTrace(System.err);
+					byte[][] frame = Compression.decompress(codecs, jsonLength, ByteBuffer.wrap(body), maxFrameBytes); //Corrupted frame ends the connection, the stream can't be trusted after it.
+					handleFrame(frame[0], frame[1]);
+					receivedFrames++;
+					continue;
 				}
+				
+				byte[] frame = totalLength <= buffer.length ? buffer : new byte[totalLength];
+				dataInput.readFully(frame, 0, jsonLength);
+				
+				lastReceivedTime = System.currentTimeMillis();
+				
+				if (InboundFiles.isFileChunk(frame, jsonLength)) { //File region is read straight from the socket to the file.
+					receiveFileChunk(frame, jsonLength, in);
+					receivedFrames++;
+					continue;
+				}
+				
+				dataInput.readFully(frame, jsonLength, totalLength - jsonLength); //Raw data, might be empty
+				
+				handleFrame(frame, 0, jsonLength, totalLength - jsonLength, false);
+				receivedFrames++; //After handling, a frame that was cut off by the drop is written again when resuming.
 			}
 		} catch (EOFException e) {
-			printMessage("Server closed connection TCP. Stopping listener.");
-			stop(); //Stopping whole client if the connection ended.
+			printMessage("Server closed connection TCP.");
+			return running;
         } catch (SocketException e) {
-			printMessage("Connection closed TCP. Stopping listener.");
+			printMessage("Connection closed TCP.");
+			return running;
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+			return running;
+		}
+		return false;
+	}
+	
+	/**
+	 * Reconnects to the server and resumes the session, retrying until resumeWindow has passed.
+	 * Stops the whole client if auto resume is off or the server couldn't be reached.
+	 * @return True if reconnected.
+	 */
+	private boolean resumeSession() {
+		if (!autoResume || resumeToken == null) {
+			printMessage("Stopping listener.");
+			stop(); //Stopping whole client if the connection ended.
+			return false;
+		}
+		
+		if (resumeDeadline == 0) {
+			resumeDeadline = System.currentTimeMillis() + resumeWindow;
+			resumeBackoff = 0;
+		}
+		
+		while (running && System.currentTimeMillis() < resumeDeadline) { //Deadline is kept until SessionInfo arrives, in case the new connection drops right away too.
+			try {
+				Thread.sleep(resumeBackoff);
+			} catch (InterruptedException e) {
+				break;
+			}
+			resumeBackoff = Math.min(Math.max(resumeBackoff * 2, 100), 2000);
+			
+			try {
+				reconnectTCP();
+				return true;
+			} catch (IOException e) {
+				printMessage("Couldn't reconnect: " + e.getMessage());
+			}
+		}
+		
+		if (running) {
+			printMessage("Couldn't resume session. Stopping listener.");
+			stop();
+		}
+		return false;
+	}
+	
+	/**
+	 * Opens a new TCP connection and sends SendUuid with the resume token and how many frames were received.
+	 * Server attaches the connection to the old session and writes the frames after those again, then the ones it buffered meanwhile.
+	 * @throws IOException 
+	 */
+	private void reconnectTCP() throws IOException {
+		Socket socket = SocketChannel.open(new InetSocketAddress(serverIP, serverPort)).socket();
+		socket.setKeepAlive(true);
+		lastReceivedTime = System.currentTimeMillis(); //Before the swap, so the timer doesn't time out the new connection.
+		
+		synchronized (tcpLock) {
+			if (!running) {
+				closeQuietly(socket);
+				throw new SocketException("Client stopped");
+			}
+			closeQuietly(tcpSocket);
+			tcpSocket = socket;
+			tcpOutput = new BufferedOutputStream(ChannelStreams.outputOf(socket));
+		}
+		
+		SendUuid hello = createSendUuid(resumeToken);
+		hello.receivedFrames = receivedFrames;
+		writeTCP(List.of(encode(hello, Protocol.TCP)));
+		printMessage("Reconnected, resuming session.");
+	}
+	
+	private void receiveFileChunk(byte[] buf, int jsonLength, InputStream in) throws IOException {
+		FileChunkPacket chunk;
+		try {
+			chunk = (FileChunkPacket) packetRegistry.parsePacket(buf, 0, jsonLength);
+		} catch (JsonSyntaxException e) {
+			throw new IOException("Malformed file chunk, can't continue reading the stream", e);
+		}
+		
+		inboundFiles.receive(chunk, tcpSocket.getChannel(), in);
+	}
+	
+	/**
+	 * Joins the multicast group if one is set. If joining fails the client still works, the server just sends it its own copies.
+	 */
+	private void joinMulticast() {
+		multicastSocket = null;
+		if (multicastGroup == null) {
+			return;
+		}
+		
+		try {
+			MulticastSocket socket = new MulticastSocket(multicastPort); //Reuses the address, so many clients on one machine can listen.
+			socket.joinGroup(new InetSocketAddress(multicastGroup, 0), multicastInterface);
+			multicastSocket = socket;
+			new Thread(() -> listenMulticast(socket)).start();
+		} catch (IOException e) {
+			printMessage("Couldn't join multicast group: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Receives the UDP packets the server sends to everyone through the multicast group.
+	 * The group also has this client's own packets, those are skipped.
+	 * @param socket 
+	 */
+	private void listenMulticast(MulticastSocket socket) {
+		byte[] data = new byte[Constants.MAX_UDP_PACKET_BYTES];
+		DatagramPacket udpPacket = new DatagramPacket(data, data.length);
+		
+		try {
+			while (running) {
+				socket.receive(udpPacket);
+				if (!serverIP.equals(udpPacket.getAddress())) { //Someone else sending to the group.
+					continue;
+				}
+				
+				int length = udpPacket.getLength();
+				if (length < Integer.BYTES || !FrameLimits.isValidUDP(readInt(data, 0), length - Integer.BYTES)) {
+					continue; //Group frames are never compressed.
+				}
+				
+				int jsonLength = readInt(data, 0);
+				handleFrame(data, Integer.BYTES, jsonLength, length - Integer.BYTES - jsonLength, true);
+			}
+		} catch (SocketException e) {
+			printMessage("Multicast socket closed.");
 		} catch (IOException e) {
 			e.printStackTrace(System.err);
 		}
 	}
 	
 	private void listenUDP() {
-		byte[] data = new byte[1024];
+		byte[] data = new byte[Constants.MAX_UDP_PACKET_BYTES];
 		DatagramPacket udpPacket = new DatagramPacket(data, data.length);
 		
 		printMessage("Listening UDP!");
@@ -119,29 +426,8 @@ public class Client implements HasUUID {
 			while (running) {
 				udpSocket.receive(udpPacket);
 				
-				ByteBuffer buf = ByteBuffer.wrap(udpPacket.getData(), 0, udpPacket.getLength());
-				int jsonLength = buf.getInt();
-				
-				byte[] jsonBytes = new byte[jsonLength];
-				buf.get(jsonBytes);
-				
-				String json = new String(jsonBytes);
-				
-				try {
-					Packet packet = packetRegistry.parsePacket(json);
-					
-					if (packet instanceof DataPacket) { //Manually read and set the raw data if packet is DataPacket
-						DataPacket dataPacket = (DataPacket) packet;
-						byte[] rawBytes = new byte[dataPacket.dataLength];
-						buf.get(rawBytes);
-						
-						dataPacket.setData(rawBytes);
-					}
-					
-					packetRegistry.callHandler(packet);
-				} catch (JsonSyntaxException e) {
-					e.printStackTrace(System.err);
-				}
+				lastReceivedTime = System.currentTimeMillis();
+				handleFrame(data, 0, udpPacket.getLength());
 			}
 		} catch (SocketException e) {
 			printMessage("Connection closed UDP. Stopping listener.");
@@ -150,41 +436,412 @@ public class Client implements HasUUID {
 		}
 	}
 	
-	public void sendPacket(Packet packet, Protocol protocol) {
-		if (protocol == Protocol.TCP) {
-			sendTCP(packet);
-		} else if (protocol == Protocol.UDP) {
-			sendUDP(packet);
+	private static int readInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16) | ((buf[offset + 2] & 0xFF) << 8) | (buf[offset + 3] & 0xFF);
+	}
+	
+	/**
+	 * Handles a frame in UDP format: [4 bytes json length][json bytes][raw data bytes]
+	 * @param buf 
+	 */
+	private void handleFrame(ByteBuffer buf) {
+		handleFrame(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+	}
+	
+	/**
+	 * Same as handleFrame(ByteBuffer), for a frame in a receive buffer.
+	 * @param buf
+	 * @param offset
+	 * @param length 
+	 */
+	private void handleFrame(byte[] buf, int offset, int length) {
+		if (length < Integer.BYTES) {
+			return;
 		}
+		int jsonLength = readInt(buf, offset);
+		
+		if (Compression.isCompressed(jsonLength)) {
+			try {
+				byte[][] frame = Compression.decompress(codecs, jsonLength, ByteBuffer.wrap(buf, offset + Integer.BYTES, length - Integer.BYTES), maxFrameBytes);
+				handleFrame(frame[0], frame[1]);
+			} catch (IOException e) { //Just this datagram is lost.
+				e.printStackTrace(System.err);
+			}
+			return;
+		}
+		if (!FrameLimits.isValidUDP(jsonLength, length - Integer.BYTES)) { //Corrupted, just this frame is lost.
+			printMessage("Dropped an invalid frame.");
+			return;
+		}
+		
+		handleFrame(buf, offset + Integer.BYTES, jsonLength, length - Integer.BYTES - jsonLength, false);
 	}
 	
-	private void sendTCP(Packet packet) {
+	private void handleFrame(byte[] jsonBytes, byte[] rawBytes) {
+		handleFrame(jsonBytes, rawBytes, false);
+	}
+	
+	/**
+	 * @param jsonBytes
+	 * @param rawBytes
+	 * @param fromGroup True if the frame came from the multicast group, which also has this client's own packets.
+	 */
+	private void handleFrame(byte[] jsonBytes, byte[] rawBytes, boolean fromGroup) {
 		try {
-			if (packet.senderUuid == null) { //Client can ignore uuid, it will be set here.
-				packet.senderUuid = getUuid();
+			Packet packet = parse(jsonBytes, 0, jsonBytes.length);
+			if (fromGroup && isOwnPacket(packet)) {
+				return;
 			}
-			packet.protocol = Protocol.TCP; //Also set protocol before sending.
 			
-			OutputStream out = tcpSocket.getOutputStream();
+			if (packet instanceof DataPacket) { //Set the raw data if packet is DataPacket
+				DataPacket dataPacket = (DataPacket) packet;
+				dataPacket.setData(rawBytes);
+			}
 			
-			String json = packetRegistry.serialize(packet);
-			byte[] jsonBytes = json.getBytes();
-			byte[] rawBytes = null;
+			handlePacket(packet);
+		} catch (JsonSyntaxException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
+	/**
+	 * Same as handleFrame(jsonBytes, rawBytes, fromGroup), for a frame in a receive buffer that is reused.
+	 * Raw data is copied only for a DataPacket, other packets don't need it.
+	 * @param buf
+	 * @param offset Start of the json bytes, the raw data is right after them.
+	 * @param jsonLength
+	 * @param rawLength
+	 * @param fromGroup 
+	 */
+	private void handleFrame(byte[] buf, int offset, int jsonLength, int rawLength, boolean fromGroup) {
+		try {
+			Packet packet = parse(buf, offset, jsonLength);
+			if (fromGroup && isOwnPacket(packet)) {
+				return;
+			}
 			
 			if (packet instanceof DataPacket) {
-				DataPacket dataPacket = (DataPacket) packet;
-				rawBytes = dataPacket.getData();
+				byte[] rawBytes = rawLength == 0 ? NO_DATA : Arrays.copyOfRange(buf, offset + jsonLength, offset + jsonLength + rawLength);
+				((DataPacket) packet).setData(rawBytes);
 			}
 			
-			int totalLength = jsonBytes.length + (rawBytes != null ? rawBytes.length : 0);
+			handlePacket(packet);
+		} catch (JsonSyntaxException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
+	/**
+	 * Types registered with PacketOptions.reusable() are read into a reused packet, except in inbox mode,
+	 * where packets wait in the inbox.
+	 */
+	private Packet parse(byte[] buf, int offset, int jsonLength) {
+		if (inboxMode) {
+			return packetRegistry.parsePacket(buf, offset, jsonLength);
+		}
+		return packetRegistry.parseReusable(buf, offset, jsonLength);
+	}
+	
+	/**
+	 * @param packet Can be null.
+	 * @return True if this client sent the packet, the multicast group has them too.
+	 */
+	private boolean isOwnPacket(Packet packet) {
+		return packet != null && ((sessionId != 0 && packet.senderId == sessionId) || uuid.equals(packet.senderUuid));
+	}
+	
+	/**
+	 * Handles a received packet, parsed or from the loopback connection.
+	 * @param packet Can be null.
+	 */
+	private void handlePacket(Packet packet) {
+		if (packet != null && packet.senderUuid == null && packet.senderId != 0) { //Sent with the session ID only.
+			packet.senderUuid = getUuid(packet.senderId);
+		}
+		
+		if (packet instanceof HeartbeatPacket) { //Heartbeat only tells that the server is alive.
+			if (((HeartbeatPacket) packet).sequence > 0) {
+				udpLoss.received(((HeartbeatPacket) packet).sequence);
+			}
+			return;
+		}
+		
+		if (packet instanceof SessionInfo) {
+			SessionInfo info = (SessionInfo) packet;
+			resumeToken = info.resumeToken;
+			sessionId = info.sessionId;
+			if (info.targetTypes != null) { //Targets are sent with the server's IDs from now on.
+				packetRegistry.getTargetTypes().set(info.targetTypes);
+			}
+			resumeDeadline = 0;
+			if (info.resumed) {
+				printMessage("Session resumed.");
+			} else if (loopback == null) { //New session, the server numbers the frames from the start of this connection.
+				if (connectionStart > 0) {
+					printMessage("Couldn't resume the session, the server started a new one.");
+				}
+				receivedFrames -= connectionStart;
+				connectionStart = 0;
+			}
+			return;
+		}
+		
+		if (packet instanceof SessionRoster) {
+			updateRoster((SessionRoster) packet);
+			return;
+		}
+		
+		if (packet instanceof StreamChunkPacket) { //Part of a large packet, handle the packet when all chunks have arrived.
+			byte[] streamBytes = inboundStreams.accept((StreamChunkPacket) packet);
+			if (streamBytes != null) {
+				handleFrame(ByteBuffer.wrap(streamBytes));
+			}
+			return;
+		}
+		
+		if (packet instanceof MultiplexPacket) {
+			handleMultiplex((MultiplexPacket) packet);
+			return;
+		}
+		
+		if (packet instanceof VirtualClientPacket) { //Server removed a virtual client.
+			VirtualClientPacket p = (VirtualClientPacket) packet;
+			VirtualClient client = p.removed && p.uuid != null ? virtualClients.remove(p.uuid) : null;
+			if (client != null) {
+				client.markRemoved();
+				printMessage("Server removed virtual client: " + p.uuid);
+			}
+			return;
+		}
+		
+		dispatch(packet);
+	}
+	
+	/**
+	 * Passes the frames the server sent for virtual clients to each of them.
+	 * A frame is parsed once per registry the recipients use, not once per recipient.
+	 * @param envelope 
+	 */
+	private void handleMultiplex(MultiplexPacket envelope) {
+		if (envelope.sessionIds == null || envelope.getData() == null) {
+			return;
+		}
+		
+		List<VirtualClient> recipients = new ArrayList<>(envelope.sessionIds.length);
+		for (int id : envelope.sessionIds) {
+			UUID recipient = getUuid(id); //Roster has the virtual clients too, the server sends it before their first packet.
+			VirtualClient client = recipient != null ? virtualClients.get(recipient) : null;
+			if (client != null) {
+				recipients.add(client);
+			}
+		}
+		if (recipients.isEmpty()) {
+			return;
+		}
+		
+		ByteBuffer buf = ByteBuffer.wrap(envelope.getData());
+		while (buf.remaining() >= Integer.BYTES * 2) {
+			int totalLength = buf.getInt();
+			int jsonLength = buf.getInt();
+			if (!FrameLimits.isValidTCP(totalLength, jsonLength, buf.remaining(), false)) {
+				printMessage("Dropped an invalid frame for virtual clients.");
+				return;
+			}
+			
+			byte[] jsonBytes = new byte[jsonLength];
+			buf.get(jsonBytes);
+			byte[] rawBytes = new byte[totalLength - jsonLength]; //Might be empty
+			buf.get(rawBytes);
+			
+			Map<PacketRegistry, Packet> parsed = new IdentityHashMap<>();
+			for (VirtualClient client : recipients) {
+				Packet packet = parsed.computeIfAbsent(client.getPacketRegistry(), registry -> client.parse(jsonBytes, rawBytes));
+				client.handlePacket(packet);
+			}
+		}
+	}
+	
+	/**
+	 * Adds a player that shares this client's connection, for example a player behind a matchmaking gateway or a bot.
+	 * The server adds it to its clients list like a client that connected, but it costs no sockets or threads,
+	 * so one connection can carry hundreds of them. Call after connect().
+	 * <p>
+	 * This client itself stays a normal client on the server too. Rate limits of the server apply to the whole connection.
+	 * Files can't be sent to virtual clients.
+	 * @param uuid Needs to be unique on the server, otherwise the server removes the virtual client right away.
+	 * @param registry Handlers of the virtual client, usually its own registry.
+	 * @return The virtual client. It can send right away, the packets go after the server has added it.
+	 */
+	public VirtualClient addVirtualClient(UUID uuid, PacketRegistry registry) {
+		if (!running) {
+			throw new IllegalStateException("Client is not connected");
+		}
+		
+		VirtualClient client = new VirtualClient(this, uuid, registry);
+		virtualClients.put(uuid, client);
+		sendPacket(new VirtualClientPacket(uuid, false), Protocol.TCP);
+		return client;
+	}
+	
+	/**
+	 * Called from VirtualClient.remove().
+	 * @param client 
+	 */
+	void removeVirtualClient(VirtualClient client) {
+		if (virtualClients.remove(client.getUuid(), client)) {
+			client.markRemoved();
+			if (running) {
+				sendPacket(new VirtualClientPacket(client.getUuid(), true), Protocol.TCP);
+			}
+		}
+	}
+	
+	/**
+	 * @return Virtual clients that share this connection.
+	 */
+	public List<VirtualClient> getVirtualClients() {
+		return new ArrayList<>(virtualClients.values());
+	}
+	
+	/**
+	 * Only called on the TCP listener thread, the other threads just read the roster.
+	 * @param update 
+	 */
+	private void updateRoster(SessionRoster update) {
+		UUID[] next = update.full ? new UUID[0] : roster;
+		
+		int length = next.length;
+		for (int id : update.sessionIds) {
+			length = Math.max(length, id + 1);
+		}
+		next = Arrays.copyOf(next, length);
+		
+		for (int i = 0; i < update.sessionIds.length; i++) {
+			next[update.sessionIds[i]] = update.uuids[i];
+		}
+		roster = next;
+	}
+	
+	/**
+	 * Calls the handler right away on the listener thread, or in inbox mode, adds the packet to the inbox.
+	 * @param packet 
+	 */
+	private void dispatch(Packet packet) {
+		if (packet == null) return;
+		
+		if (inboxMode) {
+			inbox.add(packet);
+		} else {
+			packetRegistry.callHandler(packet);
+		}
+	}
+	
+	/**
+	 * In inbox mode received packets are not handled on the TCP and UDP listener threads.
+	 * Instead they are queued, and the handlers are called on your own thread when you call drain().
+	 * Then handlers don't need any synchronization with the game loop, and TCP and UDP handlers never run at the same time.
+	 * <p>
+	 * Usage:
+	 * <pre>{@code
+	 * client.setInboxMode(true);
+	 * client.connect();
+	 * //In the game loop, once per frame:
+	 * client.drain(100);
+	 * }</pre>
+	 * Set this before connect(). If it's turned off later, call drain() once more to handle what's still in the inbox.
+	 * @param inboxMode 
+	 */
+	public void setInboxMode(boolean inboxMode) {
+		this.inboxMode = inboxMode;
+	}
+	
+	/**
+	 * Calls the handlers for packets in the inbox on the calling thread, in the order they were received.
+	 * Only used in inbox mode.
+	 * @param maxPackets Maximum number of packets handled in this call, so one frame can't take too long.
+	 * @return Number of packets handled.
+	 */
+	public int drain(int maxPackets) {
+		int count = 0;
+		Packet packet;
+		
+		while (count < maxPackets && (packet = inbox.poll()) != null) {
+			packetRegistry.callHandler(packet);
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * @return Number of packets waiting in the inbox.
+	 */
+	public int getInboxSize() {
+		return inbox.size();
+	}
+	
+	public void sendPacket(Packet packet, Protocol protocol) {
+		if (loopback != null) {
+			sendLoopback(packet, protocol);
+		} else if (protocol == Protocol.TCP) {
+			sendTCP(packet);
+		} else if (protocol == Protocol.UDP) {
+			sendUDP(packet);
+		} else if (protocol == Protocol.AUTO) {
+			OutboundFrame frame = encodeAuto(packet);
+			if (frame != null) {
+				try {
+					writeUDP(frame);
+				} catch (IOException e) {
+					e.printStackTrace(System.err);
+				}
+			} else {
+				sendTCP(packet);
+			}
+		}
+	}
+	
+	/**
+	 * Encodes the packet for UDP if Protocol.AUTO should send it over UDP. Only unreliable packet types are,
+	 * when they fit in a datagram and the server's UDP heartbeats get through with low enough loss.
+	 * @param packet
+	 * @return The UDP frame, or null if the packet should go over TCP.
+	 */
+	private OutboundFrame encodeAuto(Packet packet) {
+		PacketOptions<?> options = packetRegistry.getOptions(packet.getClass());
+		if (options == null || !options.isUnreliable() || !udpLoss.hasReceived() || udpLoss.getLoss() > autoMaxUdpLoss) {
+			return null;
+		}
+		
+		OutboundFrame frame = encode(packet, Protocol.UDP);
+		return frame.fitsUDP() ? frame : null;
+	}
+	
+	/**
+	 * Passes the packet to the server in the same JVM, without serializing it.
+	 * @param packet
+	 * @param protocol Only tells the handlers how the packet was sent, AUTO is TCP.
+	 * @return False if the connection is closed.
+	 */
+	private boolean sendLoopback(Packet packet, Protocol protocol) {
+		if (packet.senderUuid == null) {
+			packet.senderUuid = uuid;
+		}
+		if (packet.senderUuid.equals(uuid)) {
+			packet.senderId = sessionId;
+		}
+		return loopback.send(packet, protocol == Protocol.UDP ? Protocol.UDP : Protocol.TCP);
+	}
+	
+	private void sendTCP(Packet packet) {
+		try {
+			OutboundFrame frame = encode(packet, Protocol.TCP);
 			
-			out.write(ByteBuffer.allocate(Constants.PACKET_LENGTH_PREFIX_BYTES).putInt(totalLength).array());
-			out.write(ByteBuffer.allocate(Constants.PACKET_LENGTH_PREFIX_BYTES).putInt(jsonBytes.length).array());
-			out.write(jsonBytes);
-			if (rawBytes != null) {
-				out.write(rawBytes);
+			if (frame.size() > streamThreshold) { //Large packets are sent in chunks by the writer thread.
+				addStream(createStream(packet, frame, 0, null));
+				return;
 			}
-			out.flush();
+			
+			writeTCP(List.of(frame));
 		} catch (IOException e) {
 			e.printStackTrace(System.err);
 		}
@@ -192,49 +849,540 @@ public class Client implements HasUUID {
 	
 	private void sendUDP(Packet packet) {
 		try {
-			if (packet.senderUuid == null) { //Client can ignore uuid, it will be set here.
-				packet.senderUuid = getUuid();
+			OutboundFrame frame = encode(packet, Protocol.UDP);
+			if (!frame.fitsUDP()) { //Too large for a datagram, so it goes over TCP instead of failing.
+				sendTCP(packet);
+				return;
+			}
+			writeUDP(frame);
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
+	private OutboundFrame encode(Packet packet, Protocol protocol) {
+		if (packet.senderUuid == null) { //Client can ignore uuid, it will be set here.
+			packet.senderUuid = getUuid();
+		}
+		if (packet.senderUuid.equals(uuid) && !(packet instanceof SendUuid)) { //SendUuid starts the session, so it always has the UUID.
+			packet.senderId = sessionId; //After the server has given the session ID, it's sent instead of the UUID.
+		}
+		byte[] jsonBytes = packetRegistry.serializeCompact(packet, protocol); //Callers check fitsUDP(), the frame might have to go over TCP.
+		byte[] rawBytes = null;
+		
+		if (packet instanceof DataPacket) {
+			DataPacket dataPacket = (DataPacket) packet;
+			rawBytes = dataPacket.getData();
+		}
+		
+		return new OutboundFrame(jsonBytes, rawBytes, packet.senderUuid);
+	}
+	
+	private OutboundStream createStream(Packet packet, OutboundFrame frame, int priority, StreamProgressListener listener) {
+		return new OutboundStream(frame, nextStreamId.incrementAndGet(), priority, packet.targets, streamChunkSize, packetRegistry, listener);
+	}
+	
+	private void addStream(OutboundStream stream) {
+		synchronized (pendingSends) {
+			stream.setSequence(streamSequence++);
+			activeStreams.add(stream);
+			pendingSends.notifyAll();
+		}
+	}
+	
+	/**
+	 * Sends a large packet in chunks over TCP, in between the other packets, so it doesn't delay them.
+	 * The receiver handles the packet normally when all the chunks have arrived.
+	 * TCP packets larger than the stream threshold are sent like this automatically with priority 0.
+	 * <p>
+	 * Streams with higher priority are sent first, streams with the same priority take turns.
+	 * Like with sendPacketAsync(), don't modify the packet after calling this.
+	 * @param packet
+	 * @param priority
+	 * @param listener Called when a chunk has been written, can be null.
+	 * @return Future that completes when the whole packet has been written.
+	 */
+	public CompletableFuture<Void> sendStream(Packet packet, int priority, StreamProgressListener listener) {
+		if (loopback != null) { //Nothing to split into chunks.
+			return sendPacketAsync(packet, Protocol.TCP);
+		}
+		
+		PendingSend send = new PendingSend(packet, Protocol.TCP);
+		send.stream = true;
+		send.priority = priority;
+		send.listener = listener;
+		return sendImmediate(send);
+	}
+	
+	/**
+	 * Queues a send for the writer thread that doesn't wait for flush(), and doesn't flush the other pending sends either.
+	 * @param send
+	 * @return 
+	 */
+	private CompletableFuture<Void> sendImmediate(PendingSend send) {
+		synchronized (pendingSends) {
+			if (!running) {
+				send.future.completeExceptionally(new SocketException("Client is not running"));
+				return send.future;
 			}
-			packet.protocol = Protocol.UDP; //Also set protocol before sending.
-			
-			String json = packetRegistry.serialize(packet); //TODO: Check that the packet isn't too large for UDP
-			byte[] jsonBytes = json.getBytes();
-			byte[] rawBytes = null;
 			
-			if (packet instanceof DataPacket) {
-				DataPacket dataPacket = (DataPacket) packet;
-				rawBytes = dataPacket.getData();
+			pendingImmediate.add(send);
+			pendingSends.notifyAll();
+		}
+		return send.future;
+	}
+	
+	/**
+	 * Called when a chunk of a large packet has been received. Can be used to show a progress bar.
+	 * @param listener 
+	 */
+	public void setStreamProgressListener(StreamProgressListener listener) {
+		inboundStreams.setProgressListener(listener);
+		inboundFiles.setProgressListener(listener);
+	}
+	
+	/**
+	 * Sets where the files sent with Server.sendFile() are saved.
+	 * Files are written straight from the socket to disk, without going through the Java heap.
+	 * If no receiver is set, files are skipped.
+	 * Receiver is called on the TCP listener thread.
+	 * @param receiver 
+	 */
+	public void setFileReceiver(FileReceiver receiver) {
+		inboundFiles.setReceiver(receiver);
+	}
+	
+	/**
+	 * Largest TCP frame the server can send, also after decompressing. A larger frame, or a frame with lengths that don't add up,
+	 * ends the connection before anything is allocated for it.
+	 * @param maxFrameBytes Default is 16 MB.
+	 */
+	public void setMaxFrameSize(int maxFrameBytes) {
+		this.maxFrameBytes = maxFrameBytes;
+	}
+	
+	/**
+	 * How much memory the unfinished chunked packets from one sender can take. Also limits the size of one chunked packet.
+	 * Streams that don't fit are dropped.
+	 * @param maxBytes Default is 64 MB.
+	 */
+	public void setMaxInboundStreamBytes(long maxBytes) {
+		inboundStreams.setMaxBytesPerSender(maxBytes);
+	}
+	
+	/**
+	 * TCP packets larger than this are sent in chunks.
+	 * @param streamThreshold Size in bytes.
+	 */
+	public void setStreamThreshold(int streamThreshold) {
+		this.streamThreshold = Math.max(streamThreshold, streamChunkSize);
+	}
+	
+	/**
+	 * Writes all the frames and flushes once.
+	 * @param frames
+	 * @throws IOException 
+	 */
+	private void writeTCP(List<? extends TCPFrame> frames) throws IOException {
+		synchronized (tcpLock) {
+			for (TCPFrame frame : frames) {
+				frame.writeTCP(tcpOutput);
+			}
+			tcpOutput.flush();
+		}
+	}
+	
+	private void writeUDP(OutboundFrame frame) throws IOException {
+		byte[] bytes = frame.toUDPBytes();
+		udpSocket.send(new DatagramPacket(bytes, bytes.length));
+	}
+	
+	/**
+	 * Queues the packet to be sent by the client's writer thread, and returns immediately.
+	 * Serializing and writing to the socket happens on the writer thread, so the calling
+	 * thread (for example the game loop) never waits for the network.
+	 * <p>
+	 * Don't modify the packet after calling this, it might not be serialized yet.
+	 * Async packets keep their order with each other, but not with packets sent with sendPacket().
+	 * <p>
+	 * By default the writer sends packets as soon as it can, batching whatever has been queued meanwhile.
+	 * With setAutoFlush(false) packets wait until flush() is called, so everything queued
+	 * during one game frame is written with one flush:
+	 * <pre>{@code
+	 * client.setAutoFlush(false);
+	 * //In the game loop:
+	 * client.sendPacketAsync(movePacket, Protocol.UDP);
+	 * client.sendPacketAsync(chatPacket, Protocol.TCP);
+	 * client.flush(); //At the end of the frame
+	 * }</pre>
+	 * @param packet
+	 * @param protocol
+	 * @return Future that completes when the packet is written to the socket, or completes exceptionally if writing failed.
+	 */
+	public CompletableFuture<Void> sendPacketAsync(Packet packet, Protocol protocol) {
+		if (loopback != null) { //Adding to the loopback queue doesn't block, so no need for the writer thread.
+			return sendLoopback(packet, protocol) ? CompletableFuture.completedFuture(null)
+					: CompletableFuture.failedFuture(new SocketException("Client is not running"));
+		}
+		
+		PendingSend send = new PendingSend(packet, protocol);
+		
+		synchronized (pendingSends) {
+			if (!running) {
+				send.future.completeExceptionally(new SocketException("Client is not running"));
+				return send.future;
 			}
 			
-			int totalLength = Constants.PACKET_LENGTH_PREFIX_BYTES + jsonBytes.length + (rawBytes != null ? rawBytes.length : 0);
+			pendingSends.add(send);
+			if (autoFlush) {
+				pendingSends.notifyAll();
+			}
+		}
+		return send.future;
+	}
+	
+	/**
+	 * Tells the writer thread to send all the packets queued with sendPacketAsync() so far.
+	 * Only needed with setAutoFlush(false).
+	 */
+	public void flush() {
+		synchronized (pendingSends) {
+			flushRequested = true;
+			pendingSends.notifyAll();
+		}
+	}
+	
+	/**
+	 * If auto flush is on (default), async packets are sent as soon as possible.
+	 * If it's off, they are sent when flush() is called.
+	 * @param autoFlush 
+	 */
+	public void setAutoFlush(boolean autoFlush) {
+		synchronized (pendingSends) {
+			this.autoFlush = autoFlush;
+			pendingSends.notifyAll();
+		}
+	}
+	
+	/**
+	 * Writer thread. Takes all the pending async sends at once, serializes them,
+	 * and writes all the TCP packets with a single flush.
+	 * In between the batches it writes one chunk of the large packets that are being streamed.
+	 */
+	private void writeLoop() {
+		List<PendingSend> batch = new ArrayList<>();
+		
+		while (true) {
+			OutboundStream stream;
 			
-			ByteBuffer buffer = ByteBuffer.allocate(totalLength);
-			buffer.putInt(jsonBytes.length);
-			buffer.put(jsonBytes);
-			if (rawBytes != null) {
-				buffer.put(rawBytes);
+			synchronized (pendingSends) {
+				while (running && !hasSendablePending() && pendingImmediate.isEmpty() && activeStreams.isEmpty()) {
+					try {
+						pendingSends.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (!running) {
+					break;
+				}
+				
+				if (hasSendablePending()) {
+					batch.addAll(pendingSends);
+					pendingSends.clear();
+					flushRequested = false;
+				}
+				batch.addAll(pendingImmediate);
+				pendingImmediate.clear();
+				stream = activeStreams.poll();
 			}
 			
-			DatagramPacket udpPacket = new DatagramPacket(buffer.array(), buffer.array().length);
-			udpSocket.send(udpPacket);
+			writeBatch(batch);
+			batch.clear();
+			
+			if (stream != null) {
+				writeChunk(stream);
+			}
+		}
+		
+		failPendingSends();
+	}
+	
+	private boolean hasSendablePending() {
+		return !pendingSends.isEmpty() && (autoFlush || flushRequested);
+	}
+	
+	private void writeChunk(OutboundStream stream) {
+		TCPFrame chunk = stream.nextChunk();
+		
+		try {
+			writeTCP(List.of(chunk));
+			chunk.written();
 		} catch (IOException e) {
-			e.printStackTrace(System.err);
+			stream.fail(e);
+			return;
+		}
+		
+		if (stream.hasNextChunk()) {
+			addStream(stream); //To the back of the streams with the same priority.
+		}
+	}
+	
+	private void writeBatch(List<PendingSend> batch) {
+		List<OutboundFrame> tcpFrames = new ArrayList<>();
+		List<PendingSend> tcpSends = new ArrayList<>();
+		
+		for (PendingSend send : batch) {
+			try {
+				Protocol protocol = send.protocol;
+				OutboundFrame frame = protocol == Protocol.AUTO ? encodeAuto(send.packet) : null;
+				if (protocol == Protocol.AUTO) {
+					protocol = frame != null ? Protocol.UDP : Protocol.TCP;
+				}
+				if (frame == null) {
+					frame = encode(send.packet, protocol);
+				}
+				if (protocol == Protocol.UDP && !frame.fitsUDP()) { //Too large for a datagram.
+					frame = encode(send.packet, Protocol.TCP);
+					protocol = Protocol.TCP;
+				}
+				
+				if (protocol == Protocol.TCP && (send.stream || frame.size() > streamThreshold)) {
+					OutboundStream stream = createStream(send.packet, frame, send.priority, send.listener);
+					stream.getFuture().whenComplete((v, e) -> {
+						if (e != null) {
+							send.future.completeExceptionally(e);
+						} else {
+							send.future.complete(null);
+						}
+					});
+					addStream(stream);
+				} else if (protocol == Protocol.TCP) {
+					tcpFrames.add(frame);
+					tcpSends.add(send);
+				} else {
+					writeUDP(frame);
+					send.future.complete(null);
+				}
+			} catch (IOException | RuntimeException e) {
+				send.future.completeExceptionally(e);
+			}
+		}
+		
+		if (tcpFrames.isEmpty()) {
+			return;
+		}
+		
+		try {
+			writeTCP(tcpFrames);
+			tcpSends.forEach(send -> send.future.complete(null));
+		} catch (IOException e) {
+			tcpSends.forEach(send -> send.future.completeExceptionally(e));
 		}
 	}
 	
+	private void failPendingSends() {
+		List<PendingSend> failed;
+		List<OutboundStream> failedStreams;
+		synchronized (pendingSends) {
+			failed = new ArrayList<>(pendingSends);
+			failed.addAll(pendingImmediate);
+			pendingSends.clear();
+			pendingImmediate.clear();
+			failedStreams = new ArrayList<>(activeStreams);
+			activeStreams.clear();
+		}
+		
+		SocketException e = new SocketException("Client stopped");
+		failed.forEach(send -> send.future.completeExceptionally(e));
+		failedStreams.forEach(stream -> stream.fail(e));
+	}
+	
+	public PacketRegistry getPacketRegistry() {
+		return packetRegistry;
+	}
+	
 	@Override
 	public UUID getUuid() {
 		return uuid;
 	}
 	
-	public void stop() {
-		running = false;
+	/**
+	 * Session ID the server gave this client. Packets are sent with it instead of the UUID.
+	 * @return Session ID, or 0 if the server hasn't sent it yet.
+	 */
+	public int getSessionId() {
+		return sessionId;
+	}
+	
+	/**
+	 * Finds the UUID of another client from its session ID. Received packets already have the senderUuid set from this.
+	 * @param sessionId
+	 * @return UUID, or null if there's no client with the session ID.
+	 */
+	public UUID getUuid(int sessionId) {
+		UUID[] current = roster;
+		return sessionId > 0 && sessionId < current.length ? current[sessionId] : null;
+	}
+	
+	/**
+	 * Called periodically by the timer thread.
+	 * Sends a heartbeat with both protocols (UDP heartbeat also keeps the UDP path open through NATs),
+	 * and stops the client if the server hasn't sent anything in serverTimeout.
+	 */
+	private void heartbeatTick() {
 		try {
-			tcpSocket.close();
-			udpSocket.close();
-		} catch (IOException e) {
+			if (serverTimeout > 0 && System.currentTimeMillis() - lastReceivedTime > serverTimeout) {
+				printMessage("Server timed out.");
+				if (autoResume && resumeToken != null) {
+					closeQuietly(tcpSocket); //TCP listener sees the connection end and tries to resume.
+					lastReceivedTime = System.currentTimeMillis();
+				} else {
+					stop();
+				}
+				return;
+			}
+			
+			HeartbeatPacket tcpHeartbeat = new HeartbeatPacket();
+			tcpHeartbeat.received = receivedFrames; //Server can forget the frames it kept in case the session is resumed.
+			sendHeartbeat(tcpHeartbeat, Protocol.TCP); //On the writer thread, so a stalled socket doesn't stop the timer.
+			sendHeartbeat(new HeartbeatPacket(++udpHeartbeatSequence), Protocol.UDP);
+		} catch (RuntimeException e) { //Exception would cancel the scheduled task.
 			e.printStackTrace(System.err);
 		}
+	}
+	
+	/**
+	 * Heartbeats skip the async queue, so they don't flush a batch the game is still adding to with setAutoFlush(false).
+	 * @param heartbeat
+	 * @param protocol 
+	 */
+	private void sendHeartbeat(HeartbeatPacket heartbeat, Protocol protocol) {
+		if (loopback != null) {
+			sendLoopback(heartbeat, protocol);
+		} else {
+			sendImmediate(new PendingSend(heartbeat, protocol));
+		}
+	}
+	
+	/**
+	 * How often the client sends heartbeats to the server.
+	 * Needs to be set before calling connect().
+	 * @param heartbeatInterval Interval in milliseconds.
+	 */
+	public void setHeartbeatInterval(long heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval;
+	}
+	
+	/**
+	 * How long the server can be silent before the client stops itself.
+	 * @param serverTimeout Timeout in milliseconds, or 0 to never time out.
+	 */
+	public void setServerTimeout(long serverTimeout) {
+		this.serverTimeout = serverTimeout;
+	}
+	
+	/**
+	 * Codecs the server can compress the frames it sends with. The server picks the first of its own codecs that is in this list.
+	 * Deflate without a dictionary by default. Call before connect().
+	 * @param codecs None to turn compression off.
+	 */
+	public void setCompression(PayloadCodec... codecs) {
+		this.codecs = codecs.clone();
+	}
+	
+	/**
+	 * For LAN games, listens to the multicast group the server sends UDP packets for everyone to, see Server.setMulticast().
+	 * The group and port need to be the same as on the server. The client joins when connecting, and tells the server
+	 * that it did, so the server stops sending it its own copies of those packets. Call before connect().
+	 * @param group
+	 * @param port
+	 * @param networkInterface Interface to join on, or null for the default one.
+	 */
+	public void setMulticast(InetAddress group, int port, NetworkInterface networkInterface) {
+		this.multicastGroup = group;
+		this.multicastPort = port;
+		this.multicastInterface = networkInterface;
+	}
+	
+	public void setMulticast(InetAddress group, int port) {
+		setMulticast(group, port, null);
+	}
+	
+	private SendUuid createSendUuid(String resumeToken) {
+		SendUuid sendUuid = new SendUuid(uuid, udpSocket.getLocalPort(), resumeToken);
+		if (multicastSocket != null) {
+			sendUuid.multicastGroup = multicastGroup.getHostAddress();
+			sendUuid.multicastPort = multicastPort;
+		}
+		PayloadCodec[] current = codecs;
+		sendUuid.codecs = new String[current.length];
+		for (int i = 0; i < current.length; i++) {
+			sendUuid.codecs[i] = current[i].getName();
+		}
+		return sendUuid;
+	}
+	
+	/**
+	 * @return Estimated share of the server's UDP packets that are lost, from 0 to 1. Measured from the heartbeats.
+	 */
+	public double getUdpLoss() {
+		return udpLoss.getLoss();
+	}
+	
+	/**
+	 * Protocol.AUTO sends over TCP if more UDP packets than this are lost, or if no UDP packets have arrived from the server.
+	 * @param maxLoss From 0 to 1, default is 0.2.
+	 */
+	public void setAutoMaxUdpLoss(double maxLoss) {
+		this.autoMaxUdpLoss = maxLoss;
+	}
+	
+	/**
+	 * @return Time in milliseconds when the last packet was received from the server.
+	 */
+	public long getLastReceivedTime() {
+		return lastReceivedTime;
+	}
+	
+	/**
+	 * If on, when the TCP connection drops the client reconnects and resumes its session,
+	 * instead of stopping. The server needs to have Server.setResumeGrace() set, then the client keeps
+	 * its UUID, host status and everything the server stored for it, and gets the reliable packets
+	 * that were sent to it while it was disconnected.
+	 * <p>
+	 * Packets sent by the client while disconnected fail, and streams in progress are dropped.
+	 * @param autoResume 
+	 */
+	public void setAutoResume(boolean autoResume) {
+		this.autoResume = autoResume;
+	}
+	
+	/**
+	 * How long the client keeps trying to reconnect before it stops.
+	 * Shouldn't be longer than the server's resume grace.
+	 * @param resumeWindow Time in milliseconds.
+	 */
+	public void setResumeWindow(long resumeWindow) {
+		this.resumeWindow = resumeWindow;
+	}
+	
+	public void stop() {
+		synchronized (pendingSends) {
+			running = false;
+			pendingSends.notifyAll(); //Wake up the writer so it can fail the pending sends.
+		}
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+		closeQuietly(tcpSocket); //Not under tcpLock, a write might be stuck holding it.
+		closeQuietly(udpSocket);
+		closeQuietly(multicastSocket);
+		if (loopback != null) {
+			loopback.close();
+		}
+		virtualClients.values().forEach(VirtualClient::markRemoved); //Server removes them with this client.
+		virtualClients.clear();
 		
 		printMessage("Client stopped.");
 	}
@@ -254,4 +1402,18 @@ public class Client implements HasUUID {
 			} catch (Exception ignored) {}
 		}
 	}
+	
+	private static class PendingSend {
+		private final Packet packet;
+		private final Protocol protocol;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+		private boolean stream = false;
+		private int priority = 0;
+		private StreamProgressListener listener;
+		
+		private PendingSend(Packet packet, Protocol protocol) {
+			this.packet = packet;
+			this.protocol = protocol;
+		}
+	}
 }
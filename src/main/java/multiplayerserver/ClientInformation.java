@@ -1,10 +1,15 @@
 package multiplayerserver;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.UUID;
 import multiplayerserver.packets.Packet;
 import multiplayerserver.packets.PacketRegistry;
@@ -15,10 +20,29 @@ import multiplayerserver.packets.PacketRegistry;
  * It doesn't have a UDP port, that needs to be set when the first UDP packet arrives.
  */
 public class ClientInformation implements HasUUID {
-	private final InetAddress ipAddress;
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
+	private InetAddress ipAddress;
 	private Socket tcpSocket;
 	private int udpPort = -1;
 	private UUID uuid = null;
+	private int sessionId = 0; //Given by the server when the client is added, sent in packets instead of the UUID.
+	
+	private final OutboundQueue outboundQueue = new OutboundQueue();
+	private final SendScheduler scheduler = new SendScheduler();
+	private OutputStream tcpOutput; //Buffered output of the tcpSocket, only used by the thread draining outboundQueue.
+	
+	private volatile long lastReceivedTime = System.currentTimeMillis(); //Updated on every received packet, used for timing out dead clients.
+	private final LossEstimator udpLoss = new LossEstimator(); //From the client's UDP heartbeats.
+	private int udpHeartbeatSequence = 0; //Only used by the server's timer thread.
+	private volatile Compression compression; //Agreed on in the handshake, null if frames aren't compressed.
+	private volatile RateLimiter rateLimiter; //Null if the packets this client sends aren't limited.
+	private final LoopbackChannel loopback; //To a Client in the same JVM, null for clients connected over the network.
+	private final ClientInformation link; //Connection a virtual client shares with others, null for normal clients.
+	private volatile boolean multicast = false; //Listens to the server's multicast group.
+	
+	private final String resumeToken = createToken();
+	private volatile long disconnectedTime = 0; //When the connection was lost, 0 while connected.
 	
     private final PacketRegistry registry;
 	
@@ -26,6 +50,8 @@ public class ClientInformation implements HasUUID {
 		this.ipAddress = tcpSocket.getInetAddress();
 		this.tcpSocket = tcpSocket;
 		this.registry = registry;
+		this.loopback = null;
+		this.link = null;
 	}
 	
 	public ClientInformation(InetAddress ipAddress, int udpPort, UUID uuid, PacketRegistry registry) {
@@ -33,10 +59,43 @@ public class ClientInformation implements HasUUID {
 		this.udpPort = udpPort;
 		this.uuid = uuid;
 		this.registry = registry;
+		this.loopback = null;
+		this.link = null;
+	}
+	
+	/**
+	 * Client in the same JVM, that has no sockets. See Client.connect(Server).
+	 * @param loopback Channel to the client.
+	 * @param registry 
+	 */
+	ClientInformation(LoopbackChannel loopback, PacketRegistry registry) {
+		this.ipAddress = InetAddress.getLoopbackAddress();
+		this.registry = registry;
+		this.loopback = loopback;
+		this.link = null;
+	}
+	
+	/**
+	 * Virtual client, that shares the connection of another client with other virtual clients. See Client.addVirtualClient().
+	 * @param link Client whose connection the packets go through.
+	 * @param uuid
+	 * @param registry 
+	 */
+	ClientInformation(ClientInformation link, UUID uuid, PacketRegistry registry) {
+		this.ipAddress = link.getIpAddress();
+		this.uuid = uuid;
+		this.registry = registry;
+		this.loopback = null;
+		this.link = link;
 	}
 	
-	public void setTcpSocket(Socket tcpSocket) {
+	public synchronized void setTcpSocket(Socket tcpSocket) {
 		this.tcpSocket = tcpSocket;
+		this.tcpOutput = null;
+	}
+	
+	public void setIpAddress(InetAddress ipAddress) {
+		this.ipAddress = ipAddress;
 	}
 	
 	public void setUdpPort(int clientUdpPort) {
@@ -47,6 +106,10 @@ public class ClientInformation implements HasUUID {
 		this.uuid = uuid;
 	}
 	
+	void setSessionId(int sessionId) {
+		this.sessionId = sessionId;
+	}
+	
 	public InetAddress getIpAddress() {
 		return ipAddress;
 	}
@@ -55,12 +118,189 @@ public class ClientInformation implements HasUUID {
 		return tcpSocket;
 	}
 	
+	/**
+	 * Buffered output stream for the TCP socket. Remember to flush.
+	 * @return
+	 * @throws IOException 
+	 */
+	synchronized OutputStream getTcpOutput() throws IOException {
+		if (tcpOutput == null) {
+			tcpOutput = new BufferedOutputStream(ChannelStreams.outputOf(tcpSocket));
+		}
+		return tcpOutput;
+	}
+	
+	/**
+	 * Packets that are waiting to be written to this client's TCP socket.
+	 * Can be used to change the budget for this client only.
+	 * @return 
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outboundQueue;
+	}
+	
+	public SendScheduler getScheduler() {
+		return scheduler;
+	}
+	
 	public int getUdpPort() {
 		return udpPort;
 	}
 	
+	/**
+	 * @return Estimated share of the client's UDP packets that are lost, from 0 to 1.
+	 */
+	public double getUdpLoss() {
+		return udpLoss.getLoss();
+	}
+	
+	Compression getCompression() {
+		return compression;
+	}
+	
+	void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+	
+	/**
+	 * @return Name of the codec frames to this client are compressed with, or null if they aren't.
+	 */
+	public String getCodecName() {
+		Compression current = compression;
+		return current != null ? current.codec.getName() : null;
+	}
+	
+	/**
+	 * Limits how many packets this client can send, instead of the limits from Server.setRateLimits().
+	 * Resets the client's buckets.
+	 * @param limits Null for no limits.
+	 */
+	public void setRateLimits(RateLimits limits) {
+		this.rateLimiter = new RateLimiter(limits != null ? limits : new RateLimits());
+	}
+	
+	RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+	
+	/**
+	 * @return True if the client is in the same JVM, and gets packets without sockets or serialization.
+	 */
+	public boolean isLoopback() {
+		return loopback != null;
+	}
+	
+	LoopbackChannel getLoopback() {
+		return loopback;
+	}
+	
+	/**
+	 * @return True if the client shares its connection with other virtual clients, then it has no sockets of its own.
+	 */
+	public boolean isVirtual() {
+		return link != null;
+	}
+	
+	/**
+	 * @return Client whose connection this virtual client's packets go through, or null if this isn't a virtual client.
+	 */
+	public ClientInformation getLink() {
+		return link;
+	}
+	
+	/**
+	 * @return True if the client gets UDP packets sent to everyone from the server's multicast group, see Server.setMulticast().
+	 */
+	public boolean isMulticast() {
+		return multicast;
+	}
+	
+	void setMulticast(boolean multicast) {
+		this.multicast = multicast;
+	}
+	
+	LossEstimator getLossEstimator() {
+		return udpLoss;
+	}
+	
+	int nextUdpHeartbeatSequence() {
+		return ++udpHeartbeatSequence;
+	}
+	
 	@Override
 	public UUID getUuid() {
 		return uuid;
 	}
+	
+	/**
+	 * Small number that identifies the client on this server, 0 until the client is added.
+	 * IDs of removed clients are given to new clients.
+	 * @return 
+	 */
+	public int getSessionId() {
+		return sessionId;
+	}
+	
+	/**
+	 * Marks that something was received from this client just now.
+	 */
+	public void markReceived() {
+		lastReceivedTime = System.currentTimeMillis();
+	}
+	
+	/**
+	 * @return Time in milliseconds when the last packet was received from this client.
+	 */
+	public long getLastReceivedTime() {
+		return lastReceivedTime;
+	}
+	
+	private static String createToken() {
+		byte[] bytes = new byte[16];
+		RANDOM.nextBytes(bytes);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+	
+	/**
+	 * Secret token the client can use to resume this session after its connection drops.
+	 * @return 
+	 */
+	public String getResumeToken() {
+		return resumeToken;
+	}
+	
+	/**
+	 * Compares in constant time, so the token can't be guessed from timing.
+	 * @param token
+	 * @return True if the token is this client's resume token.
+	 */
+	public boolean isResumeToken(String token) {
+		return token != null && MessageDigest.isEqual(resumeToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Marks that the connection was lost, and the client might resume the session.
+	 */
+	void markDisconnected() {
+		disconnectedTime = System.currentTimeMillis();
+	}
+	
+	void markConnected() {
+		disconnectedTime = 0;
+		markReceived();
+	}
+	
+	/**
+	 * @return True if the connection was lost and the server is waiting for the client to resume the session.
+	 */
+	public boolean isDisconnected() {
+		return disconnectedTime != 0;
+	}
+	
+	/**
+	 * @return Time in milliseconds when the connection was lost, 0 if connected.
+	 */
+	public long getDisconnectedTime() {
+		return disconnectedTime;
+	}
 }
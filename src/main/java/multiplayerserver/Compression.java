@@ -0,0 +1,101 @@
+package multiplayerserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec the server and a client agreed on when it connected, and the format of compressed frames.
+ * <p>
+ * A compressed frame has the highest bit set in its json length, and the body is:
+ * [4 bytes length of json + raw data][1 byte index of the codec in the client's list][compressed json + raw data]
+ * The index tells the client which codec to use, so it can decompress even before it has heard which one the server chose.
+ */
+final class Compression {
+	static final int FLAG = 0x80000000; //Set in the json length of a compressed frame.
+	static final int HEADER_BYTES = Integer.BYTES + 1;
+	
+	final PayloadCodec codec;
+	final int index; //In the list the client sent.
+	final int threshold; //Smaller frames aren't compressed.
+	
+	Compression(PayloadCodec codec, int index, int threshold) {
+		this.codec = codec;
+		this.index = index;
+		this.threshold = threshold;
+	}
+	
+	/**
+	 * Picks the first of the server's codecs that the client has too.
+	 * @param codecs Server's codecs, in the order of preference.
+	 * @param clientCodecs Names of the client's codecs.
+	 * @param threshold
+	 * @return Compression for the client, or null if they have nothing in common.
+	 */
+	static Compression negotiate(PayloadCodec[] codecs, String[] clientCodecs, int threshold) {
+		if (codecs == null || clientCodecs == null) {
+			return null;
+		}
+		
+		for (PayloadCodec codec : codecs) {
+			for (int i = 0; i < clientCodecs.length && i < 128; i++) {
+				if (codec.getName().equals(clientCodecs[i])) {
+					return new Compression(codec, i, threshold);
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @param json
+	 * @param raw Can be null.
+	 * @return Compressed json and raw data, or null if compressing didn't make it smaller.
+	 */
+	byte[] compress(byte[] json, byte[] raw) {
+		int rawLength = raw != null ? raw.length : 0;
+		byte[] data = new byte[json.length + rawLength];
+		System.arraycopy(json, 0, data, 0, json.length);
+		if (raw != null) {
+			System.arraycopy(raw, 0, data, json.length, rawLength);
+		}
+		
+		byte[] compressed = codec.compress(data);
+		return compressed.length + HEADER_BYTES < data.length ? compressed : null;
+	}
+	
+	static boolean isCompressed(int jsonLength) {
+		return (jsonLength & FLAG) != 0;
+	}
+	
+	/**
+	 * Decompresses the body of a compressed frame.
+	 * @param codecs Codecs the client sent to the server, in the same order.
+	 * @param jsonLength Json length of the frame, with the flag.
+	 * @param body
+	 * @param maxLength Largest length the frame can have after decompressing.
+	 * @return Json bytes and raw bytes.
+	 * @throws IOException If the frame is corrupted, too large or the codec is unknown.
+	 */
+	static byte[][] decompress(PayloadCodec[] codecs, int jsonLength, ByteBuffer body, int maxLength) throws IOException {
+		jsonLength &= ~FLAG;
+		if (body.remaining() < HEADER_BYTES) {
+			throw new IOException("Compressed frame is too short");
+		}
+		
+		int length = body.getInt();
+		int index = body.get();
+		if (index < 0 || index >= codecs.length || length < jsonLength) {
+			throw new IOException("Malformed compressed frame");
+		}
+		if (length > maxLength) { //Checked before the codec allocates it.
+			throw new IOException("Compressed frame is too large: " + length + " bytes");
+		}
+		
+		byte[] data = codecs[index].decompress(body.array(), body.arrayOffset() + body.position(), body.remaining(), length);
+		byte[] json = new byte[jsonLength];
+		byte[] raw = new byte[length - jsonLength];
+		System.arraycopy(data, 0, json, 0, jsonLength);
+		System.arraycopy(data, jsonLength, raw, 0, raw.length);
+		return new byte[][] {json, raw};
+	}
+}
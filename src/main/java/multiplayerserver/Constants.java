@@ -3,4 +3,28 @@ package multiplayerserver;
 public class Constants {
 	public static final int SERVER_PORT = 22223;
 	public static final int PACKET_LENGTH_PREFIX_BYTES = Integer.BYTES; //How many bytes each TCP packet has as a prefix to tell data length.
+	public static final int MAX_UDP_PACKET_BYTES = 1024; //Size of the UDP receive buffer, anything larger is cut off.
+	public static final int MULTICAST_TTL = 1; //Multicast packets stay in the local network.
+	
+	public static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 1000; //How often server and client send heartbeats to each other.
+	public static final long DEFAULT_TIMEOUT_MS = 10000; //How long a peer can stay silent before it's considered dead. 0 disables the timeout.
+	
+	public static final long DEFAULT_OUTBOUND_MAX_BYTES = 1024 * 1024; //How many bytes can wait in a client's outbound queue before the backpressure policy kicks in.
+	public static final int DEFAULT_OUTBOUND_MAX_PACKETS = 1024; //Same for the number of packets.
+	
+	public static final int DEFAULT_STREAM_THRESHOLD_BYTES = 64 * 1024; //TCP packets larger than this are sent in chunks, so they don't block other packets.
+	public static final int DEFAULT_STREAM_CHUNK_BYTES = 16 * 1024; //Size of one chunk of a large packet.
+	public static final int DEFAULT_MAX_FRAME_BYTES = 16 * 1024 * 1024; //Received TCP frames larger than this end the connection.
+	public static final long DEFAULT_MAX_INBOUND_STREAM_BYTES = 64 * 1024 * 1024; //How much memory the unfinished streams from one sender can take.
+	
+	public static final long SCHEDULER_TICK_MS = 50; //How often packets waiting for a client's bandwidth are sent.
+	public static final long RATE_LIMITER_IDLE_MS = 10000; //UDP rate limits of an address are forgotten after it hasn't sent anything in this time.
+	public static final double CONTROL_PACKETS_PER_SECOND = 200; //Rate limit of each built-in control packet type, like heartbeats, when rate limits are used.
+	public static final double CONTROL_PACKETS_BURST = 400;
+	public static final double DEFAULT_PRIORITY = 1; //Priority of packets whose type has no priority set.
+	public static final long SNAPSHOT_RESEND_MS = 1000; //Replication snapshot sent over TCP isn't sent again for the same baseline before this, unless the client acknowledges it.
+	
+	public static final double DEFAULT_AUTO_MAX_UDP_LOSS = 0.2; //Protocol.AUTO uses TCP when more UDP packets than this are lost.
+	
+	public static final long DEFAULT_RESUME_WINDOW_MS = 30000; //How long a dropped client can take to reconnect and resume its session.
 }
@@ -0,0 +1,192 @@
+package multiplayerserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate with the fastest level by default. Can use a shared dictionary, which makes small JSON packets compress much better,
+ * since even the first packet can refer to the field names and values in the dictionary.
+ * The client and the server need the exact same dictionary, the name of the codec has its checksum so different ones don't match.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * byte[] dictionary = DeflateCodec.trainDictionary(samplePayloads, 4096); //Saved and shipped with the game
+ * server.setCompression(256, new DeflateCodec(dictionary), new DeflateCodec());
+ * client.setCompression(new DeflateCodec(dictionary), new DeflateCodec());
+ * }</pre>
+ */
+public class DeflateCodec implements PayloadCodec {
+	private static final int GRAM_BYTES = 8; //Length of the substrings counted when training a dictionary.
+	
+	private final int level;
+	private final byte[] dictionary;
+	private final String name;
+	
+	//Deflater and Inflater are expensive to create, each thread reuses its own.
+	private final ThreadLocal<Deflater> deflaters;
+	private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+	
+	public DeflateCodec() {
+		this(Deflater.BEST_SPEED, null);
+	}
+	
+	public DeflateCodec(byte[] dictionary) {
+		this(Deflater.BEST_SPEED, dictionary);
+	}
+	
+	/**
+	 * @param level From Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9).
+	 * @param dictionary Shared dictionary, or null.
+	 */
+	public DeflateCodec(int level, byte[] dictionary) {
+		this.level = level;
+		this.dictionary = dictionary != null ? dictionary.clone() : null;
+		this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+		
+		if (dictionary != null) {
+			Adler32 checksum = new Adler32();
+			checksum.update(dictionary);
+			this.name = "deflate-" + Long.toHexString(checksum.getValue());
+		} else {
+			this.name = "deflate";
+		}
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	public int getLevel() {
+		return level;
+	}
+	
+	@Override
+	public byte[] compress(byte[] data) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(data);
+		deflater.finish();
+		
+		byte[] out = new byte[data.length / 2 + 64];
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == out.length) {
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		return Arrays.copyOf(out, length);
+	}
+	
+	@Override
+	public byte[] decompress(byte[] data, int offset, int length, int uncompressedLength) throws IOException {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(data, offset, length);
+		
+		byte[] out = new byte[uncompressedLength];
+		int position = 0;
+		try {
+			while (!inflater.finished()) {
+				int n = inflater.inflate(out, position, out.length - position);
+				position += n;
+				if (n > 0) {
+					continue;
+				}
+				
+				if (inflater.needsDictionary()) {
+					if (dictionary == null) {
+						throw new IOException("Compressed with a dictionary this codec doesn't have");
+					}
+					inflater.setDictionary(dictionary);
+				} else if (inflater.needsInput() || position == out.length) {
+					break;
+				}
+			}
+		} catch (DataFormatException | IllegalArgumentException e) { //Wrong dictionary throws IllegalArgumentException.
+			throw new IOException("Corrupted compressed data", e);
+		}
+		
+		if (!inflater.finished() || position != uncompressedLength) {
+			throw new IOException("Compressed data has wrong length");
+		}
+		return out;
+	}
+	
+	/**
+	 * Builds a dictionary from typical payloads, for example the JSON of recorded packets.
+	 * Finds the runs of bytes that are in many samples (field names, common values), and keeps the ones that save the most.
+	 * The most useful ones are put last, since Deflate refers to the end of the dictionary with fewer bits.
+	 * @param samples Serialized packets, a few hundred is usually enough.
+	 * @param maxSize Size of the dictionary, a few kilobytes. Deflate can only refer 32 KB back.
+	 * @return Dictionary for new DeflateCodec(dictionary).
+	 */
+	public static byte[] trainDictionary(List<byte[]> samples, int maxSize) {
+		Map<String, Integer> gramCounts = new HashMap<>(); //In how many samples each substring is.
+		for (byte[] sample : samples) {
+			Set<String> seen = new HashSet<>();
+			for (int i = 0; i + GRAM_BYTES <= sample.length; i++) {
+				String gram = new String(sample, i, GRAM_BYTES, StandardCharsets.ISO_8859_1);
+				if (seen.add(gram)) {
+					gramCounts.merge(gram, 1, Integer::sum);
+				}
+			}
+		}
+		
+		Map<String, Integer> runCounts = new HashMap<>(); //Runs of common substrings, merged into longer strings.
+		for (byte[] sample : samples) {
+			Set<String> seen = new HashSet<>();
+			int start = -1;
+			for (int i = 0; i + GRAM_BYTES <= sample.length + 1; i++) {
+				boolean common = i + GRAM_BYTES <= sample.length
+						&& gramCounts.get(new String(sample, i, GRAM_BYTES, StandardCharsets.ISO_8859_1)) > 1;
+				if (common && start < 0) {
+					start = i;
+				} else if (!common && start >= 0) {
+					String run = new String(sample, start, i - 1 + GRAM_BYTES - start, StandardCharsets.ISO_8859_1);
+					if (seen.add(run)) {
+						runCounts.merge(run, 1, Integer::sum);
+					}
+					start = -1;
+				}
+			}
+		}
+		
+		List<Map.Entry<String, Integer>> runs = new ArrayList<>(runCounts.entrySet());
+		runs.sort((a, b) -> Long.compare((long) b.getValue() * b.getKey().length(), (long) a.getValue() * a.getKey().length()));
+		
+		List<String> picked = new ArrayList<>();
+		int size = 0;
+		for (Map.Entry<String, Integer> entry : runs) {
+			String run = entry.getKey();
+			if (size + run.length() > maxSize) {
+				continue;
+			}
+			if (picked.stream().noneMatch(other -> other.contains(run))) {
+				picked.add(run);
+				size += run.length();
+			}
+		}
+		
+		StringBuilder dictionary = new StringBuilder(size);
+		for (int i = picked.size() - 1; i >= 0; i--) {
+			dictionary.append(picked.get(i));
+		}
+		return dictionary.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
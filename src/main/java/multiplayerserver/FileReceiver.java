@@ -0,0 +1,41 @@
+package multiplayerserver;
+
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * Decides where files sent with Server.sendFile() are saved in the client.
+ * The file is written straight from the socket to the file, without going through the Java heap.
+ * <p>
+ * The name comes from the sender, so check that the path stays in the directory the files should go to.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * Path downloads = Path.of("downloads").toAbsolutePath().normalize();
+ * client.setFileReceiver((sender, transferId, name, length) -> {
+ *     Path path = downloads.resolve(name).normalize();
+ *     return path.startsWith(downloads) && !path.equals(downloads) ? path : null;
+ * });
+ * }</pre>
+ */
+@FunctionalInterface
+public interface FileReceiver {
+	/**
+	 * Called when the first chunk of a file arrives.
+	 * @param senderUuid Null when the server sent the file.
+	 * @param transferId Unique per transfer.
+	 * @param name Name given by the sender.
+	 * @param length Total length of the file.
+	 * @return Path where the file is written, or null to skip the file.
+	 */
+	public Path fileStarted(UUID senderUuid, int transferId, String name, long length);
+	
+	/**
+	 * Called when the whole file has been written.
+	 * @param senderUuid
+	 * @param transferId
+	 * @param name
+	 * @param path 
+	 */
+	public default void fileReceived(UUID senderUuid, int transferId, String name, Path path) {}
+}
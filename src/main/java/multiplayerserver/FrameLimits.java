@@ -0,0 +1,36 @@
+package multiplayerserver;
+
+/**
+ * Checks the lengths in a received frame header before anything is allocated for the frame.
+ * Lengths come straight from the network, so a corrupted or hostile header could otherwise allocate gigabytes.
+ */
+final class FrameLimits {
+	private FrameLimits() {
+	}
+	
+	/**
+	 * @param totalLength Length of json + raw data, or of the compressed body.
+	 * @param jsonLength Can have the compression flag.
+	 * @param maxFrameBytes
+	 * @param allowCompressed Only the server sends compressed frames.
+	 * @return True if the lengths are consistent and within the limit.
+	 */
+	static boolean isValidTCP(int totalLength, int jsonLength, int maxFrameBytes, boolean allowCompressed) {
+		if (totalLength < 0 || totalLength > maxFrameBytes) {
+			return false;
+		}
+		if (Compression.isCompressed(jsonLength)) {
+			return allowCompressed && totalLength >= Compression.HEADER_BYTES && (jsonLength & ~Compression.FLAG) <= maxFrameBytes;
+		}
+		return jsonLength >= 0 && jsonLength <= totalLength;
+	}
+	
+	/**
+	 * @param jsonLength Json length from the start of a UDP frame, without the compression flag.
+	 * @param remaining Bytes after the json length.
+	 * @return True if the json fits in the frame.
+	 */
+	static boolean isValidUDP(int jsonLength, int remaining) {
+		return jsonLength >= 0 && jsonLength <= remaining;
+	}
+}
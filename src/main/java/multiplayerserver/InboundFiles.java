@@ -0,0 +1,150 @@
+package multiplayerserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import multiplayerserver.packets.FileChunkPacket;
+
+/**
+ * Writes files sent with Server.sendFile() straight from the socket to disk with FileChannel.transferFrom().
+ * Only used by the client's TCP listener thread.
+ */
+class InboundFiles {
+	private static final byte[] FILE_CHUNK_PREFIX = (FileChunkPacket.class.getName() + ":").getBytes(StandardCharsets.UTF_8);
+	
+	private final Map<Integer, Transfer> transfers = new HashMap<>();
+	
+	private FileReceiver receiver;
+	private StreamProgressListener listener;
+	
+	/**
+	 * Checks the className at the start of the json bytes, so the file region can be read before anything else.
+	 * @param buf Json bytes are at the start of it.
+	 * @param jsonLength
+	 * @return 
+	 */
+	static boolean isFileChunk(byte[] buf, int jsonLength) {
+		return jsonLength >= FILE_CHUNK_PREFIX.length
+				&& Arrays.equals(buf, 0, FILE_CHUNK_PREFIX.length, FILE_CHUNK_PREFIX, 0, FILE_CHUNK_PREFIX.length);
+	}
+	
+	/**
+	 * Reads the file region of the chunk from the socket and writes it to the file.
+	 * The region is always read, even if the file is skipped, so the next frame starts at the right place.
+	 * @param chunk
+	 * @param channel Channel of the socket, can be null.
+	 * @param in Unbuffered input of the socket, used if there's no channel.
+	 * @throws IOException 
+	 */
+	void receive(FileChunkPacket chunk, SocketChannel channel, InputStream in) throws IOException {
+		Transfer transfer = transfers.get(chunk.transferId);
+		
+		if (transfer == null) {
+			Path path = receiver != null ? receiver.fileStarted(chunk.senderUuid, chunk.transferId, chunk.name, chunk.fileLength) : null;
+			FileChannel file = null;
+			if (path != null) {
+				file = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			}
+			transfer = new Transfer(path, file);
+			transfers.put(chunk.transferId, transfer);
+		}
+		
+		if (transfer.file != null) {
+			writeRegion(transfer.file, chunk.offset, chunk.dataLength, channel, in);
+		} else {
+			skip(in, chunk.dataLength);
+		}
+		transfer.received += chunk.dataLength;
+		
+		if (listener != null) {
+			listener.onProgress(chunk.senderUuid, chunk.transferId, transfer.received, chunk.fileLength);
+		}
+		
+		if (transfer.received >= chunk.fileLength) {
+			transfers.remove(chunk.transferId);
+			if (transfer.file != null) {
+				transfer.file.close();
+				receiver.fileReceived(chunk.senderUuid, chunk.transferId, chunk.name, transfer.path);
+			}
+		}
+	}
+	
+	private void writeRegion(FileChannel file, long position, int length, SocketChannel channel, InputStream in) throws IOException {
+		if (channel == null) {
+			byte[] buffer = new byte[Math.min(length, 8192)];
+			long written = 0;
+			while (written < length) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, length - written));
+				if (n < 0) {
+					throw new EOFException();
+				}
+				file.write(ByteBuffer.wrap(buffer, 0, n), position + written);
+				written += n;
+			}
+			return;
+		}
+		
+		long transferred = 0;
+		while (transferred < length) {
+			long n = file.transferFrom(channel, position + transferred, length - transferred);
+			if (n <= 0) {
+				throw new EOFException();
+			}
+			transferred += n;
+		}
+	}
+	
+	private void skip(InputStream in, int length) throws IOException {
+		byte[] buffer = new byte[Math.min(Math.max(length, 1), 8192)];
+		int skipped = 0;
+		while (skipped < length) {
+			int n = in.read(buffer, 0, Math.min(buffer.length, length - skipped));
+			if (n < 0) {
+				throw new EOFException();
+			}
+			skipped += n;
+		}
+	}
+	
+	/**
+	 * Closes the files of unfinished transfers.
+	 */
+	void closeAll() {
+		for (Transfer transfer : transfers.values()) {
+			if (transfer.file != null) {
+				try {
+					transfer.file.close();
+				} catch (IOException ignored) {}
+			}
+		}
+		transfers.clear();
+	}
+	
+	void setReceiver(FileReceiver receiver) {
+		this.receiver = receiver;
+	}
+	
+	void setProgressListener(StreamProgressListener listener) {
+		this.listener = listener;
+	}
+	
+	private static class Transfer {
+		private final Path path;
+		private final FileChannel file;
+		private long received = 0;
+		
+		private Transfer(Path path, FileChannel file) {
+			this.path = path;
+			this.file = file;
+		}
+	}
+}
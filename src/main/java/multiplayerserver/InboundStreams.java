@@ -0,0 +1,126 @@
+package multiplayerserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import multiplayerserver.packets.StreamChunkPacket;
+
+/**
+ * Puts the chunks of large packets back together.
+ * Streams are kept per sender, so they can be dropped when the sender disconnects.
+ * Chunks of a stream are sent in order over TCP, so a chunk that doesn't continue where the previous one ended
+ * (a duplicate, an overlap or a hole) drops the stream.
+ */
+public class InboundStreams {
+	private final Map<UUID, Map<Integer, Assembly>> streams = new HashMap<>(); //Server's streams have null sender.
+	private long maxBytesPerSender = Constants.DEFAULT_MAX_INBOUND_STREAM_BYTES;
+	
+	private StreamProgressListener listener;
+	
+	/**
+	 * Adds the chunk to its stream.
+	 * @param chunk
+	 * @return Bytes of the original packet if this was the last chunk, otherwise null.
+	 * Also null if the stream doesn't fit in the sender's budget, then the stream is dropped.
+	 */
+	public byte[] accept(StreamChunkPacket chunk) {
+		byte[] data = chunk.getData();
+		if (data == null || chunk.offset < 0 || chunk.totalLength < 0 || (long) chunk.offset + data.length > chunk.totalLength) {
+			return null; //Malformed chunk.
+		}
+		
+		Assembly assembly;
+		long received;
+		
+		synchronized (streams) {
+			Map<Integer, Assembly> senderStreams = streams.computeIfAbsent(chunk.senderUuid, k -> new HashMap<>());
+			assembly = senderStreams.get(chunk.streamId);
+			if (assembly == null || assembly.bytes.length != chunk.totalLength) {
+				senderStreams.remove(chunk.streamId);
+				if (allocated(senderStreams) + chunk.totalLength > maxBytesPerSender) { //Checked before allocating, the length comes from the sender.
+					if (senderStreams.isEmpty()) {
+						streams.remove(chunk.senderUuid);
+					}
+					return null;
+				}
+				assembly = new Assembly(chunk.totalLength);
+				senderStreams.put(chunk.streamId, assembly);
+			}
+			
+			if (chunk.offset != assembly.received) { //Not the next chunk, the stream can't be completed.
+				senderStreams.remove(chunk.streamId);
+				if (senderStreams.isEmpty()) {
+					streams.remove(chunk.senderUuid);
+				}
+				return null;
+			}
+			
+			System.arraycopy(data, 0, assembly.bytes, chunk.offset, data.length);
+			assembly.received += data.length;
+			received = assembly.received;
+			
+			if (received >= assembly.bytes.length) {
+				senderStreams.remove(chunk.streamId);
+				if (senderStreams.isEmpty()) {
+					streams.remove(chunk.senderUuid);
+				}
+			}
+		}
+		
+		if (listener != null) {
+			listener.onProgress(chunk.senderUuid, chunk.streamId, Math.min(received, chunk.totalLength), chunk.totalLength);
+		}
+		
+		return received >= chunk.totalLength ? assembly.bytes : null;
+	}
+	
+	private static long allocated(Map<Integer, Assembly> senderStreams) {
+		long bytes = 0;
+		for (Assembly assembly : senderStreams.values()) {
+			bytes += assembly.bytes.length;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * How many bytes the unfinished streams of one sender can take. Also limits the size of one stream.
+	 * @param maxBytesPerSender 
+	 */
+	public void setMaxBytesPerSender(long maxBytesPerSender) {
+		synchronized (streams) {
+			this.maxBytesPerSender = maxBytesPerSender;
+		}
+	}
+	
+	/**
+	 * Drops the unfinished streams of the sender.
+	 * @param senderUuid 
+	 */
+	public void removeSender(UUID senderUuid) {
+		synchronized (streams) {
+			streams.remove(senderUuid);
+		}
+	}
+	
+	/**
+	 * Drops all unfinished streams, for example when the connection they came from was lost.
+	 */
+	public void clear() {
+		synchronized (streams) {
+			streams.clear();
+		}
+	}
+	
+	public void setProgressListener(StreamProgressListener listener) {
+		this.listener = listener;
+	}
+	
+	private static class Assembly {
+		private final byte[] bytes;
+		private long received = 0;
+		
+		private Assembly(int totalLength) {
+			bytes = new byte[totalLength];
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package multiplayerserver;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import multiplayerserver.packets.Packet;
+
+/**
+ * One direction of a loopback connection between a Server and a Client in the same JVM, see Client.connect(Server).
+ * Packets are passed as objects through a lock-free queue, and handled on the receiving side's own thread,
+ * like they would be on its listener thread. Frames the server already had serialized (forwarded payloads,
+ * retained packets) are passed as OutboundFrames.
+ * <p>
+ * The same packet object can be sent to other clients at the same time, so its protocol is only set
+ * on the receiving thread, right before it's handled. That is why a server only accepts one loopback client:
+ * with two, a packet sent to both would have its protocol written by both receiving threads without synchronization.
+ */
+class LoopbackChannel {
+	private static final class Delivery {
+		final Packet packet;
+		final Protocol protocol;
+		
+		Delivery(Packet packet, Protocol protocol) {
+			this.packet = packet;
+			this.protocol = protocol;
+		}
+	}
+	
+	private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+	private final Consumer<Object> receiver;
+	private final Runnable onClose;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private final Thread thread;
+	
+	/**
+	 * Starts the thread that hands the packets to the receiver.
+	 * @param name Name of the thread.
+	 * @param receiver Gets Packets and OutboundFrames, in the order they were sent.
+	 * @param onClose Called once when the channel is closed.
+	 */
+	LoopbackChannel(String name, Consumer<Object> receiver, Runnable onClose) {
+		this.receiver = receiver;
+		this.onClose = onClose;
+		this.thread = new Thread(this::receiveLoop, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Never blocks.
+	 * @param packet
+	 * @param protocol Set as the packet's protocol when it's received.
+	 * @return False if the channel is closed.
+	 */
+	boolean send(Packet packet, Protocol protocol) {
+		return send(new Delivery(packet, protocol));
+	}
+	
+	/**
+	 * Never blocks.
+	 * @param packetOrFrame
+	 * @return False if the channel is closed.
+	 */
+	boolean send(Object packetOrFrame) {
+		if (closed.get()) {
+			return false;
+		}
+		queue.add(packetOrFrame);
+		LockSupport.unpark(thread);
+		return true;
+	}
+	
+	private void receiveLoop() {
+		while (!closed.get()) {
+			Object next = queue.poll();
+			if (next == null) {
+				LockSupport.park(this); //Woken by send() or close().
+				continue;
+			}
+			
+			try {
+				if (next instanceof Delivery) {
+					Delivery delivery = (Delivery) next;
+					delivery.packet.protocol = delivery.protocol; //Not synchronized, see the class comment.
+					next = delivery.packet;
+				}
+				receiver.accept(next);
+			} catch (RuntimeException e) { //Handler's exception shouldn't end the connection.
+				e.printStackTrace(System.err);
+			}
+		}
+		queue.clear();
+	}
+	
+	/**
+	 * Stops handing packets to the receiver, and drops the ones still waiting. Safe to call multiple times.
+	 */
+	void close() {
+		if (closed.compareAndSet(false, true)) {
+			LockSupport.unpark(thread);
+			onClose.run();
+		}
+	}
+	
+	boolean isClosed() {
+		return closed.get();
+	}
+}
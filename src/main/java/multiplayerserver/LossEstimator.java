@@ -0,0 +1,55 @@
+package multiplayerserver;
+
+/**
+ * Estimates UDP packet loss from the sequence numbers of the UDP heartbeats the peer sends.
+ * Gaps in the sequence are counted as lost, and the loss is averaged over a few windows of heartbeats.
+ * Used by Protocol.AUTO.
+ */
+class LossEstimator {
+	private static final int WINDOW = 10; //Heartbeats per sample.
+	private static final int RESTART_GAP = 1000; //Sequence going back this much means the peer started counting again.
+	
+	private int highest = 0;
+	private int expected = 0;
+	private int received = 0;
+	private double loss = 0;
+	private boolean measured = false;
+	private volatile boolean anyReceived = false;
+	
+	synchronized void received(int sequence) {
+		anyReceived = true;
+		
+		if (sequence <= highest) {
+			if (highest - sequence < RESTART_GAP) {
+				return; //Late or duplicate, already counted as lost.
+			}
+			highest = sequence - 1;
+		}
+		
+		expected += sequence - highest;
+		received++;
+		highest = sequence;
+		
+		if (expected >= WINDOW) {
+			double sample = 1 - (double) received / expected;
+			loss = measured ? (loss + sample) / 2 : sample;
+			measured = true;
+			expected = 0;
+			received = 0;
+		}
+	}
+	
+	/**
+	 * @return True if at least one UDP heartbeat has arrived, so UDP isn't blocked.
+	 */
+	boolean hasReceived() {
+		return anyReceived;
+	}
+	
+	/**
+	 * @return Estimated share of UDP packets lost, from 0 to 1. 0 until enough heartbeats have arrived.
+	 */
+	synchronized double getLoss() {
+		return loss;
+	}
+}
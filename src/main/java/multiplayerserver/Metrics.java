@@ -0,0 +1,54 @@
+package multiplayerserver;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simple named counters, for example how many packets were dropped for slow clients.
+ * Counters are created on first use, and are cheap to increment from multiple threads.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * long dropped = server.getMetrics().get(Metrics.BACKPRESSURE_DROPPED);
+ * System.out.println(server.getMetrics().snapshot());}</pre>
+ */
+public class Metrics {
+	public static final String BACKPRESSURE_DROPPED = "backpressure.dropped";			//Unreliable packets dropped because the client was over its outbound budget.
+	public static final String BACKPRESSURE_DISCONNECTED = "backpressure.disconnected";	//Clients disconnected for exceeding their outbound budget.
+	public static final String SCHEDULER_DEFERRED = "scheduler.deferred";				//Packets that waited for a later tick because the client's bandwidth was used up.
+	public static final String RATE_LIMITED = "ratelimit.rejected";					//Received packets dropped because the client sent too many of that type.
+	public static final String RATE_LIMIT_DISCONNECTED = "ratelimit.disconnected";	//Clients disconnected for going too far over their rate limits.
+	public static final String FRAMES_REJECTED = "receive.rejected";					//Received frames with invalid or too large lengths.
+	public static final String MULTICAST_SENT = "multicast.sent";						//UDP packets sent once to the multicast group instead of to each client.
+	public static final String QUEUE_REPLACED = "queue.replaced";						//Queued packets replaced by a newer one with the same key, see PacketOptions.coalesce().
+	
+	private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	
+	public void increment(String name) {
+		add(name, 1);
+	}
+	
+	public void add(String name, long amount) {
+		counters.computeIfAbsent(name, k -> new LongAdder()).add(amount);
+	}
+	
+	/**
+	 * @param name
+	 * @return Current value of the counter, or 0 if it has never been incremented.
+	 */
+	public long get(String name) {
+		LongAdder counter = counters.get(name);
+		return counter != null ? counter.sum() : 0;
+	}
+	
+	/**
+	 * @return Copy of all counters sorted by name.
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> map = new TreeMap<>();
+		counters.forEach((name, counter) -> map.put(name, counter.sum()));
+		return map;
+	}
+}
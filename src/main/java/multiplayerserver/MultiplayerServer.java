@@ -37,7 +37,7 @@ public class MultiplayerServer {
 				packetRegistryClient.register(MovePacket.class, p -> System.out.println("Host client received move packet!"));
 				packetRegistryClient.register(RawDataPacket.class, p -> System.out.println("Host client received raw data packet! " + p.extraText + " " + Arrays.toString(p.getData())));
 				
-				client.connect();
+				client.connect(server); //Host client is in the same JVM, so it skips the sockets.
 			} catch (IOException e) {
 				e.printStackTrace(System.err);
 			}
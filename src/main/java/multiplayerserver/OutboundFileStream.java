@@ -0,0 +1,136 @@
+package multiplayerserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import multiplayerserver.packets.FileChunkPacket;
+import multiplayerserver.packets.PacketRegistry;
+
+/**
+ * A file (or a region of a file) that is being sent to a client in chunks (FileChunkPacket).
+ * Chunks are written from the file to the socket with FileChannel.transferTo(), so the file never goes through the Java heap.
+ * Like other streams, the chunks are sent in between the normal packets.
+ */
+public class OutboundFileStream extends OutboundStream {
+	private final FileChannel file;
+	private final String name;
+	private final long position;
+	private final int chunkSize;
+	private final PacketRegistry registry;
+	
+	private long offset = 0;
+	
+	/**
+	 * Opens the file for reading. It's closed when the stream has been written or it fails.
+	 * @param path
+	 * @param position Where the region starts in the file.
+	 * @param count Length of the region, or -1 for the rest of the file.
+	 * @param name Name that is sent to the client.
+	 * @param transferId Unique per transfer.
+	 * @param priority
+	 * @param chunkSize
+	 * @param registry Used for serializing the chunk headers.
+	 * @param listener Can be null.
+	 * @return
+	 * @throws IOException 
+	 */
+	public static OutboundFileStream open(Path path, long position, long count, String name, int transferId, int priority, int chunkSize, PacketRegistry registry, StreamProgressListener listener) throws IOException {
+		FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long length = count >= 0 ? Math.min(count, file.size() - position) : file.size() - position;
+			return new OutboundFileStream(file, position, Math.max(length, 0), name, transferId, priority, chunkSize, registry, listener);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+	
+	private OutboundFileStream(FileChannel file, long position, long length, String name, int transferId, int priority, int chunkSize, PacketRegistry registry, StreamProgressListener listener) {
+		super(transferId, priority, null, length, listener);
+		this.file = file;
+		this.position = position;
+		this.name = name;
+		this.chunkSize = chunkSize;
+		this.registry = registry;
+	}
+	
+	@Override
+	public boolean hasNextChunk() {
+		return offset < getLength() || (getLength() == 0 && offset == 0);
+	}
+	
+	@Override
+	public TCPFrame nextChunk() {
+		int regionLength = (int) Math.min(chunkSize, getLength() - offset);
+		
+		FileChunkPacket chunk = new FileChunkPacket(getStreamId(), name, getLength(), offset, regionLength);
+		chunk.protocol = Protocol.TCP;
+		
+		FileRegionFrame frame = new FileRegionFrame(registry.serializeToBytes(chunk), position + offset, regionLength);
+		frame.setOnWritten(() -> chunkWritten(regionLength));
+		
+		offset += regionLength;
+		if (getLength() == 0) {
+			offset = 1; //Empty file is sent as one empty chunk.
+		}
+		return frame;
+	}
+	
+	@Override
+	protected void done() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
+	/**
+	 * Frame where the raw data is a region of the file. It's never compressed, it's read straight from the socket to the file.
+	 */
+	private class FileRegionFrame extends TCPFrame {
+		private final byte[] jsonBytes;
+		private final long filePosition;
+		private final int regionLength;
+		
+		private FileRegionFrame(byte[] jsonBytes, long filePosition, int regionLength) {
+			this.jsonBytes = jsonBytes;
+			this.filePosition = filePosition;
+			this.regionLength = regionLength;
+		}
+		
+		@Override
+		public int size() {
+			return jsonBytes.length + regionLength;
+		}
+		
+		@Override
+		public void writeTCP(OutputStream out, SocketChannel channel) throws IOException {
+			if (channel == null) {
+				throw new IOException("Socket has no channel, can't send a file");
+			}
+			
+			out.write(ByteBuffer.allocate(Constants.PACKET_LENGTH_PREFIX_BYTES * 2).putInt(size()).putInt(jsonBytes.length).array());
+			out.write(jsonBytes);
+			out.flush(); //Header needs to be written before the file region.
+			
+			long transferred = 0;
+			while (transferred < regionLength) {
+				long n = file.transferTo(filePosition + transferred, regionLength - transferred, channel);
+				if (n <= 0) {
+					throw new IOException("File ended before the region was sent");
+				}
+				transferred += n;
+			}
+		}
+		
+		@Override
+		public void writeTCP(OutputStream out) throws IOException {
+			throw new IOException("File region can only be written to a socket channel");
+		}
+	}
+}
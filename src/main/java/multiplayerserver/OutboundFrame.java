@@ -0,0 +1,160 @@
+package multiplayerserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Already serialized packet waiting to be sent.
+ * Contains the json bytes (with the className prefix) and the raw data bytes if the packet was a DataPacket.
+ * Can be sent with both TCP and UDP.
+ */
+public class OutboundFrame extends TCPFrame {
+	private final byte[] jsonBytes;
+	private final byte[] rawBytes;
+	private final UUID senderUuid;
+	private String typeName;
+	private byte[] udpBytes;
+	private PayloadCodec compressedWith;
+	private byte[] compressed; //Null if compressing didn't make it smaller.
+	
+	public OutboundFrame(byte[] jsonBytes, byte[] rawBytes, UUID senderUuid) {
+		this.jsonBytes = jsonBytes;
+		this.rawBytes = rawBytes;
+		this.senderUuid = senderUuid;
+	}
+	
+	public byte[] getJsonBytes() {
+		return jsonBytes;
+	}
+	
+	public byte[] getRawBytes() {
+		return rawBytes;
+	}
+	
+	public UUID getSenderUuid() {
+		return senderUuid;
+	}
+	
+	/**
+	 * @return Bytes of payload in this frame, without the length prefixes.
+	 */
+	@Override
+	public int size() {
+		return jsonBytes.length + (rawBytes != null ? rawBytes.length : 0);
+	}
+	
+	/**
+	 * Packet className from the start of the json bytes (the part before the <code>':'</code>).
+	 * Only parsed when needed.
+	 * @return 
+	 */
+	public String getTypeName() {
+		if (typeName == null) {
+			int end = 0;
+			while (end < jsonBytes.length && jsonBytes[end] != ':') {
+				end++;
+			}
+			typeName = new String(jsonBytes, 0, end, StandardCharsets.UTF_8);
+		}
+		return typeName;
+	}
+	
+	/**
+	 * Writes the frame in TCP format:
+	 * [4 bytes total length][4 bytes json length][json bytes][raw data bytes]
+	 * (Total length is just json bytes + raw data bytes)
+	 * @param out
+	 * @throws IOException 
+	 */
+	@Override
+	public void writeTCP(OutputStream out) throws IOException {
+		out.write(ByteBuffer.allocate(Constants.PACKET_LENGTH_PREFIX_BYTES * 2).putInt(size()).putInt(jsonBytes.length).array());
+		out.write(jsonBytes);
+		if (rawBytes != null) {
+			out.write(rawBytes);
+		}
+	}
+	
+	/**
+	 * Writes the frame compressed, if the client agreed on a codec and the frame is over the threshold.
+	 * @param out
+	 * @param channel
+	 * @param compression Null if the client doesn't use compression.
+	 * @throws IOException 
+	 */
+	@Override
+	void writeTCP(OutputStream out, SocketChannel channel, Compression compression) throws IOException {
+		byte[] compressed = compressed(compression);
+		if (compressed == null) {
+			writeTCP(out, channel);
+			return;
+		}
+		
+		out.write(ByteBuffer.allocate(Constants.PACKET_LENGTH_PREFIX_BYTES * 2 + Compression.HEADER_BYTES)
+				.putInt(Compression.HEADER_BYTES + compressed.length).putInt(jsonBytes.length | Compression.FLAG)
+				.putInt(size()).put((byte) compression.index).array());
+		out.write(compressed);
+	}
+	
+	/**
+	 * Compressed once per codec and cached, like the UDP bytes, since the same frame is often sent to many clients.
+	 * @param compression
+	 * @return Compressed json and raw bytes, or null if the frame should be sent uncompressed.
+	 */
+	private synchronized byte[] compressed(Compression compression) {
+		if (compression == null || size() < compression.threshold) {
+			return null;
+		}
+		
+		if (compressedWith != compression.codec) {
+			compressed = compression.compress(jsonBytes, rawBytes);
+			compressedWith = compression.codec;
+		}
+		return compressed;
+	}
+	
+	/**
+	 * @return True if the frame fits in the receiver's UDP buffer.
+	 */
+	public boolean fitsUDP() {
+		return Constants.PACKET_LENGTH_PREFIX_BYTES + size() <= Constants.MAX_UDP_PACKET_BYTES;
+	}
+	
+	/**
+	 * @param compression Null if the client doesn't use compression.
+	 * @return The frame in UDP format, compressed if it's over the threshold.
+	 */
+	byte[] toUDPBytes(Compression compression) {
+		byte[] compressed = compressed(compression);
+		if (compressed == null) {
+			return toUDPBytes();
+		}
+		
+		return ByteBuffer.allocate(Constants.PACKET_LENGTH_PREFIX_BYTES + Compression.HEADER_BYTES + compressed.length)
+				.putInt(jsonBytes.length | Compression.FLAG).putInt(size()).put((byte) compression.index).put(compressed).array();
+	}
+	
+	/**
+	 * Also used as the bytes of a stream, when the frame is too large to be sent in one go.
+	 * The result is cached, so a frame sent to many clients is only encoded once.
+	 * @return The frame in UDP format: [4 bytes json length][json bytes][raw data bytes]
+	 */
+	public synchronized byte[] toUDPBytes() {
+		if (udpBytes != null) {
+			return udpBytes;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(Constants.PACKET_LENGTH_PREFIX_BYTES + size());
+		buffer.putInt(jsonBytes.length);
+		buffer.put(jsonBytes);
+		if (rawBytes != null) {
+			buffer.put(rawBytes);
+		}
+		udpBytes = buffer.array();
+		return udpBytes;
+	}
+}
@@ -0,0 +1,316 @@
+package multiplayerserver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Per-client queue of TCP frames waiting to be written to the client's socket.
+ * Server writes the frames on a sender thread, so a client that reads slowly only fills
+ * its own queue instead of blocking the thread that sent the packet.
+ * <p>
+ * The queue has a budget of bytes and packets. When it's exceeded the BackpressurePolicy decides
+ * what happens to new packets. Frames that are being written still count towards the budget.
+ * <p>
+ * Large packets are queued as streams. Streams are sent one chunk at a time, and only when there
+ * are no normal frames waiting, so they don't delay the normal packets. Streams don't count towards
+ * the budget, since they hold on to the bytes of the original packet anyway.
+ * <p>
+ * Frames that have a coalesce key (PacketOptions.coalesce()) replace the queued frame with the same key.
+ * The newer frame takes the place of the older one in the queue, so it's sent as soon as the old one would have been.
+ * <p>
+ * If sessions can be resumed, the queue numbers the frames it writes and keeps them until the client acknowledges them
+ * in its heartbeats. When the client resumes, it tells how many frames it got, and the rest are written again.
+ */
+public class OutboundQueue {
+	public enum Result {
+		QUEUED, REPLACED, DROPPED, DISCONNECT;
+	}
+	
+	private final ArrayDeque<TCPFrame> frames = new ArrayDeque<>();
+	private final Map<Object, TCPFrame> newest = new HashMap<>(); //Newest frame for each coalesce key in the queue, sent in place of the queued one.
+	private final PriorityQueue<OutboundStream> streams = new PriorityQueue<>(OutboundStream::compare);
+	private long streamSequence = 0;
+	private long queuedBytes = 0;
+	private long inFlightBytes = 0;
+	private int inFlightPackets = 0;
+	private boolean draining = false;
+	
+	private static final TCPFrame STREAM_CHUNK = new OutboundFrame(new byte[0], null, null); //Kept in place of written stream chunks, they aren't written again since their stream fails.
+	private boolean keepWritten = false;
+	private final ArrayDeque<TCPFrame> unacked = new ArrayDeque<>(); //Written frames the client hasn't acknowledged yet, oldest first.
+	private long unackedBytes = 0;
+	private long writtenFrames = 0; //Sequence number of the last frame taken for writing.
+	private long forgotten = 0; //Frames up to this were dropped from unacked before the client acknowledged them.
+	
+	private long maxBytes = Constants.DEFAULT_OUTBOUND_MAX_BYTES;
+	private int maxPackets = Constants.DEFAULT_OUTBOUND_MAX_PACKETS;
+	private BackpressurePolicy policy = BackpressurePolicy.DROP_UNRELIABLE;
+	
+	/**
+	 * Sets the budget for this client.
+	 * Going over the budget triggers the policy, going over twice the budget always disconnects.
+	 * @param maxBytes
+	 * @param maxPackets
+	 * @param policy 
+	 */
+	public synchronized void setBudget(long maxBytes, int maxPackets, BackpressurePolicy policy) {
+		this.maxBytes = maxBytes;
+		this.maxPackets = maxPackets;
+		this.policy = policy;
+	}
+	
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * Adds a reliable frame to the queue, or applies the policy if over budget.
+	 * @param frame
+	 * @return What happened to the frame.
+	 */
+	public synchronized Result offer(TCPFrame frame) {
+		Object key = frame.getCoalesceKey();
+		if (key != null) {
+			TCPFrame queued = newest.put(key, frame);
+			if (queued != null) {
+				queuedBytes += frame.size() - queued.size();
+				return Result.REPLACED;
+			}
+		}
+		
+		if (isOverBudget(frame.size(), 1)) {
+			newest.remove(key);
+			return Result.DISCONNECT;
+		}
+		
+		frames.add(frame);
+		queuedBytes += frame.size();
+		return Result.QUEUED;
+	}
+	
+	/**
+	 * Checks if reliable frames can be added without the policy disconnecting the client.
+	 * Also used for the frames waiting in the SendScheduler, they are queued here later.
+	 * A single frame is allowed even if it's larger than the budget.
+	 * @param addedBytes
+	 * @param addedPackets
+	 * @return True if the client should be disconnected.
+	 */
+	synchronized boolean isOverBudget(long addedBytes, int addedPackets) {
+		long bytes = queuedBytes + inFlightBytes + addedBytes;
+		int packets = frames.size() + inFlightPackets + addedPackets;
+		
+		if (packets <= 1 || (bytes <= maxBytes && packets <= maxPackets)) {
+			return false;
+		}
+		if (policy == BackpressurePolicy.DISCONNECT) {
+			return true;
+		}
+		return bytes > maxBytes * 2 || packets > maxPackets * 2; //Reliable packets can't be dropped.
+	}
+	
+	/**
+	 * Adds a large packet that will be sent in chunks in between the normal frames.
+	 * @param stream 
+	 */
+	public synchronized void addStream(OutboundStream stream) {
+		stream.setSequence(streamSequence++);
+		streams.add(stream);
+	}
+	
+	/**
+	 * @return True if the client is over its budget, unreliable packets should be dropped then.
+	 */
+	public synchronized boolean isCongested() {
+		return queuedBytes + inFlightBytes >= maxBytes || frames.size() + inFlightPackets >= maxPackets;
+	}
+	
+	/**
+	 * Marks the queue as being drained if it isn't already.
+	 * @return True if the caller should start draining the queue.
+	 */
+	synchronized boolean startDrain() {
+		if (draining || (frames.isEmpty() && streams.isEmpty())) {
+			return false;
+		}
+		draining = true;
+		return true;
+	}
+	
+	/**
+	 * Takes all the queued frames for writing. Call written() after they are written.
+	 * If there are no normal frames, takes the next chunk of the stream with the highest priority.
+	 * Streams with the same priority take turns.
+	 * @return Frames to write, or null if the queue is empty, in which case draining stops.
+	 */
+	synchronized List<TCPFrame> pollBatch() {
+		if (frames.isEmpty()) {
+			OutboundStream stream = streams.poll();
+			if (stream == null) {
+				draining = false;
+				return null;
+			}
+			
+			TCPFrame chunk = stream.nextChunk();
+			if (stream.hasNextChunk()) {
+				addStream(stream); //To the back of the streams with the same priority.
+			}
+			keepWritten(STREAM_CHUNK);
+			
+			inFlightBytes += chunk.size();
+			inFlightPackets++;
+			List<TCPFrame> batch = new ArrayList<>(1);
+			batch.add(chunk);
+			return batch;
+		}
+		
+		List<TCPFrame> batch = new ArrayList<>(frames.size());
+		for (TCPFrame frame : frames) {
+			Object key = frame.getCoalesceKey();
+			TCPFrame sent = key != null ? newest.remove(key) : frame;
+			batch.add(sent);
+			keepWritten(sent);
+		}
+		frames.clear();
+		inFlightBytes += queuedBytes;
+		inFlightPackets += batch.size();
+		queuedBytes = 0;
+		return batch;
+	}
+	
+	/**
+	 * Numbers a frame that is about to be written, and keeps it until the client acknowledges it.
+	 * Frames over the byte budget are forgotten, then the session can't be resumed before the client has acknowledged them.
+	 * @param frame
+	 */
+	private void keepWritten(TCPFrame frame) {
+		if (frame instanceof BatchFrame) { //Numbered like the frames in it, the client can have received only some of them.
+			for (TCPFrame inner : ((BatchFrame) frame).getFrames()) {
+				keepWritten(inner);
+			}
+			return;
+		}
+		
+		writtenFrames++;
+		if (!keepWritten) {
+			forgotten = writtenFrames;
+			return;
+		}
+		
+		unacked.add(frame);
+		unackedBytes += frame.size();
+		while (unackedBytes > maxBytes && !unacked.isEmpty()) {
+			unackedBytes -= unacked.poll().size();
+			forgotten++;
+		}
+	}
+	
+	/**
+	 * Keep written frames until the client acknowledges them, so they can be written again if the client resumes its session.
+	 * @param keepWritten 
+	 */
+	synchronized void setKeepWritten(boolean keepWritten) {
+		this.keepWritten = keepWritten;
+		if (!keepWritten) {
+			acknowledge(writtenFrames);
+		}
+	}
+	
+	/**
+	 * Forgets the frames the client has received.
+	 * @param received How many frames the client has received in this session.
+	 */
+	synchronized void acknowledge(long received) {
+		received = Math.min(received, writtenFrames);
+		while (forgotten < received && !unacked.isEmpty()) {
+			unackedBytes -= unacked.poll().size();
+			forgotten++;
+		}
+		forgotten = Math.max(forgotten, received);
+	}
+	
+	/**
+	 * Puts the frames the client didn't receive before its connection dropped back to the front of the queue.
+	 * Their stream chunks aren't, streams fail when the connection is lost.
+	 * The next frame taken for writing will have number received + 1, which is what the client counts on the new connection.
+	 * @param received How many frames the client has received in this session.
+	 * @return False if some of the frames the client missed have been forgotten, then the session can't be resumed.
+	 */
+	synchronized boolean resume(long received) {
+		if (received < forgotten || received > writtenFrames) {
+			return false;
+		}
+		acknowledge(received);
+		
+		Iterator<TCPFrame> it = unacked.descendingIterator();
+		while (it.hasNext()) {
+			TCPFrame frame = it.next();
+			Object key = frame.getCoalesceKey();
+			if (frame == STREAM_CHUNK || (key != null && newest.containsKey(key))) { //A newer frame with the same key is already queued.
+				continue;
+			}
+			if (key != null) {
+				newest.put(key, frame);
+			}
+			frames.addFirst(frame);
+			queuedBytes += frame.size();
+		}
+		
+		unacked.clear();
+		unackedBytes = 0;
+		writtenFrames = received;
+		forgotten = received;
+		return true;
+	}
+	
+	synchronized void written(List<TCPFrame> batch) {
+		for (TCPFrame frame : batch) {
+			inFlightBytes -= frame.size();
+		}
+		inFlightPackets -= batch.size();
+	}
+	
+	/**
+	 * Called when the connection was lost but the client might resume the session.
+	 * Queued frames are kept so they can be written to the new connection.
+	 * Streams fail, since the chunks that were already written can't be continued on another connection.
+	 */
+	synchronized void suspend() {
+		IOException e = new IOException("Connection lost");
+		streams.forEach(stream -> stream.fail(e));
+		streams.clear();
+	}
+	
+	/**
+	 * Stops draining after writing failed. The frames that are still queued stay in the queue.
+	 */
+	synchronized void stopDrain() {
+		draining = false;
+	}
+	
+	synchronized void clear() {
+		frames.clear();
+		newest.clear();
+		IOException e = new IOException("Client disconnected");
+		streams.forEach(stream -> stream.fail(e));
+		streams.clear();
+		queuedBytes = 0;
+		draining = false;
+		unacked.clear();
+		unackedBytes = 0;
+	}
+	
+	public synchronized long getQueuedBytes() {
+		return queuedBytes + inFlightBytes;
+	}
+	
+	public synchronized int getQueuedPackets() {
+		return frames.size() + inFlightPackets;
+	}
+}
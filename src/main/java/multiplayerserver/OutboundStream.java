@@ -0,0 +1,157 @@
+package multiplayerserver;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import multiplayerserver.packets.PacketRegistry;
+import multiplayerserver.packets.StreamChunkPacket;
+import multiplayerserver.targets.Target;
+
+/**
+ * A large packet that is being sent in chunks (StreamChunkPacket).
+ * The sender writes one chunk at a time from the stream with the highest priority,
+ * and sends normal packets in between the chunks.
+ */
+public class OutboundStream {
+	private final int streamId;
+	private final int priority;
+	private final UUID senderUuid;
+	private final long length;
+	private final StreamProgressListener listener;
+	private final CompletableFuture<Void> future = new CompletableFuture<>();
+	
+	private Target[] targets;
+	private String innerType;
+	private byte[] bytes;
+	private int chunkSize;
+	private PacketRegistry registry;
+	
+	private int offset = 0;			//How much has been cut into chunks
+	private long written = 0;		//How much has been written to the socket
+	private long sequence;			//Order between streams with the same priority, set by the sender
+	
+	/**
+	 * @param frame Frame of the large packet.
+	 * @param streamId Unique per sender.
+	 * @param priority Streams with higher priority are sent first. Streams with the same priority take turns.
+	 * @param targets Targets of the large packet, so the server can forward the chunks.
+	 * @param chunkSize
+	 * @param registry Used for serializing the chunks.
+	 * @param listener Can be null.
+	 */
+	public OutboundStream(OutboundFrame frame, int streamId, int priority, Target[] targets, int chunkSize, PacketRegistry registry, StreamProgressListener listener) {
+		this(streamId, priority, frame.getSenderUuid(), frame.toUDPBytes().length, listener);
+		this.targets = targets;
+		this.innerType = frame.getTypeName();
+		this.bytes = frame.toUDPBytes();
+		this.chunkSize = chunkSize;
+		this.registry = registry;
+	}
+	
+	/**
+	 * For subclasses that cut their chunks from something else than a packet in memory.
+	 * They need to override hasNextChunk() and nextChunk().
+	 * @param streamId
+	 * @param priority
+	 * @param senderUuid
+	 * @param length Total bytes in the stream.
+	 * @param listener 
+	 */
+	protected OutboundStream(int streamId, int priority, UUID senderUuid, long length, StreamProgressListener listener) {
+		this.streamId = streamId;
+		this.priority = priority;
+		this.senderUuid = senderUuid;
+		this.length = length;
+		this.listener = listener;
+	}
+	
+	public boolean hasNextChunk() {
+		return offset < bytes.length;
+	}
+	
+	/**
+	 * Cuts the next chunk. Progress is updated when the returned frame has been written.
+	 * @return 
+	 */
+	public TCPFrame nextChunk() {
+		int chunkLength = Math.min(chunkSize, bytes.length - offset);
+		byte[] data = new byte[chunkLength];
+		System.arraycopy(bytes, offset, data, 0, chunkLength);
+		
+		StreamChunkPacket chunk = new StreamChunkPacket(senderUuid, streamId, innerType, bytes.length, offset, data, targets);
+		chunk.protocol = Protocol.TCP;
+		offset += chunkLength;
+		
+		OutboundFrame frame = new OutboundFrame(registry.serializeToBytes(chunk), data, senderUuid);
+		frame.setOnWritten(() -> chunkWritten(chunkLength));
+		return frame;
+	}
+	
+	/**
+	 * Subclasses set this as the onWritten callback of their chunk frames.
+	 * @param chunkLength 
+	 */
+	protected void chunkWritten(long chunkLength) {
+		written += chunkLength;
+		if (listener != null) {
+			listener.onProgress(senderUuid, streamId, written, length);
+		}
+		if (written == length) {
+			done();
+			future.complete(null);
+		}
+	}
+	
+	void fail(Throwable e) {
+		done();
+		future.completeExceptionally(e);
+	}
+	
+	/**
+	 * Called once when the stream has been written or it failed. Subclasses can release their resources here.
+	 */
+	protected void done() {}
+	
+	public int getStreamId() {
+		return streamId;
+	}
+	
+	public int getPriority() {
+		return priority;
+	}
+	
+	public UUID getSenderUuid() {
+		return senderUuid;
+	}
+	
+	public long getLength() {
+		return length;
+	}
+	
+	/**
+	 * @return Future that completes when the last chunk has been written.
+	 */
+	public CompletableFuture<Void> getFuture() {
+		return future;
+	}
+	
+	long getSequence() {
+		return sequence;
+	}
+	
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+	
+	/**
+	 * Higher priority first, then the one that has waited longest.
+	 * @param a
+	 * @param b
+	 * @return 
+	 */
+	static int compare(OutboundStream a, OutboundStream b) {
+		if (a.priority != b.priority) {
+			return Integer.compare(b.priority, a.priority);
+		}
+		return Long.compare(a.sequence, b.sequence);
+	}
+}
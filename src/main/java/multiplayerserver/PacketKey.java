@@ -0,0 +1,38 @@
+package multiplayerserver;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Packet type, sender and an optional key from PacketOptions, for example an entity id.
+ * Used to find the packet that a newer packet replaces.
+ */
+final class PacketKey {
+	private final Class<?> type;
+	private final UUID sender;
+	private final Object key;
+	
+	PacketKey(Class<?> type, UUID sender, Object key) {
+		this.type = type;
+		this.sender = sender;
+		this.key = key;
+	}
+	
+	UUID getSender() {
+		return sender;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof PacketKey)) {
+			return false;
+		}
+		PacketKey other = (PacketKey) o;
+		return type == other.type && Objects.equals(sender, other.sender) && Objects.equals(key, other.key);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(type, sender, key);
+	}
+}
@@ -0,0 +1,28 @@
+package multiplayerserver;
+
+import java.io.IOException;
+
+/**
+ * Compresses the frames the server sends to a client. The client tells which codecs it can decompress when it connects,
+ * and the server uses the first of its own codecs that the client has too. See Server.setCompression().
+ * Both sides need a codec with the same name, for example new DeflateCodec().
+ * Codecs are used from many threads at once.
+ */
+public interface PayloadCodec {
+	/**
+	 * @return Name that is sent when connecting, the same on the client and the server.
+	 */
+	public String getName();
+	
+	public byte[] compress(byte[] data);
+	
+	/**
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param uncompressedLength Length of the original data.
+	 * @return The original data.
+	 * @throws IOException If the data is corrupted.
+	 */
+	public byte[] decompress(byte[] data, int offset, int length, int uncompressedLength) throws IOException;
+}
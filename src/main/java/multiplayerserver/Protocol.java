@@ -1,5 +1,15 @@
 package multiplayerserver;
 
 public enum Protocol {
-	TCP, UDP;
+	TCP,
+	/**
+	 * A packet that doesn't fit in a datagram is sent over TCP instead.
+	 */
+	UDP,
+	/**
+	 * Chooses per packet and per client. Packet types registered with PacketOptions.unreliable() go over UDP
+	 * if they fit in a datagram, the receiver's UDP port is known and measured UDP loss is low enough, everything else over TCP.
+	 * Only used for sending, received packets always have the protocol they came with.
+	 */
+	AUTO;
 }
@@ -0,0 +1,94 @@
+package multiplayerserver;
+
+/**
+ * Token buckets of one client, for the limits in RateLimits.
+ * Types are matched from the bytes of the frame, so nothing is allocated or parsed.
+ */
+class RateLimiter {
+	private final RateLimits.Limit[] limits;
+	private final RateLimits.Limit others;
+	private final int disconnectAfter;
+	
+	private final double[] tokens; //Last one is for the other types.
+	private final long[] lastRefill;
+	
+	private long rejectWindowStart = 0;
+	private int rejectedInWindow = 0;
+	private volatile long lastUsed = System.currentTimeMillis();
+	
+	RateLimiter(RateLimits limits) {
+		this.limits = limits.getLimits();
+		this.others = limits.getOthers();
+		this.disconnectAfter = limits.getDisconnectAfter();
+		this.tokens = new double[this.limits.length + 1];
+		this.lastRefill = new long[this.limits.length + 1];
+		for (int i = 0; i < this.limits.length; i++) {
+			tokens[i] = this.limits[i].burst;
+		}
+		tokens[this.limits.length] = others != null ? others.burst : 0;
+	}
+	
+	/**
+	 * @param data Frame json, starting with "className:".
+	 * @param offset
+	 * @param length
+	 * @return True if the packet is within the limits. Uses up a token if it is.
+	 */
+	synchronized boolean allow(byte[] data, int offset, int length) {
+		long now = System.currentTimeMillis();
+		lastUsed = now;
+		
+		int nameLength = 0;
+		while (nameLength < length && data[offset + nameLength] != ':') {
+			nameLength++;
+		}
+		
+		int index = limits.length;
+		for (int i = 0; i < limits.length; i++) {
+			if (matches(limits[i].typeName, data, offset, nameLength)) {
+				index = i;
+				break;
+			}
+		}
+		
+		RateLimits.Limit limit = index < limits.length ? limits[index] : others;
+		if (limit == null) {
+			return true;
+		}
+		tokens[index] = Math.min(limit.burst, tokens[index] + limit.perSecond * (now - lastRefill[index]) / 1000.0);
+		lastRefill[index] = now;
+		
+		if (tokens[index] >= 1) {
+			tokens[index]--;
+			return true;
+		}
+		
+		if (now - rejectWindowStart >= 1000) {
+			rejectWindowStart = now;
+			rejectedInWindow = 0;
+		}
+		rejectedInWindow++;
+		return false;
+	}
+	
+	private static boolean matches(byte[] name, byte[] data, int offset, int length) {
+		if (name.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (name[i] != data[offset + i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return True if the client went over its limits so much that it should be disconnected.
+	 */
+	synchronized boolean shouldDisconnect() {
+		return disconnectAfter > 0 && rejectedInWindow >= disconnectAfter;
+	}
+	
+	long getLastUsed() {
+		return lastUsed;
+	}
+}
@@ -0,0 +1,101 @@
+package multiplayerserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import multiplayerserver.packets.HeartbeatPacket;
+import multiplayerserver.packets.Packet;
+import multiplayerserver.packets.SendUuid;
+import multiplayerserver.packets.VirtualClientPacket;
+import multiplayerserver.replication.SnapshotAck;
+
+/**
+ * How many packets a client can send per second, for each packet type. Checked from the type name at the start of the frame,
+ * before the packet is parsed, so a client spamming packets costs the server as little as possible.
+ * Every limit is a token bucket: the client can send a burst of packets at once, and then the given rate.
+ * Packets over the limit are dropped.
+ * <p>
+ * The built-in control packets clients send (SendUuid, HeartbeatPacket, SnapshotAck and VirtualClientPacket) don't count
+ * towards limitOthers(), so a strict limit doesn't cut the connection. Each of them has its own limit of
+ * Constants.CONTROL_PACKETS_PER_SECOND instead, which can be changed with limit().
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * server.setRateLimits(new RateLimits()
+ *         .limit(MovePacket.class, 60, 120)
+ *         .limit(ChatPacket.class, 2, 5)
+ *         .limitOthers(30, 60)
+ *         .disconnectAfter(200)); //Rejected packets per second
+ * }</pre>
+ * Changes only affect clients that connect later.
+ */
+public class RateLimits {
+	static final class Limit {
+		final byte[] typeName; //Null for the limit of the other types.
+		final double perSecond;
+		final double burst;
+		
+		Limit(byte[] typeName, double perSecond, double burst) {
+			this.typeName = typeName;
+			this.perSecond = perSecond;
+			this.burst = burst;
+		}
+	}
+	
+	private final List<Limit> limits = new ArrayList<>();
+	private Limit others = null;
+	private int disconnectAfter = 0;
+	
+	public RateLimits() {
+		for (Class<? extends Packet> type : List.of(SendUuid.class, HeartbeatPacket.class, SnapshotAck.class, VirtualClientPacket.class)) {
+			limit(type, Constants.CONTROL_PACKETS_PER_SECOND, Constants.CONTROL_PACKETS_BURST);
+		}
+	}
+	
+	/**
+	 * @param type Packet type, also works for types only registered on the clients.
+	 * @param perSecond Packets per second on average.
+	 * @param burst How many packets can arrive at once, at least 1.
+	 * @return This, so calls can be chained.
+	 */
+	public synchronized RateLimits limit(Class<? extends Packet> type, double perSecond, double burst) {
+		byte[] name = type.getName().getBytes(StandardCharsets.UTF_8);
+		limits.removeIf(limit -> Arrays.equals(limit.typeName, name));
+		limits.add(new Limit(name, perSecond, Math.max(burst, 1)));
+		return this;
+	}
+	
+	/**
+	 * Limit for all the packet types that don't have their own limit, together.
+	 * @param perSecond
+	 * @param burst
+	 * @return This, so calls can be chained.
+	 */
+	public synchronized RateLimits limitOthers(double perSecond, double burst) {
+		others = new Limit(null, perSecond, Math.max(burst, 1));
+		return this;
+	}
+	
+	/**
+	 * Disconnects a client that sends this many packets over its limits within a second. Only drops the packets by default.
+	 * @param rejectedPerSecond 0 to never disconnect.
+	 * @return This, so calls can be chained.
+	 */
+	public synchronized RateLimits disconnectAfter(int rejectedPerSecond) {
+		this.disconnectAfter = rejectedPerSecond;
+		return this;
+	}
+	
+	public synchronized int getDisconnectAfter() {
+		return disconnectAfter;
+	}
+	
+	synchronized Limit[] getLimits() {
+		return limits.toArray(new Limit[0]);
+	}
+	
+	synchronized Limit getOthers() {
+		return others;
+	}
+}
@@ -0,0 +1,57 @@
+package multiplayerserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import multiplayerserver.packets.Packet;
+
+/**
+ * Latest packet of each retained packet type (PacketOptions.retain()) from each client, and key if the type has one.
+ * Packets are kept already serialized, so sending them to a client that joins later doesn't serialize anything.
+ */
+class RetainedPackets {
+	static final class Entry {
+		final Packet packet; //For resolving the targets when a client joins.
+		final OutboundFrame frame;
+		
+		private Entry(Packet packet, OutboundFrame frame) {
+			this.packet = packet;
+			this.frame = frame;
+		}
+	}
+	
+	private final Map<PacketKey, Entry> entries = new ConcurrentHashMap<>();
+	
+	/**
+	 * Replaces the previous packet with the same type, sender and key.
+	 * @param packet
+	 * @param key Can be null.
+	 * @param frame Serialized packet.
+	 */
+	void put(Packet packet, Object key, OutboundFrame frame) {
+		entries.put(new PacketKey(packet.getClass(), packet.senderUuid, key), new Entry(packet, frame));
+	}
+	
+	/**
+	 * Removes the packets of a client that left, its state isn't current anymore.
+	 * @param senderUuid 
+	 */
+	void removeSender(UUID senderUuid) {
+		entries.keySet().removeIf(key -> Objects.equals(key.getSender(), senderUuid));
+	}
+	
+	List<Entry> getEntries() {
+		return new ArrayList<>(entries.values());
+	}
+	
+	int size() {
+		return entries.size();
+	}
+	
+	void clear() {
+		entries.clear();
+	}
+}
@@ -0,0 +1,190 @@
+package multiplayerserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits the bandwidth the server uses for one client. Off by default, see Server.setBandwidthLimit().
+ * <p>
+ * While limited, packets sent to the client wait here, and on every tick the server sends as many as the bandwidth allows.
+ * Every tick each waiting packet's accumulated priority grows by its priority, and the packets with the highest
+ * accumulated priority go first. So important packets are sent right away, and less important ones are delayed,
+ * but they get sent eventually, since their accumulated priority keeps growing.
+ * Packets with the same priority keep their order, packets with different priorities can pass each other.
+ * <p>
+ * If more than the client's outbound budget is waiting, the UDP packets with the lowest accumulated priority are dropped.
+ * TCP packets are never dropped here. Waiting TCP packets count towards the outbound budget together with the outbound queue,
+ * and going over it applies the BackpressurePolicy like the queue does.
+ * <p>
+ * A packet with a coalesce key (PacketOptions.coalesce()) replaces the waiting packet with the same key, and takes its place.
+ */
+public class SendScheduler {
+	enum Result {
+		SEND, DEFERRED, REPLACED, DISCONNECT;
+	}
+	
+	static final class Entry {
+		OutboundFrame frame;
+		Protocol protocol;
+		final double priority;
+		double accumulated = 0;
+		
+		Entry(OutboundFrame frame, Protocol protocol, double priority) {
+			this.frame = frame;
+			this.protocol = protocol;
+			this.priority = priority;
+		}
+	}
+	
+	private long bytesPerSecond = 0;
+	private double allowance = 0; //Bytes that can be sent, negative after sending a frame larger than what was left.
+	private long lastTick = 0;
+	
+	private final List<Entry> pending = new ArrayList<>();
+	private final Map<Object, Entry> keyed = new HashMap<>(); //Waiting entries that have a coalesce key.
+	private long pendingBytes = 0;
+	private long reliableBytes = 0; //Part of pendingBytes that is waiting to go to the outbound queue.
+	private int reliablePackets = 0;
+	
+	/**
+	 * @param bytesPerSecond 0 to send everything right away.
+	 */
+	public synchronized void setBandwidth(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+	
+	public synchronized long getBandwidth() {
+		return bytesPerSecond;
+	}
+	
+	public synchronized boolean isLimited() {
+		return bytesPerSecond > 0;
+	}
+	
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+	
+	/**
+	 * @param frame
+	 * @param protocol
+	 * @param priority
+	 * @param queue Outbound queue of the client, its budget is checked for reliable frames that have to wait.
+	 * @return SEND if the frame can be sent right away, DEFERRED if it was added to wait for a later tick,
+	 * REPLACED if it took the place of a waiting frame with the same key, and DISCONNECT if it would go over the budget.
+	 */
+	synchronized Result offer(OutboundFrame frame, Protocol protocol, double priority, OutboundQueue queue) {
+		Object key = frame.getCoalesceKey();
+		Entry waiting = key != null ? keyed.get(key) : null;
+		if (waiting != null) {
+			remove(waiting);
+			waiting.frame = frame;
+			waiting.protocol = protocol;
+			add(waiting);
+			return Result.REPLACED;
+		}
+		
+		if (pending.isEmpty() && allowance > 0) { //Nothing waiting and bandwidth left on this tick.
+			allowance -= frame.size();
+			return Result.SEND;
+		}
+		
+		if (protocol != Protocol.UDP && queue.isOverBudget(reliableBytes + frame.size(), reliablePackets + 1)) {
+			return Result.DISCONNECT;
+		}
+		
+		Entry entry = new Entry(frame, protocol, priority);
+		pending.add(entry);
+		add(entry);
+		if (key != null) {
+			keyed.put(key, entry);
+		}
+		return Result.DEFERRED;
+	}
+	
+	/**
+	 * Counts the entry's frame as waiting.
+	 * @param entry 
+	 */
+	private void add(Entry entry) {
+		pendingBytes += entry.frame.size();
+		if (entry.protocol != Protocol.UDP) {
+			reliableBytes += entry.frame.size();
+			reliablePackets++;
+		}
+	}
+	
+	/**
+	 * Stops counting the entry's frame as waiting. Doesn't remove it from the list.
+	 * @param entry 
+	 */
+	private void remove(Entry entry) {
+		pendingBytes -= entry.frame.size();
+		if (entry.protocol != Protocol.UDP) {
+			reliableBytes -= entry.frame.size();
+			reliablePackets--;
+		}
+	}
+	
+	/**
+	 * Picks the frames to send on this tick.
+	 * @param now Current time in milliseconds.
+	 * @param maxPendingBytes UDP frames are dropped while more than this is waiting.
+	 * @param dropped Gets the dropped frames, for counting.
+	 * @return Frames to send, in order.
+	 */
+	synchronized List<Entry> poll(long now, long maxPendingBytes, List<Entry> dropped) {
+		long elapsed = lastTick == 0 ? 0 : now - lastTick;
+		lastTick = now;
+		
+		if (bytesPerSecond <= 0) { //Limit was turned off, send the rest.
+			List<Entry> all = new ArrayList<>(pending);
+			clear();
+			return all;
+		}
+		
+		double tickBytes = bytesPerSecond * elapsed / 1000.0;
+		allowance = Math.min(allowance + tickBytes, tickBytes); //Unused bandwidth is only saved for one tick, more would allow bursts.
+		if (pending.isEmpty()) {
+			return List.of();
+		}
+		
+		for (Entry entry : pending) {
+			entry.accumulated += entry.priority;
+		}
+		pending.sort((a, b) -> Double.compare(b.accumulated, a.accumulated)); //Stable, so older ones stay first.
+		
+		List<Entry> due = new ArrayList<>();
+		Iterator<Entry> it = pending.iterator();
+		while (allowance > 0 && it.hasNext()) {
+			Entry entry = it.next();
+			it.remove();
+			remove(entry);
+			keyed.remove(entry.frame.getCoalesceKey(), entry);
+			allowance -= entry.frame.size();
+			due.add(entry);
+		}
+		
+		for (int i = pending.size() - 1; i >= 0 && pendingBytes > maxPendingBytes; i--) { //Lowest accumulated priority first.
+			Entry entry = pending.get(i);
+			if (entry.protocol == Protocol.UDP) {
+				pending.remove(i);
+				remove(entry);
+				keyed.remove(entry.frame.getCoalesceKey(), entry);
+				dropped.add(entry);
+			}
+		}
+		return due;
+	}
+	
+	synchronized void clear() {
+		pending.clear();
+		keyed.clear();
+		pendingBytes = 0;
+		reliableBytes = 0;
+		reliablePackets = 0;
+	}
+}
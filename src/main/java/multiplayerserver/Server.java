@@ -1,6 +1,7 @@
 package multiplayerserver;
 
 import com.google.gson.JsonSyntaxException;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
@@ -9,21 +10,48 @@ import java.io.OutputStream;
 import java.net.BindException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import multiplayerserver.journal.PacketJournal;
+import multiplayerserver.packets.BasePacket;
 import multiplayerserver.packets.DataPacket;
+import multiplayerserver.packets.HeartbeatPacket;
+import multiplayerserver.packets.MultiplexPacket;
 import multiplayerserver.packets.Packet;
+import multiplayerserver.packets.PacketOptions;
 import multiplayerserver.packets.PacketRegistry;
 import multiplayerserver.packets.SendUuid;
+import multiplayerserver.packets.SessionInfo;
+import multiplayerserver.packets.SessionRoster;
+import multiplayerserver.packets.StreamChunkPacket;
+import multiplayerserver.packets.VirtualClientPacket;
 import multiplayerserver.targets.ResolveContext;
+import multiplayerserver.targets.Target;
 import multiplayerserver.targets.TargetRegistry;
 
 public class Server {
@@ -31,33 +59,92 @@ public class Server {
 	private ServerSocket tcpSocket;
 	private DatagramSocket udpSocket;
 	
-	private final Map<UUID, ClientInformation> clients = new HashMap<>();
+	private final Map<UUID, ClientInformation> clients = new ConcurrentHashMap<>();
+	private volatile ClientInformation[] sessions = new ClientInformation[16]; //Index is the session ID. Changed under the clients lock, and reassigned after every change so other threads see it.
+	private int lastSessionId = 0; //Guarded by the clients lock.
 	private final PacketRegistry packetRegistry;
 	private final TargetRegistry targetRegistry;
 	
 	private ClientInformation hostClient;
 	
-	private boolean running = false;
+	private volatile boolean running = false;
 	
+	private ScheduledExecutorService timer; //Single thread that sends heartbeats and times out dead clients.
+	private long heartbeatInterval = Constants.DEFAULT_HEARTBEAT_INTERVAL_MS;
+	private long clientTimeout = Constants.DEFAULT_TIMEOUT_MS;
+	private long resumeGrace = 0; //How long a dropped client is kept so it can resume its session, 0 removes it right away.
+	private volatile int maxVirtualClients = 0; //How many virtual clients one connection can add, 0 doesn't allow them.
+	
+	private ExecutorService sender; //Writes the clients' outbound queues, so a slow client never blocks the thread that sends.
+	private long outboundMaxBytes = Constants.DEFAULT_OUTBOUND_MAX_BYTES;
+	private int outboundMaxPackets = Constants.DEFAULT_OUTBOUND_MAX_PACKETS;
+	private BackpressurePolicy backpressurePolicy = BackpressurePolicy.DROP_UNRELIABLE;
+	private volatile double autoMaxUdpLoss = Constants.DEFAULT_AUTO_MAX_UDP_LOSS;
+	private volatile PayloadCodec[] codecs; //Null if frames aren't compressed.
+	private InetAddress multicastGroup; //Null if multicast isn't used.
+	private int multicastPort;
+	private NetworkInterface multicastInterface;
+	private MulticastSocket multicastSocket;
+	private long bandwidthLimit = 0; //Bytes per second for new clients, 0 for no limit.
+	private volatile RateLimits rateLimits = null; //For new clients, null for no limits.
+	private final Map<SocketAddress, RateLimiter> udpLimiters = new ConcurrentHashMap<>(); //UDP packets are limited before the sender is known.
+	private volatile int compressionThreshold;
+	
+	private final Metrics metrics = new Metrics();
+	private final RetainedPackets retained = new RetainedPackets(); //Latest state packets, sent to clients that join later.
+	
+	private volatile PacketJournal journal;
+	
+	private final InboundStreams inboundStreams = new InboundStreams();
+	private final AtomicInteger nextStreamId = new AtomicInteger(0); //Server's stream ids are negative, so they never collide with ids of the client the packet came from.
+	private int streamThreshold = Constants.DEFAULT_STREAM_THRESHOLD_BYTES;
+	private int streamChunkSize = Constants.DEFAULT_STREAM_CHUNK_BYTES;
+	private int maxFrameBytes = Constants.DEFAULT_MAX_FRAME_BYTES;
 	
 	public Server(int serverPort, PacketRegistry registry) { //TODO: Allow separate ports for TCP and UDP
 		this.serverPort = serverPort;
 		this.packetRegistry = registry;
 		
-		targetRegistry = new TargetRegistry();
+		targetRegistry = new TargetRegistry(packetRegistry.getTargetTypes()); //Same IDs for resolving and sending targets.
 	}
 	
 	public void start() throws IOException { //TODO: Make it possible to choose the listening protocol
 		try {
 			running = true;
 			
-			tcpSocket = new ServerSocket(serverPort);
+			ServerSocketChannel tcpChannel = ServerSocketChannel.open(); //Opened through a channel, so files can be sent with FileChannel.transferTo().
+			tcpSocket = tcpChannel.socket();
+			tcpSocket.setReuseAddress(true);
+			tcpSocket.bind(new InetSocketAddress(serverPort));
 			udpSocket = new DatagramSocket(serverPort);
 			
+			if (multicastGroup != null) {
+				multicastSocket = new MulticastSocket();
+				multicastSocket.setTimeToLive(Constants.MULTICAST_TTL);
+				if (multicastInterface != null) {
+					multicastSocket.setNetworkInterface(multicastInterface);
+				}
+				printMessage("Sending broadcasts to multicast group " + multicastGroup.getHostAddress() + ":" + multicastPort);
+			}
+			
 			printMessage("Server started!");
 			
 			new Thread(this::tcpAcceptLoop).start();
 			new Thread(this::udpReceiveLoop).start();
+			
+			timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "Server-timer");
+				t.setDaemon(true);
+				return t;
+			});
+			timer.scheduleAtFixedRate(this::heartbeatTick, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+			timer.scheduleAtFixedRate(this::schedulerTick, Constants.SCHEDULER_TICK_MS, Constants.SCHEDULER_TICK_MS, TimeUnit.MILLISECONDS);
+			
+			sender = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "Server-sender");
+				t.setDaemon(true);
+				return t;
+			});
 		} catch (BindException e) {
 			printMessage("TCP port already in use");
 			throw e;
@@ -80,9 +167,15 @@ public class Server {
 				printMessage("New client connected: " + clientSocket.getRemoteSocketAddress());
 				
 				ClientInformation client = new ClientInformation(clientSocket, packetRegistry);
+				client.getOutboundQueue().setBudget(outboundMaxBytes, outboundMaxPackets, backpressurePolicy);
+				client.getOutboundQueue().setKeepWritten(resumeGrace > 0);
+				client.getScheduler().setBandwidth(bandwidthLimit);
+				if (rateLimits != null) {
+					client.setRateLimits(rateLimits);
+				}
                 
 				new Thread(() -> tcpClientLoop(client)).start();
-			} catch (SocketException e) {
+			} catch (SocketException | ClosedChannelException e) { //Channel's socket can throw either when closed.
 				printMessage("ServerSocket closed! Stopping listener.");
 				break;
 			} catch (IOException e) {
@@ -94,37 +187,74 @@ public class Server {
 	private void tcpClientLoop(ClientInformation client) {
 		printMessage("Listening InputStream!");
 		
-		try (Socket socket = client.getTcpSocket();
-				InputStream in = socket.getInputStream();
+		Socket socket = client.getTcpSocket();
+		
+		try (InputStream in = ChannelStreams.inputOf(socket);
 				DataInputStream dataInput = new DataInputStream(in)) {
 			
 			while (running) {
 				int totalLength = dataInput.readInt();
 				int jsonLength = dataInput.readInt();
+				if (!FrameLimits.isValidTCP(totalLength, jsonLength, maxFrameBytes, false)) { //Stream can't be trusted after a bad header.
+					printMessage("Client sent an invalid or too large frame (" + totalLength + " bytes), disconnecting: " + client.getUuid());
+					metrics.increment(Metrics.FRAMES_REJECTED);
+					removeClient(client);
+					return;
+				}
+				
 				byte[] jsonBytes = new byte[jsonLength];
 				dataInput.readFully(jsonBytes);
 				
-				String json = new String(jsonBytes);
+				byte[] rawBytes = new byte[totalLength - jsonLength]; //Might be empty
+				dataInput.readFully(rawBytes);
+				
+				RateLimiter limiter = client.getRateLimiter();
+				if (limiter != null && !limiter.allow(jsonBytes, 0, jsonBytes.length)) { //Checked before parsing, so spam is cheap to drop.
+					metrics.increment(Metrics.RATE_LIMITED);
+					if (limiter.shouldDisconnect()) {
+						printMessage("Client disconnected for going over its rate limits: " + client.getUuid());
+						metrics.increment(Metrics.RATE_LIMIT_DISCONNECTED);
+						removeClient(client);
+						return;
+					}
+					continue;
+				}
+				
+				client.markReceived();
+				record(client.getUuid(), Protocol.TCP, jsonBytes, rawBytes);
 				
 				try {
-					if (!packetRegistry.isPacketRegistered(json)) { //If the packet isn't registered on the server we can still forward it to other clients.
-						Packet basePacket = packetRegistry.parseAsBasePacket(json);
-						byte[] rawBytes = new byte[totalLength - jsonLength]; //Might be empty
-						dataInput.readFully(rawBytes);
+					if (!packetRegistry.isPacketRegistered(jsonBytes)) { //If the packet isn't registered on the server we can still forward it to other clients.
+						Packet basePacket = packetRegistry.parseAsBasePacket(jsonBytes);
+						
+						if (client.getUuid() != null) {
+							boolean hasSender = basePacket.senderId != 0 || basePacket.senderUuid != null;
+							if (!setSender(client, basePacket)) {
+								continue;
+							}
+							if (!hasSender) { //Receivers need to know who sent it.
+								jsonBytes = PacketRegistry.withSenderId(jsonBytes, client.getSessionId());
+							}
+						}
+						
 						forwardPayload(basePacket, jsonBytes, rawBytes, Protocol.TCP);
 						continue;
 					}
 					
-					Packet packet = packetRegistry.parsePacket(json);
+					Packet packet = packetRegistry.parsePacket(jsonBytes);
 					
-					if (client.getUuid() == null) { //First time receiving a packet, set uuid and add to clients list.
-						client.setUuid(packet.senderUuid);
-						addClient(client);
+					if (client.getUuid() == null) { //First time receiving a packet, add to clients list or resume the session.
+						client = handshake(client, packet);
 					} else if (clients.containsKey(client.getUuid()) && !(clients.get(client.getUuid()).equals(client))) {
 						//If client was created with UDP, then use the already added client, and add tcpSocket to it.
 						ClientInformation temp = client;
 						client = clients.get(client.getUuid());
 						client.setTcpSocket(temp.getTcpSocket());
+						client.markReceived();
+					}
+					
+					if (!setSender(client, packet)) {
+						continue;
 					}
 					
 					//If packet was SendUuid, then we can set udpPort too.
@@ -133,16 +263,17 @@ public class Server {
 						client.setUdpPort(p.udpPort);
 					}
 					
-					if (packet instanceof DataPacket) { //Manually read and set the raw data if packet is DataPacket
-						DataPacket dataPacket = (DataPacket) packet;
-						byte[] rawBytes = new byte[dataPacket.dataLength];
-						dataInput.readFully(rawBytes);
-						
-						dataPacket.setData(rawBytes);
+					if (packet instanceof VirtualClientPacket) {
+						handleVirtualClient(client, (VirtualClientPacket) packet);
+						continue;
+					}
+					
+					if (packet instanceof HeartbeatPacket) {
+						client.getOutboundQueue().acknowledge(((HeartbeatPacket) packet).received);
 					}
 					
-					handlePacket(packet, Protocol.TCP);
-				} catch (JsonSyntaxException e) {
+					handleReceived(packet, jsonBytes, rawBytes, Protocol.TCP);
+				} catch (RuntimeException e) { //Malformed packet only loses this packet, not the listener.
 					e.printStackTrace(System.err);
 				}
 			}
@@ -154,13 +285,249 @@ public class Server {
 			e.printStackTrace(System.err);
 		}
 		
-		synchronized (clients) {
-			clients.remove(client.getUuid());
+		connectionLost(client, socket);
+	}
+	
+	/**
+	 * Adds a client that connected with TCP to the clients list, or if it sent the resume token
+	 * of a session that is still kept, attaches the new connection to that session.
+	 * The frames the client didn't receive on the old connection are written again first.
+	 * If some of them are no longer kept, the old session is removed and the client gets a new one.
+	 * Then the client gets its resume token in a SessionInfo packet.
+	 * @param client
+	 * @param packet First packet received from the connection.
+	 * @return ClientInformation the connection belongs to from now on.
+	 */
+	private ClientInformation handshake(ClientInformation client, Packet packet) {
+		String token = packet instanceof SendUuid ? ((SendUuid) packet).resumeToken : null;
+		ClientInformation previous = getClient(packet.senderUuid);
+		boolean resumed = false;
+		
+		if (previous != null && resumeGrace > 0 && previous.isResumeToken(token)) {
+			long received = ((SendUuid) packet).receivedFrames;
+			Socket oldSocket;
+			synchronized (previous) { //Same lock as taking a batch to write, so the frames after the swap are numbered from received.
+				oldSocket = previous.getTcpSocket();
+				resumed = previous.getOutboundQueue().resume(received);
+				if (resumed) {
+					previous.setTcpSocket(client.getTcpSocket());
+					previous.setIpAddress(client.getIpAddress());
+					previous.markConnected();
+				}
+			}
+			closeQuietly(oldSocket); //Might still be open if the server didn't notice the drop yet.
+			
+			if (resumed) {
+				client = previous;
+				printMessage("Client resumed session: " + client.getUuid());
+			} else {
+				printMessage("Packets the client missed are no longer kept, starting a new session: " + previous.getUuid());
+				previous.getOutboundQueue().clear();
+				removeClient(previous);
+			}
+		}
+		
+		if (!resumed) {
+			client.setUuid(packet.senderUuid);
+			addClient(client);
+		}
+		
+		if (packet instanceof SendUuid) {
+			SendUuid hello = (SendUuid) packet;
+			client.setMulticast(multicastGroup != null && multicastGroup.getHostAddress().equals(hello.multicastGroup) && multicastPort == hello.multicastPort);
+			client.setCompression(Compression.negotiate(codecs, hello.codecs, compressionThreshold));
+			sendTCP(client, createRoster()); //Also starts writing the packets buffered while disconnected.
+			sendTCP(client, new SessionInfo(client.getResumeToken(), client.getSessionId(), resumed, packetRegistry.getTargetTypes().toArray()));
+			if (!resumed) { //Resumed client already has the state, and got the changes from its outbound queue.
+				sendRetained(client);
+			}
+		}
+		return client;
+	}
+	
+	/**
+	 * Sends the retained packets that the client would have received if it had been connected, all in one batch.
+	 * @param client Client that just joined.
+	 */
+	private void sendRetained(ClientInformation client) {
+		List<OutboundFrame> frames = new ArrayList<>();
+		
+		for (RetainedPackets.Entry entry : retained.getEntries()) {
+			Packet packet = entry.packet;
+			if (client.getUuid().equals(packet.senderUuid)) {
+				continue;
+			}
+			
+			boolean toAll = packet.targets != null && packet.targets.length == 1 && packet.targets[0] != null
+					&& Target.ALL.getType().equals(packet.targets[0].getType()); //Most state is sent to everyone, no need to resolve.
+			
+			if (toAll || targetRegistry.resolveTargets(new ResolveContext(this, packet), packet.targets).stream()
+					.anyMatch(target -> client.getUuid().equals(target.getUuid()))) {
+				frames.add(entry.frame);
+			}
+		}
+		
+		if (!frames.isEmpty()) {
+			sendFrameReliable(client, new BatchFrame(frames), Protocol.TCP);
+		}
+	}
+	
+	/**
+	 * Adds or removes a virtual client that shares the link's connection, see Client.addVirtualClient().
+	 * A virtual client is added like a client that connected, and gets its session and the retained packets through the link.
+	 * @param link
+	 * @param packet 
+	 */
+	private void handleVirtualClient(ClientInformation link, VirtualClientPacket packet) {
+		if (packet.uuid == null) {
+			return;
+		}
+		
+		ClientInformation client = getClient(packet.uuid);
+		if (packet.removed) {
+			if (client != null && client.getLink() == link) {
+				removeClient(client);
+			}
+			return;
+		}
+		if (client != null) {
+			printMessage("Virtual client's UUID is already in use: " + packet.uuid);
+			sendTCP(link, new VirtualClientPacket(packet.uuid, true));
+			return;
 		}
+		if (countVirtualClients(link) >= maxVirtualClients) {
+			printMessage("Client can't add more virtual clients: " + link.getUuid());
+			sendTCP(link, new VirtualClientPacket(packet.uuid, true));
+			return;
+		}
+		
+		client = new ClientInformation(link, packet.uuid, packetRegistry);
+		addClient(client); //Link gets the roster update before anything is sent to the new session.
+		printMessage("New virtual client on " + link.getUuid() + ": " + client.getUuid());
+		sendTCP(client, new SessionInfo(null, client.getSessionId(), false, packetRegistry.getTargetTypes().toArray()));
+		sendRetained(client);
+	}
+	
+	private int countVirtualClients(ClientInformation link) {
+		int count = 0;
+		for (ClientInformation client : getClients()) {
+			if (client.getLink() == link) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Forgets the retained packets, for example when a new round starts and the old state doesn't matter.
+	 */
+	public void clearRetained() {
+		retained.clear();
+	}
+	
+	/**
+	 * Fills in the sender of a packet that came from the client's TCP connection.
+	 * Clients only send their session ID, and the connection tells who sent the packet anyway.
+	 * The packet can also be from one of the virtual clients that share the connection.
+	 * @param client
+	 * @param packet
+	 * @return False if the packet claims to be from another client, then it should be dropped.
+	 */
+	private boolean setSender(ClientInformation client, Packet packet) {
+		if (packet == null) {
+			return true;
+		}
+		
+		ClientInformation sender = client;
+		if ((packet.senderId != 0 && packet.senderId != client.getSessionId())
+				|| (packet.senderUuid != null && !packet.senderUuid.equals(client.getUuid()))) {
+			sender = getVirtualSender(client, packet);
+			if (sender == null) {
+				printMessage("Dropped a packet with the wrong sender from: " + client.getUuid());
+				return false;
+			}
+		}
+		
+		packet.senderUuid = sender.getUuid();
+		packet.senderId = sender.getSessionId();
+		return true;
+	}
+	
+	/**
+	 * @param link
+	 * @param packet
+	 * @return Virtual client of the link the packet says it's from, or null if the sender isn't one.
+	 */
+	private ClientInformation getVirtualSender(ClientInformation link, Packet packet) {
+		ClientInformation sender = packet.senderId != 0 ? getClient(packet.senderId) : getClient(packet.senderUuid);
+		if (sender == null || sender.getLink() != link || (packet.senderUuid != null && !packet.senderUuid.equals(sender.getUuid()))) {
+			return null;
+		}
+		return sender;
+	}
+	
+	/**
+	 * Finds the client that sent a UDP packet from the session ID or UUID in it, and fills in both to the packet.
+	 * Session IDs are easy to guess, so a packet with one must come from the client's IP address.
+	 * @param packet
+	 * @param address Where the packet came from.
+	 * @return Client, or null if it isn't known or the packet claims to be from someone else.
+	 */
+	private ClientInformation getUdpSender(Packet packet, InetAddress address) {
+		ClientInformation client;
+		
+		if (packet.senderId != 0) {
+			client = getClient(packet.senderId);
+			if (client == null || !address.equals(client.getIpAddress())
+					|| (packet.senderUuid != null && !packet.senderUuid.equals(client.getUuid()))) {
+				return null;
+			}
+		} else {
+			client = getClient(packet.senderUuid);
+			if (client == null) {
+				return null;
+			}
+		}
+		
+		packet.senderUuid = client.getUuid();
+		packet.senderId = client.getSessionId();
+		return client;
+	}
+	
+	/**
+	 * Called when the client's TCP connection ends. If sessions can be resumed, the client is kept for resumeGrace
+	 * and reliable packets sent to it are buffered in its outbound queue. Otherwise the client is removed.
+	 * Does nothing if the client has already resumed on another connection.
+	 * @param client
+	 * @param socket Connection that ended.
+	 */
+	private void connectionLost(ClientInformation client, Socket socket) {
+		if (client.getUuid() != null && client.getTcpSocket() != socket) { //Already resumed on another connection.
+			closeQuietly(socket);
+			return;
+		}
+		
+		if (client.getUuid() == null || resumeGrace <= 0 || !running) {
+			removeClient(client);
+			return;
+		}
+		
+		synchronized (client) {
+			if (client.getTcpSocket() != socket || client.isDisconnected() || getClient(client.getUuid()) != client) { //Checked again, resume can happen meanwhile.
+				closeQuietly(socket);
+				return;
+			}
+			client.markDisconnected();
+		}
+		
+		closeQuietly(socket);
+		client.getOutboundQueue().suspend();
+		inboundStreams.removeSender(client.getUuid()); //Its unfinished streams can't continue on the new connection.
+		printMessage("Client connection lost, waiting for it to resume: " + client.getUuid());
 	}
 	
 	private void udpReceiveLoop() {
-		byte[] data = new byte[1024];
+		byte[] data = new byte[Constants.MAX_UDP_PACKET_BYTES];
 		DatagramPacket udpPacket = new DatagramPacket(data, data.length);
 		
 		printMessage("Listening UDP!");
@@ -170,45 +537,84 @@ public class Server {
 				udpSocket.receive(udpPacket);
 				
 				ByteBuffer buf = ByteBuffer.wrap(udpPacket.getData(), 0, udpPacket.getLength());
+				if (buf.remaining() < Integer.BYTES || !FrameLimits.isValidUDP(buf.getInt(0), buf.remaining() - Integer.BYTES)) {
+					metrics.increment(Metrics.FRAMES_REJECTED);
+					continue;
+				}
 				int jsonLength = buf.getInt();
 				
+				SocketAddress address = udpPacket.getSocketAddress();
+				RateLimiter limiter = getUdpLimiter(address);
+				if (limiter != null && !limiter.allow(data, Integer.BYTES, jsonLength)) {
+					metrics.increment(Metrics.RATE_LIMITED);
+					if (limiter.shouldDisconnect()) {
+						disconnectUdpSender(udpPacket.getAddress(), udpPacket.getPort());
+					}
+					continue;
+				}
+				
 				byte[] jsonBytes = new byte[jsonLength];
 				buf.get(jsonBytes);
 				
-				String json = new String(jsonBytes);
+				byte[] rawBytes = new byte[buf.remaining()]; //Might be empty
+				buf.get(rawBytes);
 				
 				try {
-					if (!packetRegistry.isPacketRegistered(json)) { //If the packet isn't registered on the server we can still forward it to other clients.
-						Packet basePacket = packetRegistry.parseAsBasePacket(json);
-						byte[] rawBytes = new byte[buf.remaining()]; //Might be empty
-						buf.get(rawBytes);
+					if (!packetRegistry.isPacketRegistered(jsonBytes)) { //If the packet isn't registered on the server we can still forward it to other clients.
+						Packet basePacket = packetRegistry.parseAsBasePacket(jsonBytes);
+						
+						ClientInformation sender = getUdpSender(basePacket, udpPacket.getAddress());
+						if (sender != null) {
+							sender.markReceived();
+						} else if (basePacket.senderId != 0) { //Unknown session, or someone else's.
+							continue;
+						}
+						record(basePacket.senderUuid, Protocol.UDP, jsonBytes, rawBytes);
+						
 						forwardPayload(basePacket, jsonBytes, rawBytes, Protocol.UDP);
 						continue;
 					}
 					
-					Packet packet = packetRegistry.parsePacket(json);
+					Packet packet = packetRegistry.parsePacket(jsonBytes);
+					
+					if (packet == null || (packet.senderUuid == null && packet.senderId == 0)) {
+						continue;
+					}
 					
-					ClientInformation client = clients.get(packet.senderUuid);
+					ClientInformation client = getUdpSender(packet, udpPacket.getAddress());
 					
-					if (client == null) { //If first packet was UDP, we create the ClientInformation.
-						client = new ClientInformation(udpSocket.getInetAddress(), udpSocket.getPort(), packet.senderUuid, packetRegistry);
+					if (client == null) {
+						if (packet.senderId != 0) { //Unknown session, or someone else's.
+							continue;
+						}
+						
+						//If first packet was UDP, we create the ClientInformation.
+						client = new ClientInformation(udpPacket.getAddress(), udpPacket.getPort(), packet.senderUuid, packetRegistry);
+						client.getOutboundQueue().setBudget(outboundMaxBytes, outboundMaxPackets, backpressurePolicy);
+						client.getOutboundQueue().setKeepWritten(resumeGrace > 0);
+						client.getScheduler().setBandwidth(bandwidthLimit);
+						if (rateLimits != null) {
+							client.setRateLimits(rateLimits);
+						}
 						addClient(client);
+						packet.senderId = client.getSessionId();
 					}
-					
-					if (client.getUdpPort() == -1) { //If client was created by TCP, we add the UDP port.
-						client.setUdpPort(udpPacket.getPort());
+					client.markReceived();
+					if (client.getRateLimiter() != null && client.getRateLimiter() != limiter
+							&& udpPacket.getAddress().equals(client.getIpAddress())) { //Client's own limits apply to its UDP packets too, but not to packets that only claim its UUID.
+						udpLimiters.put(address, client.getRateLimiter());
 					}
+					if (packet instanceof HeartbeatPacket && ((HeartbeatPacket) packet).sequence > 0) {
+						client.getLossEstimator().received(((HeartbeatPacket) packet).sequence);
+					}
+					record(packet.senderUuid, Protocol.UDP, jsonBytes, rawBytes);
 					
-					if (packet instanceof DataPacket) { //Manually read and set the raw data if packet is DataPacket
-						DataPacket dataPacket = (DataPacket) packet;
-						byte[] rawBytes = new byte[dataPacket.dataLength];
-						buf.get(rawBytes);
-						
-						dataPacket.setData(rawBytes);
+					if (client.getUdpPort() == -1 && !client.isVirtual()) { //If client was created by TCP, we add the UDP port.
+						client.setUdpPort(udpPacket.getPort());
 					}
 					
-					handlePacket(packet, Protocol.UDP);
-				} catch (JsonSyntaxException e) {
+					handleReceived(packet, jsonBytes, rawBytes, Protocol.UDP);
+				} catch (RuntimeException e) { //Malformed packet only loses this packet, not the listener.
 					e.printStackTrace(System.err);
 				}
 			}
@@ -219,6 +625,108 @@ public class Server {
 		}
 	}
 	
+	/**
+	 * @param address Where a UDP packet came from.
+	 * @return Rate limiter of the address, or null if there are no limits.
+	 */
+	private RateLimiter getUdpLimiter(SocketAddress address) {
+		RateLimiter limiter = udpLimiters.get(address);
+		RateLimits limits = rateLimits;
+		if (limiter == null && limits != null) {
+			limiter = udpLimiters.computeIfAbsent(address, k -> new RateLimiter(limits));
+		}
+		return limiter;
+	}
+	
+	/**
+	 * Removes the client that sends UDP packets from the address, if it's known.
+	 * @param address
+	 * @param port 
+	 */
+	private void disconnectUdpSender(InetAddress address, int port) {
+		for (ClientInformation client : getClients()) {
+			if (client.getUdpPort() == port && address.equals(client.getIpAddress())) {
+				printMessage("Client disconnected for going over its rate limits: " + client.getUuid());
+				metrics.increment(Metrics.RATE_LIMIT_DISCONNECTED);
+				removeClient(client);
+			}
+		}
+	}
+	
+	/**
+	 * Handles a parsed packet that was received from a client (or replayed from a journal).
+	 * @param packet
+	 * @param jsonBytes
+	 * @param rawBytes
+	 * @param protocol 
+	 */
+	private void handleReceived(Packet packet, byte[] jsonBytes, byte[] rawBytes, Protocol protocol) {
+		if (packet instanceof DataPacket) { //Set the raw data if packet is DataPacket
+			DataPacket dataPacket = (DataPacket) packet;
+			dataPacket.setData(rawBytes);
+		}
+		
+		if (packet instanceof HeartbeatPacket) { //Heartbeat only keeps the client alive.
+			return;
+		}
+		
+		if (packet instanceof StreamChunkPacket) {
+			handleStreamChunk((StreamChunkPacket) packet, jsonBytes, protocol);
+			return;
+		}
+		
+		handlePacket(packet, protocol);
+	}
+	
+	private void record(UUID senderUuid, Protocol protocol, byte[] jsonBytes, byte[] rawBytes) {
+		PacketJournal currentJournal = journal;
+		if (currentJournal != null) {
+			currentJournal.record(senderUuid, protocol, jsonBytes, rawBytes);
+		}
+	}
+	
+	/**
+	 * Handles a frame as if it had been received from the sender, without a connection.
+	 * Used for replaying a PacketJournal. Handlers are called and the packet is forwarded to its targets.
+	 * The clients list is not changed.
+	 * @param senderUuid Used if the packet doesn't have a sender.
+	 * @param protocol
+	 * @param jsonBytes
+	 * @param rawBytes 
+	 */
+	public void replayFrame(UUID senderUuid, Protocol protocol, byte[] jsonBytes, byte[] rawBytes) {
+		try {
+			if (!packetRegistry.isPacketRegistered(jsonBytes)) {
+				Packet basePacket = packetRegistry.parseAsBasePacket(jsonBytes);
+				if (basePacket.senderUuid == null) {
+					basePacket.senderUuid = senderUuid;
+				}
+				forwardPayload(basePacket, jsonBytes, rawBytes, protocol);
+				return;
+			}
+			
+			Packet packet = packetRegistry.parsePacket(jsonBytes);
+			if (packet.senderUuid == null) {
+				packet.senderUuid = senderUuid;
+			}
+			ClientInformation sender = getClient(packet.senderUuid); //Session IDs in the journal were given by the server that recorded it.
+			packet.senderId = sender != null ? sender.getSessionId() : 0;
+			handleReceived(packet, jsonBytes, rawBytes, protocol);
+		} catch (JsonSyntaxException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
+	/**
+	 * Records every frame received from the clients to the journal, or stops recording if null.
+	 * Recording only copies the frame to a memory-mapped file, so it's cheap enough to leave on.
+	 * The journal isn't closed by the server.
+	 * @param journal 
+	 */
+	public void setJournal(PacketJournal journal) {
+		this.journal = journal;
+	}
+	
 	/**
 	 * Handles the packet.
 	 * If handler is registered, it calls that.
@@ -230,25 +738,141 @@ public class Server {
 		packetRegistry.callHandler(packet); //TODO: Should these create new threads? (ChatGPT thinks it's not necessary, and this guarantees sequential execution.)
 											//Could add boolean heavyTask to Packet, and only create threads for heavy tasks, or just let handlers create threads.
 		
+		PacketOptions<?> options = packetRegistry.getOptions(packet.getClass());
+		if (options != null && options.isRetained() && packet.senderUuid != null) { //Before sending, loopback clients might get the packet object itself.
+			byte[] rawBytes = packet instanceof DataPacket ? ((DataPacket) packet).getData() : null;
+			retained.put(packet, options.getRetainKey(packet), new OutboundFrame(packetRegistry.serializeCompact(packet), rawBytes, packet.senderUuid));
+		}
+		
 		List<? extends HasUUID> targetClients = targetRegistry.resolveTargets(new ResolveContext(this, packet), packet.targets);
 		sendToClients(targetClients, packet, protocol);
 	}
 	
+	/**
+	 * Connects a Client in the same JVM to this server, called from Client.connect(Server).
+	 * Packets go both ways as objects through LoopbackChannels, without sockets or serialization.
+	 * The client is added like a client that connected with TCP.
+	 * @param client
+	 * @param hello SendUuid of the client.
+	 * @return Channel the client sends its packets to the server with.
+	 * @throws IOException If the server isn't running, or already has a loopback client.
+	 */
+	LoopbackChannel attachLoopback(Client client, SendUuid hello) throws IOException {
+		if (!running) {
+			throw new IOException("Server is not running");
+		}
+		for (ClientInformation other : getClients()) {
+			if (other.isLoopback() && !other.isDisconnected()) { //Packet objects are shared, see LoopbackChannel.
+				throw new IOException("Server already has a loopback client");
+			}
+		}
+		
+		LoopbackChannel toClient = new LoopbackChannel("Loopback-client", client::receiveLoopback, client::loopbackClosed);
+		ClientInformation info = new ClientInformation(toClient, packetRegistry);
+		LoopbackChannel toServer = new LoopbackChannel("Loopback-server", packet -> receiveLoopback(info, (Packet) packet), () -> removeClient(info));
+		
+		printMessage("New loopback client connected: " + hello.senderUuid);
+		handshake(info, hello);
+		return toServer;
+	}
+	
+	/**
+	 * Handles a packet from a loopback client like the TCP listener handles a parsed packet.
+	 * Rate limits aren't checked, the client is in the same process.
+	 * @param client
+	 * @param packet 
+	 */
+	private void receiveLoopback(ClientInformation client, Packet packet) {
+		client.markReceived();
+		if (!setSender(client, packet) || packet instanceof HeartbeatPacket) {
+			return;
+		}
+		if (packet instanceof VirtualClientPacket) {
+			handleVirtualClient(client, (VirtualClientPacket) packet);
+			return;
+		}
+		
+		if (journal != null) { //Journal has frames, so the packet is only serialized when recording.
+			record(client.getUuid(), packet.protocol, packetRegistry.serializeCompact(packet), packet instanceof DataPacket ? ((DataPacket) packet).getData() : null);
+		}
+		
+		if (!packetRegistry.isTypeRegistered(packet.getClass().getName())) { //Only forwarded, like an unregistered payload.
+			sendToClients(targetRegistry.resolveTargets(new ResolveContext(this, packet), packet.targets), packet, packet.protocol);
+			return;
+		}
+		handlePacket(packet, packet.protocol);
+	}
+	
+	/**
+	 * Forwards the chunk of a large packet to its targets right away, so they get the chunks in between their other packets too.
+	 * If the server has registered the packet type, the chunks are also put together and the handler is called with the whole packet.
+	 * @param chunk
+	 * @param jsonBytes
+	 * @param protocol 
+	 */
+	private void handleStreamChunk(StreamChunkPacket chunk, byte[] jsonBytes, Protocol protocol) {
+		forwardPayload(chunk, jsonBytes, chunk.getData(), protocol);
+		
+		if (!packetRegistry.isTypeRegistered(chunk.innerType)) {
+			return;
+		}
+		
+		byte[] streamBytes = inboundStreams.accept(chunk);
+		if (streamBytes == null) {
+			return;
+		}
+		
+		ByteBuffer buf = ByteBuffer.wrap(streamBytes);
+		if (streamBytes.length < Integer.BYTES || !FrameLimits.isValidUDP(buf.getInt(0), streamBytes.length - Integer.BYTES)) {
+			metrics.increment(Metrics.FRAMES_REJECTED);
+			return;
+		}
+		byte[] innerJsonBytes = new byte[buf.getInt()];
+		buf.get(innerJsonBytes);
+		
+		try {
+			Packet packet = packetRegistry.parsePacket(innerJsonBytes);
+			
+			if (packet instanceof DataPacket) {
+				byte[] rawBytes = new byte[buf.remaining()];
+				buf.get(rawBytes);
+				((DataPacket) packet).setData(rawBytes);
+			}
+			
+			packet.senderUuid = chunk.senderUuid; //Chunks' sender was already checked.
+			packet.senderId = chunk.senderId;
+			packetRegistry.callHandler(packet); //Not forwarded again, the chunks were already forwarded.
+		} catch (JsonSyntaxException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
 	private void forwardPayload(Packet packet, byte[] jsonBytes, byte[] rawBytes, Protocol protocol) {
 		List<? extends HasUUID> targetClients = targetRegistry.resolveTargets(new ResolveContext(this, packet), packet.targets);
 		sendPayloadToClients(targetClients, packet.senderUuid, jsonBytes, rawBytes, protocol);
 	}
 	
 	public ClientInformation getClient(UUID uuid) {
+		if (uuid == null) return null;
 		return clients.get(uuid);
 	}
 	
+	/**
+	 * Finds the client by the session ID that its packets carry. Only an array lookup.
+	 * @param sessionId
+	 * @return Client, or null if there is no client with the session ID.
+	 */
+	public ClientInformation getClient(int sessionId) {
+		ClientInformation[] array = sessions;
+		return sessionId > 0 && sessionId < array.length ? array[sessionId] : null;
+	}
+	
 	public List<ClientInformation> getClients() {
 		return new ArrayList<>(clients.values());
 	}
 	
 	public List<ClientInformation> getAllClientsExcept(UUID uuid) {
-		ClientInformation excluded = clients.get(uuid);
+		ClientInformation excluded = getClient(uuid);
 		return clients.values().stream()
 				.filter(c -> c != excluded)
 				.collect(Collectors.toList());
@@ -263,7 +887,7 @@ public class Server {
 	}
 	
 	public boolean isHostClient(UUID uuid) {
-		return isHostClient(clients.get(uuid));
+		return isHostClient(getClient(uuid));
 	}
 	
 	public boolean isHostClient(ClientInformation client) {
@@ -274,7 +898,7 @@ public class Server {
 	}
 	
 	public void setHostClient(UUID uuid) {
-		ClientInformation client = clients.get(uuid);
+		ClientInformation client = getClient(uuid);
 		if (client == null) {
 			System.err.println("Client doesn't exist!");
 		} else {
@@ -302,119 +926,637 @@ public class Server {
 	 * @param protocol
 	 */
 	public void sendToClients(List<? extends HasUUID> clients, Packet packet, Protocol protocol) {
+		List<ClientInformation> loopbackClients = null;
+		Map<ClientInformation, List<ClientInformation>> virtualClients = null; //By their link.
+		boolean toGroup = protocol == Protocol.UDP && sendToGroup(clients, packet.senderUuid, () -> encodeUDP(packet));
+		
 		for (HasUUID client : clients) {
 			if (client.getUuid().equals(packet.senderUuid)) { //Don't send packet back to sender.
 				continue;
 			}
 			
+			ClientInformation info = getClient(client.getUuid());
+			if (toGroup && info != null && info.isMulticast()) { //Already got it from the group.
+				continue;
+			}
+			if (info != null && info.isLoopback()) {
+				if (loopbackClients == null) {
+					loopbackClients = new ArrayList<>(1);
+				}
+				loopbackClients.add(info);
+				continue;
+			}
+			if (info != null && info.isVirtual()) {
+				if (virtualClients == null) {
+					virtualClients = new IdentityHashMap<>();
+				}
+				virtualClients.computeIfAbsent(info.getLink(), k -> new ArrayList<>()).add(info);
+				continue;
+			}
+			
 			sendPacket(client.getUuid(), packet, protocol);
 		}
+		
+		if (virtualClients != null) { //Protocol.AUTO goes over TCP, the link's UDP is shared.
+			PacketOptions<?> options = packetRegistry.getOptions(packet.getClass());
+			OutboundFrame frame = protocol == Protocol.UDP ? encodeUDP(packet) : encodeTCP(packet);
+			sendToVirtual(virtualClients, frame, protocol == Protocol.UDP ? Protocol.UDP : Protocol.TCP,
+					options != null ? options.getPriority() : Constants.DEFAULT_PRIORITY);
+		}
+		if (loopbackClients != null) { //They get the packet object itself, not a serialized copy.
+			for (ClientInformation client : loopbackClients) {
+				sendPacket(client, packet, protocol);
+			}
+		}
 	}
 	
 	public void sendPayloadToClients(List<? extends HasUUID> clients, UUID senderUuid, byte[] jsonBytes, byte[] rawBytes, Protocol protocol) {
+		OutboundFrame frame = new OutboundFrame(jsonBytes, rawBytes, senderUuid); //Same frame is shared by all the recipients.
+		if (protocol == Protocol.UDP && !frame.fitsUDP()) { //Already serialized, so the json still says UDP.
+			protocol = Protocol.TCP;
+		}
+		boolean toGroup = protocol == Protocol.UDP && sendToGroup(clients, senderUuid, () -> frame);
+		Map<ClientInformation, List<ClientInformation>> virtualClients = null; //By their link.
+		
 		for (HasUUID client : clients) {
 			if (client.getUuid().equals(senderUuid)) { //Don't send packet back to sender.
 				continue;
 			}
 			
-			sendPayload(client.getUuid(), jsonBytes, rawBytes, protocol);
+			ClientInformation info = getClient(client.getUuid());
+			if (info != null && info.isVirtual()) {
+				if (virtualClients == null) {
+					virtualClients = new IdentityHashMap<>();
+				}
+				virtualClients.computeIfAbsent(info.getLink(), k -> new ArrayList<>()).add(info);
+			} else if (info != null && !(toGroup && info.isMulticast())) {
+				scheduleFrame(info, frame, protocol, Constants.DEFAULT_PRIORITY);
+			}
 		}
-	}
-	
-	public void sendPacket(UUID uuid, Packet packet, Protocol protocol) {
-		ClientInformation client = clients.get(uuid);
-		if (client == null) return;
 		
-		sendPacket(client, packet, protocol);
+		if (virtualClients != null) {
+			sendToVirtual(virtualClients, frame, protocol == Protocol.UDP ? Protocol.UDP : Protocol.TCP, Constants.DEFAULT_PRIORITY);
+		}
 	}
 	
-	public void sendPacket(ClientInformation client, Packet packet, Protocol protocol) {
-		if (protocol == Protocol.TCP) {
-			sendTCP(client, packet);
-		} else if (protocol == Protocol.UDP) {
-			sendUDP(client, packet);
+	/**
+	 * Sends the frame once to each link, for all of its virtual clients that are recipients.
+	 * @param virtualClients Recipients by the link they share.
+	 * @param frame
+	 * @param protocol
+	 * @param priority 
+	 */
+	private void sendToVirtual(Map<ClientInformation, List<ClientInformation>> virtualClients, OutboundFrame frame, Protocol protocol, double priority) {
+		for (Map.Entry<ClientInformation, List<ClientInformation>> entry : virtualClients.entrySet()) {
+			List<ClientInformation> recipients = entry.getValue();
+			int[] sessionIds = new int[recipients.size()];
+			for (int i = 0; i < sessionIds.length; i++) {
+				sessionIds[i] = recipients.get(i).getSessionId();
+			}
+			sendToVirtual(entry.getKey(), sessionIds, frame, protocol, priority);
 		}
 	}
 	
-	private void sendTCP(ClientInformation client, Packet packet) {
-		packet.protocol = Protocol.TCP; //Set protocol before sending.
-		
-		String json = packetRegistry.serialize(packet);
-		byte[] jsonBytes = json.getBytes();
-		byte[] rawBytes = null;
-		
-		if (packet instanceof DataPacket) {
-			DataPacket dataPacket = (DataPacket) packet;
-			rawBytes = dataPacket.getData();
+	/**
+	 * Wraps the frame in a MultiplexPacket and sends it through the link. The link's bandwidth limit and outbound queue
+	 * are shared by its virtual clients, so their packets are written together in the same batches.
+	 * UDP frames that don't fit in a datagram with the wrapping go over TCP.
+	 * @param link
+	 * @param sessionIds Virtual clients the frame is for.
+	 * @param frame
+	 * @param protocol TCP or UDP.
+	 * @param priority 
+	 */
+	private void sendToVirtual(ClientInformation link, int[] sessionIds, TCPFrame frame, Protocol protocol, double priority) {
+		MultiplexPacket packet = multiplex(sessionIds, frame);
+		if (packet == null) {
+			return;
 		}
 		
-		sendPayloadTCP(client, jsonBytes, rawBytes);
+		OutboundFrame envelope = protocol == Protocol.UDP ? encodeUDP(packet) : null;
+		if (envelope == null || !envelope.fitsUDP()) {
+			envelope = encodeTCP(packet);
+			protocol = Protocol.TCP;
+		}
+		scheduleFrame(link, envelope, protocol, priority);
 	}
 	
-	private void sendUDP(ClientInformation client, Packet packet) {
-		packet.protocol = Protocol.UDP; //Set protocol before sending.
-
-		String json = packetRegistry.serialize(packet); //TODO: Check that the packet isn't too large for UDP
-		
-		byte[] jsonBytes = json.getBytes();
-		byte[] rawBytes = null;
+	/**
+	 * @param sessionIds
+	 * @param frame Can be a BatchFrame.
+	 * @return Packet with the frame in TCP format as its data.
+	 */
+	private MultiplexPacket multiplex(int[] sessionIds, TCPFrame frame) {
+		ByteArrayOutputStream frames = new ByteArrayOutputStream(frame.size() + Constants.PACKET_LENGTH_PREFIX_BYTES * 2);
+		try {
+			frame.writeTCP(frames);
+		} catch (IOException e) { //Frames in memory don't throw.
+			e.printStackTrace(System.err);
+			return null;
+		}
+		return new MultiplexPacket(sessionIds, frames.toByteArray());
+	}
+	
+	/**
+	 * Sends a UDP frame once to the multicast group, instead of once to each client. Only done if every client that listens
+	 * to the group is a recipient, like with Target.ALL, since they all get it. The clients that don't listen still need it sent to them.
+	 * @param clients Recipients.
+	 * @param senderUuid Sender isn't counted, clients ignore their own packets from the group.
+	 * @param frame Only created if the frame is sent to the group.
+	 * @return True if the frame was sent to the group, then the clients that listen to it should be skipped.
+	 */
+	private boolean sendToGroup(List<? extends HasUUID> clients, UUID senderUuid, Supplier<OutboundFrame> frame) {
+		MulticastSocket socket = multicastSocket;
+		if (socket == null) {
+			return false;
+		}
+		
+		int listening = 0;
+		for (HasUUID client : clients) {
+			ClientInformation info = getClient(client.getUuid());
+			if (info != null && info.isMulticast() && !info.getUuid().equals(senderUuid)) {
+				listening++;
+			}
+		}
+		if (listening == 0) {
+			return false;
+		}
+		for (ClientInformation info : this.clients.values()) {
+			if (info.isMulticast() && !info.getUuid().equals(senderUuid)) {
+				listening--;
+			}
+		}
+		if (listening != 0) { //Group has clients that aren't recipients.
+			return false;
+		}
+		
+		OutboundFrame groupFrame = frame.get();
+		if (!groupFrame.fitsUDP()) {
+			return false;
+		}
+		
+		try {
+			byte[] bytes = groupFrame.toUDPBytes(); //Not compressed, clients might have different codecs.
+			socket.send(new DatagramPacket(bytes, bytes.length, multicastGroup, multicastPort));
+			metrics.increment(Metrics.MULTICAST_SENT);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+			return false;
+		}
+	}
+	
+	public void sendPacket(UUID uuid, Packet packet, Protocol protocol) {
+		ClientInformation client = getClient(uuid);
+		if (client == null) return;
+		
+		sendPacket(client, packet, protocol);
+	}
+	
+	/**
+	 * Sends the packet with the priority of its type (PacketOptions.priority()), or the default priority 1.
+	 * The priority only matters if the client's bandwidth is limited, see setBandwidthLimit().
+	 * @param client
+	 * @param packet
+	 * @param protocol 
+	 */
+	public void sendPacket(ClientInformation client, Packet packet, Protocol protocol) {
+		PacketOptions<?> options = packetRegistry.getOptions(packet.getClass());
+		sendPacket(client, packet, protocol, options != null ? options.getPriority() : Constants.DEFAULT_PRIORITY);
+	}
+	
+	/**
+	 * @param client
+	 * @param packet
+	 * @param protocol
+	 * @param priority Used instead of the priority of the packet type, only matters if the client's bandwidth is limited.
+	 */
+	public void sendPacket(ClientInformation client, Packet packet, Protocol protocol, double priority) {
+		if (client.isLoopback()) { //Same JVM, the packet isn't serialized.
+			client.getLoopback().send(packet, protocol == Protocol.UDP ? Protocol.UDP : Protocol.TCP);
+			return;
+		}
+		
+		OutboundFrame frame = null;
+		if (protocol == Protocol.AUTO) {
+			frame = encodeAuto(client, packet);
+			protocol = frame != null ? Protocol.UDP : Protocol.TCP;
+		}
+		if (frame == null) {
+			frame = protocol == Protocol.TCP ? encodeTCP(packet) : encodeUDP(packet);
+		}
+		if (protocol == Protocol.UDP && !frame.fitsUDP()) { //Too large for a datagram, so it goes over TCP instead of failing.
+			frame = encodeTCP(packet);
+			protocol = Protocol.TCP;
+		}
+		
+		scheduleFrame(client, frame, protocol, priority);
+	}
+	
+	/**
+	 * Encodes the packet for UDP if Protocol.AUTO should send it over UDP. Only unreliable packet types are,
+	 * when they fit and the client's UDP works well enough.
+	 * @param client
+	 * @param packet
+	 * @return The UDP frame, or null if the packet should go over TCP.
+	 */
+	private OutboundFrame encodeAuto(ClientInformation client, Packet packet) {
+		PacketOptions<?> options = packetRegistry.getOptions(packet.getClass());
+		boolean udpUsable = client.getUdpPort() != -1 && client.getLossEstimator().hasReceived() //Client's UDP heartbeats get through.
+				&& client.getUdpLoss() <= autoMaxUdpLoss;
+		
+		if (options != null && options.isUnreliable() && udpUsable) {
+			OutboundFrame frame = encodeUDP(packet);
+			if (frame.fitsUDP()) {
+				return frame;
+			}
+		}
+		return null;
+	}
+	
+	private void sendTCP(ClientInformation client, Packet packet) {
+		sendFrame(client, encodeTCP(packet), Protocol.TCP);
+	}
+	
+	private OutboundFrame encodeTCP(Packet packet) {
+		byte[] jsonBytes = packetRegistry.serializeCompact(packet, Protocol.TCP); //Packet isn't modified, it can be sent to other clients at the same time.
+		
+		byte[] rawBytes = null;
+		
+		if (packet instanceof DataPacket) {
+			DataPacket dataPacket = (DataPacket) packet;
+			rawBytes = dataPacket.getData();
+		}
+		
+		OutboundFrame frame = new OutboundFrame(jsonBytes, rawBytes, packet.senderUuid);
+		PacketOptions<?> options = packetRegistry.getOptions(packet.getClass());
+		if (options != null && options.isCoalesced()) {
+			frame.setCoalesceKey(new PacketKey(packet.getClass(), packet.senderUuid, options.getCoalesceKey(packet)));
+		}
+		return frame;
+	}
+	
+	private void sendUDP(ClientInformation client, Packet packet) {
+		sendFrame(client, encodeUDP(packet), Protocol.UDP);
+	}
+	
+	private OutboundFrame encodeUDP(Packet packet) {
+		byte[] jsonBytes = packetRegistry.serializeCompact(packet, Protocol.UDP); //Callers check fitsUDP(), the frame might have to go over TCP.
+		byte[] rawBytes = null;
 		
 		if (packet instanceof DataPacket) {
 			DataPacket dataPacket = (DataPacket) packet;
 			rawBytes = dataPacket.getData();
 		}
 		
-		sendPayloadUDP(client, jsonBytes, rawBytes);
+		return new OutboundFrame(jsonBytes, rawBytes, packet.senderUuid);
 	}
 	
 	public void sendPayload(UUID uuid, byte[] jsonBytes, byte[] rawBytes, Protocol protocol) {
-		ClientInformation client = clients.get(uuid);
+		ClientInformation client = getClient(uuid);
 		if (client == null) return;
 		
 		sendPayload(client, jsonBytes, rawBytes, protocol);
 	}
 	
 	public void sendPayload(ClientInformation client, byte[] jsonBytes, byte[] rawBytes, Protocol protocol) {
-		if (protocol == Protocol.TCP) {
-			sendPayloadTCP(client, jsonBytes, rawBytes);
-		} else if (protocol == Protocol.UDP) {
-			sendPayloadUDP(client, jsonBytes, rawBytes);
+		OutboundFrame frame = new OutboundFrame(jsonBytes, rawBytes, null);
+		if (protocol == Protocol.UDP && !frame.fitsUDP()) { //Already serialized, so the json still says UDP.
+			protocol = Protocol.TCP;
+		}
+		scheduleFrame(client, frame, protocol, Constants.DEFAULT_PRIORITY);
+	}
+	
+	/**
+	 * Sends the frame right away, or lets it wait in the client's SendScheduler if its bandwidth is used up.
+	 * Heartbeats and other packets of the server itself skip the scheduler.
+	 * @param client
+	 * @param frame
+	 * @param protocol
+	 * @param priority 
+	 */
+	private void scheduleFrame(ClientInformation client, OutboundFrame frame, Protocol protocol, double priority) {
+		if (protocol == Protocol.AUTO) {
+			protocol = Protocol.TCP; //Type of a payload isn't known, so it's treated as reliable.
+		}
+		
+		if (client.isVirtual()) { //Link's scheduler is used, it's shared by all its virtual clients.
+			sendToVirtual(client.getLink(), new int[] {client.getSessionId()}, frame, protocol, priority);
+			return;
+		}
+		
+		SendScheduler scheduler = client.getScheduler();
+		if (client.isLoopback() || !scheduler.isLimited()) {
+			sendFrame(client, frame, protocol);
+			return;
+		}
+		
+		SendScheduler.Result result = scheduler.offer(frame, protocol, priority, client.getOutboundQueue());
+		if (result == SendScheduler.Result.SEND) {
+			sendFrame(client, frame, protocol);
+		} else if (result == SendScheduler.Result.DEFERRED) {
+			metrics.increment(Metrics.SCHEDULER_DEFERRED);
+		} else if (result == SendScheduler.Result.REPLACED) {
+			metrics.increment(Metrics.QUEUE_REPLACED);
+		} else if (result == SendScheduler.Result.DISCONNECT) {
+			disconnectSlow(client);
 		}
 	}
 	
-	private void sendPayloadTCP(ClientInformation client, byte[] jsonBytes, byte[] rawBytes) {
+	/**
+	 * Sends what the clients' bandwidth allows of the frames waiting in their schedulers.
+	 */
+	private void schedulerTick() {
 		try {
-			OutputStream out = client.getTcpSocket().getOutputStream();
+			long now = System.currentTimeMillis();
+			List<SendScheduler.Entry> dropped = new ArrayList<>();
 			
-			int totalLength = jsonBytes.length + (rawBytes != null ? rawBytes.length : 0);
+			for (ClientInformation client : getClients()) {
+				for (SendScheduler.Entry entry : client.getScheduler().poll(now, client.getOutboundQueue().getMaxBytes(), dropped)) {
+					sendFrame(client, entry.frame, entry.protocol);
+				}
+			}
 			
-			//Now TCP packet will have [4 bytes total length][4 bytes json length][json bytes][raw data bytes] (json data also includes raw data length in the packet)
-			//(Total length is just json bytes + raw data bytes)
-			out.write(ByteBuffer.allocate(Constants.PACKET_LENGTH_PREFIX_BYTES).putInt(totalLength).array());
-			out.write(ByteBuffer.allocate(Constants.PACKET_LENGTH_PREFIX_BYTES).putInt(jsonBytes.length).array());
-			out.write(jsonBytes);
-			if (rawBytes != null) {
-				out.write(rawBytes);
-			}
-			out.flush();
-		} catch (IOException e) {
+			if (!dropped.isEmpty()) {
+				metrics.add(Metrics.BACKPRESSURE_DROPPED, dropped.size());
+			}
+		} catch (RuntimeException e) { //Exception would cancel the scheduled task.
 			e.printStackTrace(System.err);
 		}
 	}
 	
-	private void sendPayloadUDP(ClientInformation client, byte[] jsonBytes, byte[] rawBytes) {
+	private void sendFrame(ClientInformation client, OutboundFrame frame, Protocol protocol) {
+		if (protocol == Protocol.UDP && !client.isVirtual() && !client.isLoopback()) {
+			sendFrameUDP(client, frame);
+		} else {
+			sendFrameReliable(client, frame, protocol);
+		}
+	}
+	
+	/**
+	 * Sends a frame over TCP, or through the link of a virtual client, or to a loopback client.
+	 * Frames that can only be written to TCP, like batches, are sent with this.
+	 * @param client
+	 * @param frame
+	 * @param protocol Only matters for virtual clients, their link sends the wrapped frame with it.
+	 */
+	private void sendFrameReliable(ClientInformation client, TCPFrame frame, Protocol protocol) {
+		if (client.isVirtual()) {
+			sendToVirtual(client.getLink(), new int[] {client.getSessionId()}, frame, protocol, Constants.DEFAULT_PRIORITY);
+		} else if (client.isLoopback()) { //Already serialized, the client parses it like a received frame.
+			client.getLoopback().send(frame);
+		} else {
+			sendFrameTCP(client, frame);
+		}
+	}
+	
+	/**
+	 * Adds the frame to the client's outbound queue, and starts a sender thread to write it if needed.
+	 * Never blocks on the socket. If the client is over its budget, the BackpressurePolicy is applied.
+	 * @param client
+	 * @param frame 
+	 */
+	private void sendFrameTCP(ClientInformation client, TCPFrame frame) {
+		if (client.getTcpSocket() == null) {
+			return;
+		}
+		
+		if (frame instanceof OutboundFrame && frame.size() > streamThreshold) { //Other frames, like batches, are never streamed.
+			OutboundFrame packetFrame = (OutboundFrame) frame;
+			if (!packetFrame.getTypeName().equals(StreamChunkPacket.class.getName())) {
+				sendStream(client, packetFrame, null, 0, null);
+				return;
+			}
+		}
+		
+		OutboundQueue queue = client.getOutboundQueue();
+		OutboundQueue.Result result = queue.offer(frame);
+		
+		if (result == OutboundQueue.Result.REPLACED) {
+			metrics.increment(Metrics.QUEUE_REPLACED);
+		} else if (result == OutboundQueue.Result.DISCONNECT) {
+			disconnectSlow(client);
+			return;
+		}
+		
+		startDrain(client);
+	}
+	
+	/**
+	 * Removes a client that went over its outbound budget.
+	 * @param client 
+	 */
+	private void disconnectSlow(ClientInformation client) {
+		metrics.increment(Metrics.BACKPRESSURE_DISCONNECTED);
+		printMessage("Client too slow, disconnecting: " + client.getUuid());
+		client.getOutboundQueue().clear();
+		removeClient(client);
+	}
+	
+	/**
+	 * Starts a sender thread to write the client's outbound queue, unless one is already writing it.
+	 * While the client is disconnected the queue only buffers, and is written when the client resumes.
+	 * @param client 
+	 */
+	private void startDrain(ClientInformation client) {
+		if (!client.isDisconnected() && client.getOutboundQueue().startDrain()) {
+			sender.execute(() -> drainOutbound(client));
+		}
+	}
+	
+	/**
+	 * Sends a large packet to the client in chunks over TCP, in between the other packets, so it doesn't delay them.
+	 * The client handles the packet normally when all the chunks have arrived.
+	 * TCP packets larger than the stream threshold are sent like this automatically with priority 0.
+	 * <p>
+	 * Streams with higher priority are sent first, streams with the same priority take turns.
+	 * @param client
+	 * @param packet
+	 * @param priority
+	 * @param listener Called when a chunk has been written, can be null.
+	 * @return Future that completes when the whole packet has been written.
+	 */
+	public CompletableFuture<Void> sendStream(ClientInformation client, Packet packet, int priority, StreamProgressListener listener) {
+		if (client.isLoopback()) { //Nothing to split into chunks, the whole packet is passed at once.
+			sendPacket(client, packet, Protocol.TCP);
+			return CompletableFuture.completedFuture(null);
+		}
+		byte[] jsonBytes = packetRegistry.serializeCompact(packet, Protocol.TCP);
+		byte[] rawBytes = packet instanceof DataPacket ? ((DataPacket) packet).getData() : null;
+		OutboundFrame frame = new OutboundFrame(jsonBytes, rawBytes, packet.senderUuid);
+		
+		if (client.isVirtual()) { //Link streams the wrapped packet, the gateway puts it together for the virtual client.
+			MultiplexPacket envelope = multiplex(new int[] {client.getSessionId()}, frame);
+			if (envelope == null) {
+				return CompletableFuture.failedFuture(new IOException("Couldn't wrap the packet"));
+			}
+			return sendStream(client.getLink(), encodeTCP(envelope), null, priority, listener);
+		}
+		return sendStream(client, frame, packet.targets, priority, listener);
+	}
+	
+	private CompletableFuture<Void> sendStream(ClientInformation client, OutboundFrame frame, Target[] targets, int priority, StreamProgressListener listener) {
+		OutboundStream stream = new OutboundStream(frame, nextStreamId.decrementAndGet(), priority, targets, streamChunkSize, packetRegistry, listener);
+		client.getOutboundQueue().addStream(stream);
+		startDrain(client);
+		return stream.getFuture();
+	}
+	
+	/**
+	 * Sends a file to the client. The file is written from disk to the socket with FileChannel.transferTo(),
+	 * so it never goes through the Java heap. It's sent in chunks in between the other packets, like other streams.
+	 * The client saves it where its FileReceiver tells.
+	 * @param client
+	 * @param path
+	 * @param name Name that is sent to the client, for example the file name or an asset id.
+	 * @return Future that completes when the whole file has been written.
+	 */
+	public CompletableFuture<Void> sendFile(ClientInformation client, Path path, String name) {
+		return sendFile(client, path, 0, -1, name, 0, null);
+	}
+	
+	/**
+	 * Sends a region of a file to the client. The client receives it as a file of length count.
+	 * @param client
+	 * @param path
+	 * @param position Where the region starts in the file.
+	 * @param count Length of the region, or -1 for the rest of the file.
+	 * @param name Name that is sent to the client.
+	 * @param priority Priority of the stream.
+	 * @param listener Called when a chunk has been written, can be null.
+	 * @return Future that completes when the whole region has been written, or fails if the file can't be read.
+	 */
+	public CompletableFuture<Void> sendFile(ClientInformation client, Path path, long position, long count, String name, int priority, StreamProgressListener listener) {
+		if (client.getTcpSocket() == null || client.isDisconnected()) {
+			return CompletableFuture.failedFuture(new IOException("Client has no TCP connection"));
+		}
+		
+		OutboundFileStream stream;
 		try {
-			//Now UDP packet will have [4 bytes json length][json bytes][raw data bytes] (json data also includes raw data length in the packet)
-			int totalLength = Constants.PACKET_LENGTH_PREFIX_BYTES + jsonBytes.length + (rawBytes != null ? rawBytes.length : 0);
-			
-			ByteBuffer buffer = ByteBuffer.allocate(totalLength);
-			buffer.putInt(jsonBytes.length);
-			buffer.put(jsonBytes);
-			if (rawBytes != null) {
-				buffer.put(rawBytes);
+			stream = OutboundFileStream.open(path, position, count, name, nextStreamId.decrementAndGet(), priority, streamChunkSize * 4, packetRegistry, listener);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		
+		client.getOutboundQueue().addStream(stream);
+		startDrain(client);
+		return stream.getFuture();
+	}
+	
+	/**
+	 * Sends a file to all the clients of the target, for example Target.ALL.
+	 * Each client gets its own transfer, but the file is still never copied to the Java heap.
+	 * @param target
+	 * @param path
+	 * @param name
+	 * @return Future that completes when the file has been written to all the clients.
+	 */
+	public CompletableFuture<Void> sendFile(Target target, Path path, String name) {
+		List<? extends HasUUID> targetClients = targetRegistry.resolveTargets(new ResolveContext(this, new BasePacket()), target);
+		
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (HasUUID targetClient : targetClients) {
+			ClientInformation client = getClient(targetClient.getUuid());
+			if (client != null) {
+				futures.add(sendFile(client, path, name));
 			}
-			
-			DatagramPacket udpPacket = new DatagramPacket(buffer.array(), buffer.array().length, client.getIpAddress(), client.getUdpPort());
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+	}
+	
+	/**
+	 * Called when a chunk of a large packet has been received from a client.
+	 * Only called for packet types that are registered on the server.
+	 * @param listener 
+	 */
+	public void setStreamProgressListener(StreamProgressListener listener) {
+		inboundStreams.setProgressListener(listener);
+	}
+	
+	/**
+	 * Largest TCP frame a client can send. A client that sends a larger one, or a frame with lengths that don't add up,
+	 * is disconnected before anything is allocated for the frame. Larger packets need to be sent in chunks, see setStreamThreshold().
+	 * @param maxFrameBytes Default is 16 MB.
+	 */
+	public void setMaxFrameSize(int maxFrameBytes) {
+		this.maxFrameBytes = maxFrameBytes;
+	}
+	
+	/**
+	 * How much memory the unfinished chunked packets of one client can take. Also limits the size of one chunked packet.
+	 * Streams that don't fit are dropped.
+	 * @param maxBytes Default is 64 MB.
+	 */
+	public void setMaxInboundStreamBytes(long maxBytes) {
+		inboundStreams.setMaxBytesPerSender(maxBytes);
+	}
+	
+	/**
+	 * TCP packets larger than this are sent in chunks.
+	 * @param streamThreshold Size in bytes.
+	 */
+	public void setStreamThreshold(int streamThreshold) {
+		this.streamThreshold = Math.max(streamThreshold, streamChunkSize);
+	}
+	
+	/**
+	 * Writes everything from the client's outbound queue to its TCP socket in batches, flushing once per batch.
+	 * Only one thread drains a queue at a time.
+	 * <p>
+	 * If writing fails and the client can resume, the queue keeps the batch that was being written
+	 * and the frames written before it that the client hasn't acknowledged yet, for the new connection.
+	 * @param client 
+	 */
+	private void drainOutbound(ClientInformation client) {
+		OutboundQueue queue = client.getOutboundQueue();
+		
+		while (true) {
+			List<TCPFrame> batch = null;
+			Socket socket = null;
+			try {
+				OutputStream out;
+				synchronized (client) { //A batch taken before the client resumes is written to the old connection, and is written again after resuming.
+					batch = queue.pollBatch();
+					if (batch == null) {
+						return;
+					}
+					socket = client.getTcpSocket();
+					out = client.getTcpOutput();
+				}
+				for (TCPFrame frame : batch) {
+					frame.writeTCP(out, socket.getChannel(), client.getCompression());
+				}
+				out.flush();
+				batch.forEach(TCPFrame::written);
+			} catch (IOException e) {
+				printMessage("Failed to write to client TCP: " + client.getUuid());
+				connectionLost(client, socket);
+				queue.stopDrain();
+				if (client.getTcpSocket() != socket) { //Resumed while this was writing, continue on the new connection.
+					startDrain(client);
+				}
+				return;
+			} finally {
+				if (batch != null) {
+					queue.written(batch);
+				}
+			}
+		}
+	}
+	
+	private void sendFrameUDP(ClientInformation client, OutboundFrame frame) {
+		if (client.isDisconnected()) { //Unreliable packets aren't buffered for a dropped client.
+			return;
+		}
+		
+		if (client.getOutboundQueue().isCongested()) { //Don't add to the congestion of a slow client.
+			metrics.increment(Metrics.BACKPRESSURE_DROPPED);
+			return;
+		}
+		
+		try {
+			byte[] bytes = frame.toUDPBytes(client.getCompression());
+			DatagramPacket udpPacket = new DatagramPacket(bytes, bytes.length, client.getIpAddress(), client.getUdpPort());
 			udpSocket.send(udpPacket);
 		} catch (IOException e) {
 			e.printStackTrace(System.err);
@@ -426,22 +1568,314 @@ public class Server {
 			if (clients.isEmpty()) {
 				hostClient = client; //First client that connects is the host.
 			}
-			clients.put(client.getUuid(), client);
+			ClientInformation previous = clients.put(client.getUuid(), client);
+			if (previous != null && hostClient == previous) {
+				hostClient = client;
+			}
+			
+			//Same client connecting with TCP after UDP keeps its session ID, others get the next free one.
+			//Free IDs are taken in turns, so an ID isn't given to someone else right after its client left.
+			ClientInformation[] array = sessions;
+			int sessionId = previous != null ? previous.getSessionId() : 0;
+			for (int i = 0; i < array.length - 1 && sessionId == 0; i++) {
+				int id = 1 + (lastSessionId + i) % (array.length - 1);
+				if (array[id] == null) {
+					sessionId = id;
+				}
+			}
+			if (sessionId == 0) {
+				sessionId = array.length;
+				array = Arrays.copyOf(array, array.length * 2);
+			}
+			lastSessionId = sessionId;
+			array[sessionId] = client;
+			client.setSessionId(sessionId);
+			sessions = array;
 			printMessage("Client added!");
 		}
+		
+		broadcastRoster(client, client.getUuid());
+	}
+	
+	/**
+	 * Tells the other clients that a session started or ended, so they can find the UUID of a packet's sender from its session ID.
+	 * @param changed
+	 * @param uuid UUID of the session, or null if it ended.
+	 */
+	private void broadcastRoster(ClientInformation changed, UUID uuid) {
+		if (!running) { //Clients are being removed because the server is stopping.
+			return;
+		}
+		
+		SessionRoster update = new SessionRoster(new int[] {changed.getSessionId()}, new UUID[] {uuid}, false);
+		
+		for (ClientInformation client : getClients()) {
+			if (client != changed && !client.isVirtual()) { //Virtual clients use the roster of their link.
+				sendTCP(client, update);
+			}
+		}
+	}
+	
+	/**
+	 * @return Roster with all the clients, sent to a client when it connects or resumes its session.
+	 */
+	private SessionRoster createRoster() {
+		List<ClientInformation> list = getClients();
+		int[] sessionIds = new int[list.size()];
+		UUID[] uuids = new UUID[list.size()];
+		
+		for (int i = 0; i < list.size(); i++) {
+			sessionIds[i] = list.get(i).getSessionId();
+			uuids[i] = list.get(i).getUuid();
+		}
+		return new SessionRoster(sessionIds, uuids, true);
+	}
+	
+	/**
+	 * Removes the client from the clients list and closes its TCP socket.
+	 * Safe to call multiple times, and only removes the exact same ClientInformation object.
+	 * @param client 
+	 */
+	private void removeClient(ClientInformation client) {
+		if (client.getUuid() == null) {
+			closeQuietly(client.getTcpSocket());
+			return;
+		}
+		
+		synchronized (clients) {
+			if (!clients.remove(client.getUuid(), client)) {
+				return;
+			}
+			if (hostClient == client) {
+				hostClient = null;
+			}
+			
+			ClientInformation[] array = sessions;
+			if (array[client.getSessionId()] == client) {
+				array[client.getSessionId()] = null;
+				sessions = array;
+			}
+		}
+		client.getOutboundQueue().clear();
+		client.getScheduler().clear();
+		closeQuietly(client.getTcpSocket());
+		if (client.isLoopback()) {
+			client.getLoopback().close();
+		}
+		inboundStreams.removeSender(client.getUuid());
+		retained.removeSender(client.getUuid());
+		printMessage("Client removed: " + client.getUuid());
+		
+		broadcastRoster(client, null);
+		
+		if (client.isVirtual() && running && getClient(client.getLink().getUuid()) == client.getLink()) { //Tell the gateway, it ignores this if it removed the client itself.
+			sendTCP(client.getLink(), new VirtualClientPacket(client.getUuid(), true));
+		}
+		for (ClientInformation other : getClients()) { //Virtual clients can't stay without their link.
+			if (other.getLink() == client) {
+				removeClient(other);
+			}
+		}
+	}
+	
+	/**
+	 * Called periodically by the timer thread.
+	 * Times out clients that haven't sent anything (not even heartbeats) in clientTimeout,
+	 * and sends a heartbeat to the rest so they know the server is still alive.
+	 * Also removes dropped clients that didn't resume their session in resumeGrace.
+	 * One sweep over all clients, no thread or timer per client.
+	 */
+	private void heartbeatTick() {
+		try {
+			long now = System.currentTimeMillis();
+			
+			for (ClientInformation client : getClients()) {
+				if (client.isLoopback() || client.isVirtual()) { //Can't time out, and is removed when it stops or its link is removed.
+					continue;
+				}
+				if (client.isDisconnected()) {
+					if (now - client.getDisconnectedTime() > resumeGrace) {
+						printMessage("Client didn't resume its session: " + client.getUuid());
+						removeClient(client);
+					}
+					continue;
+				}
+				
+				if (clientTimeout > 0 && now - client.getLastReceivedTime() > clientTimeout) {
+					printMessage("Client timed out: " + client.getUuid());
+					if (client.getTcpSocket() != null) {
+						connectionLost(client, client.getTcpSocket()); //Half-open connection, the client might still resume.
+					} else {
+						removeClient(client);
+					}
+					continue;
+				}
+				
+				if (client.getTcpSocket() != null) {
+					sendTCP(client, new HeartbeatPacket());
+				}
+				if (client.getUdpPort() != -1) { //Client measures UDP loss from these.
+					sendUDP(client, new HeartbeatPacket(client.nextUdpHeartbeatSequence()));
+				}
+			}
+			
+			udpLimiters.values().removeIf(limiter -> now - limiter.getLastUsed() > Constants.RATE_LIMITER_IDLE_MS); //Addresses that stopped sending.
+		} catch (RuntimeException e) { //Exception would cancel the scheduled task.
+			e.printStackTrace(System.err);
+		}
+	}
+	
+	/**
+	 * How often the server sends heartbeats to clients and checks for timed out clients.
+	 * Needs to be set before calling start().
+	 * @param heartbeatInterval Interval in milliseconds.
+	 */
+	public void setHeartbeatInterval(long heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval;
+	}
+	
+	/**
+	 * How long a client can be silent before it's removed from the clients list.
+	 * Clients send heartbeats, so this only triggers on dead or half-open connections.
+	 * @param clientTimeout Timeout in milliseconds, or 0 to never time out clients.
+	 */
+	public void setClientTimeout(long clientTimeout) {
+		this.clientTimeout = clientTimeout;
+	}
+	
+	/**
+	 * How long a client whose connection dropped is kept, so it can reconnect and resume its session
+	 * (Client.setAutoResume()). The client keeps its place in the clients list, host status and everything
+	 * the game has stored for its UUID. Reliable packets sent to it meanwhile are buffered in its outbound queue,
+	 * up to the outbound budget, and written when it resumes. Unreliable packets are dropped.
+	 * <p>
+	 * Packets that were written to the old connection but that the client didn't receive are written again too.
+	 * The client acknowledges the TCP frames it has received in its heartbeats, and the server keeps the rest, up to the outbound budget.
+	 * If the client missed more than that, it gets a new session when it reconnects.
+	 * Needs to be set before clients connect.
+	 * @param resumeGrace Time in milliseconds, for example Constants.DEFAULT_RESUME_WINDOW_MS, or 0 (default) to remove dropped clients right away.
+	 */
+	public void setResumeGrace(long resumeGrace) {
+		this.resumeGrace = resumeGrace;
+	}
+	
+	/**
+	 * Lets each connected client add this many virtual clients (Client.addVirtualClient()), for example for a gateway or bots.
+	 * Virtual clients over the limit are removed right away, and the client is told with a VirtualClientPacket.
+	 * @param maxVirtualClients Per connection, 0 (default) doesn't allow virtual clients.
+	 */
+	public void setMaxVirtualClients(int maxVirtualClients) {
+		this.maxVirtualClients = maxVirtualClients;
+	}
+	
+	/**
+	 * Sets the outbound budget for new clients. How many bytes and packets can wait to be sent to a
+	 * single client before the policy is applied. Can be changed per client with client.getOutboundQueue().setBudget().
+	 * <p>
+	 * Policy outcomes are counted in getMetrics() as Metrics.BACKPRESSURE_DROPPED and BACKPRESSURE_DISCONNECTED.
+	 * Coalesced packet types (PacketOptions.coalesce()) are replaced in the queue with any policy, counted as Metrics.QUEUE_REPLACED.
+	 * @param maxBytes
+	 * @param maxPackets
+	 * @param policy 
+	 */
+	public void setOutboundBudget(long maxBytes, int maxPackets, BackpressurePolicy policy) {
+		this.outboundMaxBytes = maxBytes;
+		this.outboundMaxPackets = maxPackets;
+		this.backpressurePolicy = policy;
+	}
+	
+	/**
+	 * Protocol.AUTO sends over TCP to clients that lose more UDP packets than this.
+	 * Loss is measured from the heartbeats, see ClientInformation.getUdpLoss().
+	 * @param maxLoss From 0 to 1, default is 0.2.
+	 */
+	public void setAutoMaxUdpLoss(double maxLoss) {
+		this.autoMaxUdpLoss = maxLoss;
+	}
+	
+	/**
+	 * Compresses the frames sent to clients that have one of the codecs, if the frame is at least threshold bytes.
+	 * Each client uses the first codec in this list it also has (see Client.setCompression()), and is told in the handshake.
+	 * A frame forwarded to many clients is only compressed once per codec.
+	 * Only affects clients that connect after this is called.
+	 * <p>
+	 * Usage:
+	 * <pre>{@code
+	 * server.setCompression(256, new DeflateCodec());
+	 * }</pre>
+	 * @param threshold Smaller frames are sent as they are, compressing them would save little.
+	 * @param codecs In the order of preference, none to turn compression off.
+	 */
+	public void setCompression(int threshold, PayloadCodec... codecs) {
+		this.compressionThreshold = threshold;
+		this.codecs = codecs.length > 0 ? codecs.clone() : null;
+	}
+	
+	/**
+	 * For LAN games. UDP packets that go to every client (Target.ALL) are sent once to the multicast group,
+	 * instead of once to each client, so the server's upload doesn't grow with the number of players.
+	 * Clients that joined the same group with Client.setMulticast() get them from there, others still get their own copy.
+	 * Needs to be set before calling start().
+	 * @param group Multicast address, for example 239.255.0.1.
+	 * @param port
+	 * @param networkInterface Interface to send from, or null for the default one.
+	 */
+	public void setMulticast(InetAddress group, int port, NetworkInterface networkInterface) {
+		this.multicastGroup = group;
+		this.multicastPort = port;
+		this.multicastInterface = networkInterface;
+	}
+	
+	public void setMulticast(InetAddress group, int port) {
+		setMulticast(group, port, null);
+	}
+	
+	/**
+	 * Limits how many packets per second each new client can send, per packet type. Packets over the limits are dropped
+	 * before they are parsed, and counted in Metrics.RATE_LIMITED. Can be changed per client with client.setRateLimits().
+	 * @param limits Null for no limits, which is the default.
+	 */
+	public void setRateLimits(RateLimits limits) {
+		this.rateLimits = limits;
+		udpLimiters.clear();
+	}
+	
+	/**
+	 * Limits how many bytes per second are sent to each new client. Packets over the limit wait, and the ones with
+	 * the highest accumulated priority are sent first, see SendScheduler. Can be changed per client with client.getScheduler().setBandwidth().
+	 * Packets are sent right away without a limit, which is the default.
+	 * @param bytesPerSecond 0 for no limit.
+	 */
+	public void setBandwidthLimit(long bytesPerSecond) {
+		this.bandwidthLimit = bytesPerSecond;
+	}
+	
+	public Metrics getMetrics() {
+		return metrics;
 	}
 	
 	public void stop() {
 		running = false;
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+		if (sender != null) {
+			sender.shutdownNow();
+		}
 		try {
 			synchronized (clients) {
 				for (ClientInformation client : clients.values()) {
-					client.getTcpSocket().close();
+					closeQuietly(client.getTcpSocket());
+					if (client.isLoopback()) {
+						client.getLoopback().close();
+					}
 				}
 				clients.clear();
+				sessions = new ClientInformation[sessions.length];
 			}
 			tcpSocket.close();
 			udpSocket.close();
+			closeQuietly(multicastSocket);
 		} catch (IOException e) {
 			e.printStackTrace(System.err);
 		}
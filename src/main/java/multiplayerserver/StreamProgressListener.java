@@ -0,0 +1,17 @@
+package multiplayerserver;
+
+import java.util.UUID;
+
+/**
+ * Gets called when a chunk of a large packet has been sent or received.
+ */
+@FunctionalInterface
+public interface StreamProgressListener {
+	/**
+	 * @param senderUuid Original sender of the packet, null if it was sent by the server.
+	 * @param streamId Id of the stream, unique per sender.
+	 * @param transferred Bytes sent or received so far.
+	 * @param total Total bytes in the stream.
+	 */
+	public void onProgress(UUID senderUuid, int streamId, long transferred, long total);
+}
@@ -0,0 +1,75 @@
+package multiplayerserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Something that is written to a TCP socket from an outbound queue.
+ * OutboundFrame is a single packet, which can also be sent with UDP.
+ * Other frames, like file regions, can only be written to TCP, so they don't have the UDP methods.
+ */
+public abstract class TCPFrame {
+	private Runnable onWritten;
+	private Object coalesceKey; //Queued frame with the same key is replaced by this one.
+	
+	/**
+	 * @return Bytes this frame takes in the outbound queue.
+	 */
+	public abstract int size();
+	
+	/**
+	 * Writes the frame in TCP format.
+	 * @param out
+	 * @throws IOException
+	 */
+	public abstract void writeTCP(OutputStream out) throws IOException;
+	
+	/**
+	 * Writes the frame in TCP format. Frames that have their data somewhere else than
+	 * in memory (like a file) can override this to write it straight to the channel.
+	 * @param out Buffered output of the socket.
+	 * @param channel Channel of the socket, or null if the socket doesn't have one.
+	 * @throws IOException
+	 */
+	public void writeTCP(OutputStream out, SocketChannel channel) throws IOException {
+		writeTCP(out);
+	}
+	
+	/**
+	 * Writes the frame compressed if the frame type supports it. Not compressed by default.
+	 * @param out
+	 * @param channel
+	 * @param compression Null if the client doesn't use compression.
+	 * @throws IOException
+	 */
+	void writeTCP(OutputStream out, SocketChannel channel, Compression compression) throws IOException {
+		writeTCP(out, channel);
+	}
+	
+	/**
+	 * Frames with the same key replace each other in the outbound queue, only the newest one is sent.
+	 * @param coalesceKey Key of the packet, or null if it's always queued.
+	 */
+	public void setCoalesceKey(Object coalesceKey) {
+		this.coalesceKey = coalesceKey;
+	}
+	
+	public Object getCoalesceKey() {
+		return coalesceKey;
+	}
+	
+	/**
+	 * Sets a callback that is called after the frame has been written and flushed.
+	 * @param onWritten
+	 */
+	public void setOnWritten(Runnable onWritten) {
+		this.onWritten = onWritten;
+	}
+	
+	public void written() {
+		if (onWritten != null) {
+			onWritten.run();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package multiplayerserver;
+
+import com.google.gson.JsonSyntaxException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import multiplayerserver.packets.DataPacket;
+import multiplayerserver.packets.Packet;
+import multiplayerserver.packets.PacketRegistry;
+import multiplayerserver.packets.SessionInfo;
+import multiplayerserver.packets.StreamChunkPacket;
+
+/**
+ * One of many players that share the connection of a Client, for example the players behind a matchmaking gateway,
+ * or the bots of a bot farm. Created with Client.addVirtualClient().
+ * <p>
+ * The server has it in its clients list like any other client, and it can be targeted normally,
+ * but it has no sockets or threads of its own. The server sends a packet once per connection for all the virtual clients
+ * behind it that get it, and the Client passes it to each of them.
+ * <p>
+ * Handlers are called on the Client's listener threads. Usually each virtual client has its own registry,
+ * so the handlers know which one got the packet. Virtual clients that share a registry call its handler once each,
+ * but the packet is only parsed once for all of them, so don't modify it in the handlers.
+ */
+public class VirtualClient implements HasUUID {
+	private final Client gateway;
+	private final UUID uuid;
+	private final PacketRegistry packetRegistry;
+	
+	private volatile int sessionId = 0; //Received from the server in SessionInfo.
+	private volatile boolean removed = false;
+	private final InboundStreams inboundStreams = new InboundStreams();
+	
+	VirtualClient(Client gateway, UUID uuid, PacketRegistry registry) {
+		this.gateway = gateway;
+		this.uuid = uuid;
+		this.packetRegistry = registry;
+	}
+	
+	/**
+	 * Sends the packet through the gateway's connection, with this client as the sender.
+	 * Until the server has sent the session ID everything goes over TCP, so nothing arrives before the server has added the client.
+	 * @param packet
+	 * @param protocol 
+	 */
+	public void sendPacket(Packet packet, Protocol protocol) {
+		if (removed) {
+			return;
+		}
+		gateway.sendPacket(withSender(packet), sessionId != 0 ? protocol : Protocol.TCP);
+	}
+	
+	/**
+	 * Like Client.sendPacketAsync(), the packet is written by the gateway's writer thread together with the packets of the other virtual clients.
+	 * @param packet
+	 * @param protocol
+	 * @return Future that completes when the packet is written to the socket.
+	 */
+	public CompletableFuture<Void> sendPacketAsync(Packet packet, Protocol protocol) {
+		if (removed) {
+			return CompletableFuture.failedFuture(new SocketException("Virtual client was removed"));
+		}
+		return gateway.sendPacketAsync(withSender(packet), sessionId != 0 ? protocol : Protocol.TCP);
+	}
+	
+	private Packet withSender(Packet packet) {
+		packet.senderUuid = uuid;
+		packet.senderId = sessionId; //Server checks that it's one of the gateway's virtual clients.
+		return packet;
+	}
+	
+	/**
+	 * Parses a frame with this client's registry.
+	 * @param jsonBytes
+	 * @param rawBytes
+	 * @return Packet, or null if it isn't registered.
+	 */
+	Packet parse(byte[] jsonBytes, byte[] rawBytes) {
+		try {
+			Packet packet = packetRegistry.parsePacket(jsonBytes);
+			if (packet == null) {
+				return null;
+			}
+			
+			if (packet instanceof DataPacket) {
+				((DataPacket) packet).setData(rawBytes);
+			}
+			if (packet.senderUuid == null && packet.senderId != 0) { //Sent with the session ID only.
+				packet.senderUuid = gateway.getUuid(packet.senderId);
+			}
+			return packet;
+		} catch (JsonSyntaxException e) {
+			e.printStackTrace(System.err);
+			return null;
+		}
+	}
+	
+	/**
+	 * Called by the gateway with a packet the server sent to this client.
+	 * @param packet Can be null.
+	 */
+	void handlePacket(Packet packet) {
+		if (packet == null || removed) {
+			return;
+		}
+		
+		if (packet instanceof SessionInfo) {
+			SessionInfo info = (SessionInfo) packet;
+			sessionId = info.sessionId;
+			if (info.targetTypes != null) {
+				packetRegistry.getTargetTypes().set(info.targetTypes);
+			}
+			return;
+		}
+		
+		if (packet instanceof StreamChunkPacket) { //Part of a large packet, handle the packet when all chunks have arrived.
+			byte[] streamBytes = inboundStreams.accept((StreamChunkPacket) packet);
+			if (streamBytes == null) {
+				return;
+			}
+			
+			ByteBuffer buf = ByteBuffer.wrap(streamBytes);
+			if (streamBytes.length < Integer.BYTES || !FrameLimits.isValidUDP(buf.getInt(0), streamBytes.length - Integer.BYTES)) {
+				return;
+			}
+			byte[] jsonBytes = new byte[buf.getInt()];
+			buf.get(jsonBytes);
+			byte[] rawBytes = new byte[buf.remaining()];
+			buf.get(rawBytes);
+			handlePacket(parse(jsonBytes, rawBytes));
+			return;
+		}
+		
+		packetRegistry.callHandler(packet);
+	}
+	
+	/**
+	 * Removes this client from the server. The gateway's connection stays open for the others.
+	 */
+	public void remove() {
+		gateway.removeVirtualClient(this);
+	}
+	
+	/**
+	 * Called when the client was removed, by remove() or by the server.
+	 */
+	void markRemoved() {
+		removed = true;
+		inboundStreams.clear();
+	}
+	
+	/**
+	 * @return True if the client was removed, then it can't send anymore.
+	 */
+	public boolean isRemoved() {
+		return removed;
+	}
+	
+	public PacketRegistry getPacketRegistry() {
+		return packetRegistry;
+	}
+	
+	public Client getGateway() {
+		return gateway;
+	}
+	
+	@Override
+	public UUID getUuid() {
+		return uuid;
+	}
+	
+	/**
+	 * Session ID the server gave this client.
+	 * @return Session ID, or 0 if the server hasn't sent it yet.
+	 */
+	public int getSessionId() {
+		return sessionId;
+	}
+	
+	/**
+	 * Finds the UUID of another client from its session ID, from the gateway's roster.
+	 * @param sessionId
+	 * @return UUID, or null if there's no client with the session ID.
+	 */
+	public UUID getUuid(int sessionId) {
+		return gateway.getUuid(sessionId);
+	}
+}
@@ -0,0 +1,23 @@
+package multiplayerserver.journal;
+
+import java.util.UUID;
+import multiplayerserver.Protocol;
+
+/**
+ * One received frame read from a PacketJournal.
+ */
+public class JournalEntry {
+	public final long timeNanos;	//When the frame was recorded, in nanoseconds since the epoch (1970-01-01T00:00Z)
+	public final UUID senderUuid;	//Null if the sender wasn't known yet
+	public final Protocol protocol;
+	public final byte[] jsonBytes;
+	public final byte[] rawBytes;
+	
+	public JournalEntry(long timeNanos, UUID senderUuid, Protocol protocol, byte[] jsonBytes, byte[] rawBytes) {
+		this.timeNanos = timeNanos;
+		this.senderUuid = senderUuid;
+		this.protocol = protocol;
+		this.jsonBytes = jsonBytes;
+		this.rawBytes = rawBytes;
+	}
+}
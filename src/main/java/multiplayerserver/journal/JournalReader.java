@@ -0,0 +1,87 @@
+package multiplayerserver.journal;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import multiplayerserver.Protocol;
+
+/**
+ * Reads the frames of a PacketJournal in the order they were recorded.
+ */
+public class JournalReader {
+	private JournalReader() {}
+	
+	/**
+	 * @param directory
+	 * @return Segment files of the journal, in order.
+	 * @throws IOException 
+	 */
+	public static List<Path> listSegments(Path directory) throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return List.of();
+		}
+		
+		try (Stream<Path> files = Files.list(directory)) {
+			return files
+					.filter(p -> {
+						String name = p.getFileName().toString();
+						return name.startsWith(PacketJournal.SEGMENT_PREFIX) && name.endsWith(PacketJournal.SEGMENT_SUFFIX);
+					})
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+	
+	/**
+	 * Calls the consumer for every frame in the journal. Stops at a partially written record.
+	 * @param directory
+	 * @param consumer
+	 * @throws IOException 
+	 */
+	public static void forEach(Path directory, Consumer<JournalEntry> consumer) throws IOException {
+		Protocol[] protocols = Protocol.values();
+		
+		for (Path path : listSegments(directory)) {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				
+				while (buf.remaining() >= PacketJournal.HEADER_BYTES) {
+					int recordLength = buf.getInt();
+					if (recordLength == 0) {
+						break; //End of segment.
+					}
+					if (recordLength < PacketJournal.HEADER_BYTES || recordLength - Integer.BYTES > buf.remaining()) {
+						return; //Partially written record, journal ends here.
+					}
+					
+					long time = buf.getLong();
+					long msb = buf.getLong();
+					long lsb = buf.getLong();
+					int protocolIndex = buf.get();
+					int jsonLength = buf.getInt();
+					
+					int rawLength = recordLength - PacketJournal.HEADER_BYTES - jsonLength;
+					if (jsonLength < 0 || rawLength < 0 || protocolIndex < 0 || protocolIndex >= protocols.length) {
+						return;
+					}
+					
+					byte[] jsonBytes = new byte[jsonLength];
+					buf.get(jsonBytes);
+					byte[] rawBytes = new byte[rawLength];
+					buf.get(rawBytes);
+					
+					UUID sender = (msb == 0 && lsb == 0) ? null : new UUID(msb, lsb);
+					consumer.accept(new JournalEntry(time, sender, protocols[protocolIndex], jsonBytes, rawBytes));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package multiplayerserver.journal;
+
+import com.google.gson.JsonSyntaxException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import multiplayerserver.Server;
+import multiplayerserver.packets.DataPacket;
+import multiplayerserver.packets.Packet;
+import multiplayerserver.packets.PacketRegistry;
+
+/**
+ * Feeds a recorded PacketJournal back into a Server or a PacketRegistry,
+ * at the original speed, faster, or as fast as possible.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * JournalReplayer.replay(Path.of("journal"), 1.0, JournalReplayer.into(server));	//Original speed
+ * JournalReplayer.replay(Path.of("journal"), 10.0, JournalReplayer.into(registry));	//10 times faster
+ * JournalReplayer.replay(Path.of("journal"), 0, JournalReplayer.into(server));		//No waiting
+ * }</pre>
+ */
+public class JournalReplayer {
+	private JournalReplayer() {}
+	
+	/**
+	 * Replays the journal on the calling thread.
+	 * @param directory
+	 * @param speed 1.0 is the original speed, 2.0 twice as fast. 0 or less replays without waiting.
+	 * If the directory has recordings of several runs, the time between the runs is waited too.
+	 * @param target Gets every entry, for example into(server).
+	 * @throws IOException
+	 * @throws InterruptedException 
+	 */
+	public static void replay(Path directory, double speed, Consumer<JournalEntry> target) throws IOException, InterruptedException {
+		long[] firstRecorded = {Long.MIN_VALUE};
+		long start = System.nanoTime();
+		
+		try {
+			JournalReader.forEach(directory, entry -> {
+				if (speed > 0) {
+					if (firstRecorded[0] == Long.MIN_VALUE) {
+						firstRecorded[0] = entry.timeNanos;
+					}
+					
+					long due = start + (long) ((entry.timeNanos - firstRecorded[0]) / speed);
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						try {
+							Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+						} catch (InterruptedException e) {
+							throw new ReplayInterruptedException(e);
+						}
+					}
+				}
+				
+				target.accept(entry);
+			});
+		} catch (ReplayInterruptedException e) {
+			throw (InterruptedException) e.getCause();
+		}
+	}
+	
+	/**
+	 * Entries are handled by the server as if they were received from the original sender.
+	 * Handlers are called and the packets are forwarded to their targets.
+	 * @param server
+	 * @return 
+	 */
+	public static Consumer<JournalEntry> into(Server server) {
+		return entry -> server.replayFrame(entry.senderUuid, entry.protocol, entry.jsonBytes, entry.rawBytes);
+	}
+	
+	/**
+	 * Entries are parsed and passed to the registry's handlers. Unregistered packets are ignored.
+	 * @param registry
+	 * @return 
+	 */
+	public static Consumer<JournalEntry> into(PacketRegistry registry) {
+		return entry -> {
+			try {
+				Packet packet = registry.parsePacket(entry.jsonBytes);
+				if (packet == null) {
+					return;
+				}
+				if (packet.senderUuid == null) {
+					packet.senderUuid = entry.senderUuid;
+				}
+				if (packet instanceof DataPacket) {
+					((DataPacket) packet).setData(entry.rawBytes);
+				}
+				registry.callHandler(packet);
+			} catch (JsonSyntaxException e) {
+				e.printStackTrace(System.err);
+			}
+		};
+	}
+	
+	private static class ReplayInterruptedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		private ReplayInterruptedException(InterruptedException cause) {
+			super(cause);
+		}
+	}
+}
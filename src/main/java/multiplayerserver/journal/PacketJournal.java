@@ -0,0 +1,167 @@
+package multiplayerserver.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.UUID;
+import multiplayerserver.Protocol;
+
+/**
+ * Append-only journal of received frames, for debugging desyncs and for replaying real traffic as a load test.
+ * Frames are copied into memory-mapped segment files, so recording is just a copy in memory,
+ * and the OS writes the pages to disk in the background. When a segment is full, a new one is started.
+ * <p>
+ * Record format:
+ * [4 bytes record length][8 bytes time in nanoseconds since the epoch][16 bytes sender uuid][1 byte protocol][4 bytes json length][json bytes][raw data bytes]
+ * Record length 0 marks the end of a segment (mapped files are zero filled).
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * server.setJournal(PacketJournal.open(Path.of("journal")));
+ * //Later:
+ * JournalReplayer.replay(Path.of("journal"), 1.0, JournalReplayer.into(otherServer));
+ * }</pre>
+ */
+public class PacketJournal implements Closeable {
+	static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + Long.BYTES * 2 + 1 + Integer.BYTES;
+	static final String SEGMENT_PREFIX = "segment-";
+	static final String SEGMENT_SUFFIX = ".journal";
+	
+	public static final long DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+	
+	private final Path directory;
+	private final long segmentBytes;
+	
+	private int segmentIndex;
+	private FileChannel segmentChannel;
+	private MappedByteBuffer segment;
+	private boolean closed = false;
+	
+	private PacketJournal(Path directory, long segmentBytes, int firstSegment) {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.segmentIndex = firstSegment;
+	}
+	
+	public static PacketJournal open(Path directory) throws IOException {
+		return open(directory, DEFAULT_SEGMENT_BYTES);
+	}
+	
+	/**
+	 * Opens a journal in the directory. If the directory already has segments, new segments are added after them.
+	 * @param directory
+	 * @param segmentBytes Size of one segment file.
+	 * @return
+	 * @throws IOException 
+	 */
+	public static PacketJournal open(Path directory, long segmentBytes) throws IOException {
+		Files.createDirectories(directory);
+		int next = 0;
+		for (Path path : JournalReader.listSegments(directory)) { //Not the count, older segments may have been deleted.
+			next = Math.max(next, segmentIndex(path) + 1);
+		}
+		
+		PacketJournal journal = new PacketJournal(directory, segmentBytes, next);
+		journal.openSegment(segmentBytes);
+		return journal;
+	}
+	
+	/**
+	 * Appends a received frame to the journal.
+	 * @param senderUuid Can be null.
+	 * @param protocol
+	 * @param jsonBytes
+	 * @param rawBytes Can be null.
+	 */
+	public synchronized void record(UUID senderUuid, Protocol protocol, byte[] jsonBytes, byte[] rawBytes) {
+		if (closed) {
+			return;
+		}
+		
+		int rawLength = rawBytes != null ? rawBytes.length : 0;
+		int recordLength = HEADER_BYTES + jsonBytes.length + rawLength;
+		
+		try {
+			if (segment.remaining() < recordLength + Integer.BYTES) { //Always leave room for the end marker.
+				segment.putInt(0);
+				openSegment(Math.max(segmentBytes, recordLength + Integer.BYTES));
+			}
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+			closed = true;
+			return;
+		}
+		
+		segment.putInt(recordLength);
+		Instant now = Instant.now(); //Wall clock, so journals from different runs in the same directory are in order.
+		segment.putLong(now.getEpochSecond() * 1_000_000_000 + now.getNano());
+		segment.putLong(senderUuid != null ? senderUuid.getMostSignificantBits() : 0);
+		segment.putLong(senderUuid != null ? senderUuid.getLeastSignificantBits() : 0);
+		segment.put((byte) protocol.ordinal());
+		segment.putInt(jsonBytes.length);
+		segment.put(jsonBytes);
+		if (rawBytes != null) {
+			segment.put(rawBytes);
+		}
+	}
+	
+	private void openSegment(long size) throws IOException {
+		if (segmentChannel != null) {
+			segmentChannel.close(); //Mapping stays valid until the buffer is garbage collected.
+			segmentIndex++;
+		}
+		
+		Path path = directory.resolve(segmentName(segmentIndex));
+		segmentChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+	
+	static String segmentName(int index) {
+		return String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+	}
+	
+	/**
+	 * @param path
+	 * @return Index in the segment's name, or -1 if the name has no index.
+	 */
+	static int segmentIndex(Path path) {
+		String name = path.getFileName().toString();
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Forces the recorded frames to disk.
+	 */
+	public synchronized void flush() {
+		if (!closed) {
+			segment.force();
+		}
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		
+		if (segment.remaining() >= Integer.BYTES) {
+			segment.putInt(0);
+		}
+		segment.force();
+		segmentChannel.close();
+	}
+	
+	public Path getDirectory() {
+		return directory;
+	}
+}
@@ -0,0 +1,550 @@
+package multiplayerserver.packets;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Reads JSON straight from a UTF-8 byte array, without decoding it to a String first.
+ * Only reads the plain JSON that packets are written as. Anything else (lenient JSON, numbers in quotes etc.)
+ * throws Fallback, and the packet is parsed with Gson instead, so nothing that Gson accepts is rejected.
+ * Used by PacketAdapterFactory. Each thread reuses its own reader, see reset().
+ */
+final class ByteJsonReader {
+	/**
+	 * Thrown when the JSON should be parsed with Gson instead. Has no stack trace, so it's cheap.
+	 */
+	static final class Fallback extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		static final Fallback INSTANCE = new Fallback();
+		
+		private Fallback() {
+			super(null, null, false, false);
+		}
+	}
+	
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
+	static final int RECENT_VALUES = 16; //Size of the caches of recently read values.
+	private static final int MAX_RECENT_STRING_BYTES = 64; //Longer strings are rarely repeated.
+	
+	private byte[] buf;
+	private int pos;
+	private int end;
+	private boolean reusing; //Reading into a reused packet, see PacketOptions.reusable().
+	
+	private int nameStart, nameEnd; //Raw bytes of the last name, without quotes.
+	private boolean nameEscaped;
+	
+	private int stringStart, stringEnd; //Raw bytes of the last string, without quotes.
+	private boolean stringAscii, stringEscaped;
+	
+	/**
+	 * Starts reading other JSON, so one reader can be used for many packets.
+	 * @param buf
+	 * @param offset
+	 * @param end
+	 * @param reusing True if the JSON is read into a reused packet.
+	 */
+	void reset(byte[] buf, int offset, int end, boolean reusing) {
+		this.buf = buf;
+		this.pos = offset;
+		this.end = end;
+		this.reusing = reusing;
+	}
+	
+	boolean isReusing() {
+		return reusing;
+	}
+	
+	/**
+	 * Lets go of the buffer, so the reader of a thread doesn't keep a large one alive.
+	 */
+	void clear() {
+		buf = null;
+		pos = end = 0;
+	}
+	
+	private static Fallback fallback() {
+		return Fallback.INSTANCE;
+	}
+	
+	private int peekByte() {
+		while (pos < end) {
+			byte b = buf[pos];
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				return b;
+			}
+			pos++;
+		}
+		throw fallback();
+	}
+	
+	private void expect(int b) {
+		if (peekByte() != b) {
+			throw fallback();
+		}
+		pos++;
+	}
+	
+	/**
+	 * @return First byte of the next value, for example <code>'['</code> or <code>'"'</code>.
+	 */
+	int peek() {
+		return peekByte();
+	}
+	
+	void beginObject() {
+		expect('{');
+	}
+	
+	void endObject() {
+		expect('}');
+	}
+	
+	void beginArray() {
+		expect('[');
+	}
+	
+	void endArray() {
+		expect(']');
+	}
+	
+	/**
+	 * Skips the comma between members or elements.
+	 * @return True if the object or array has another member or element.
+	 */
+	boolean hasNext() {
+		int b = peekByte();
+		if (b == ',') {
+			pos++;
+			return true;
+		}
+		return b != '}' && b != ']';
+	}
+	
+	/**
+	 * Reads the name of the next member and the colon after it. The name can then be compared with nameEquals().
+	 */
+	void nextName() {
+		expect('"');
+		nameStart = pos;
+		nameEscaped = false;
+		
+		while (true) {
+			if (pos >= end) throw fallback();
+			byte b = buf[pos];
+			if (b == '"') break;
+			if (b == '\\') {
+				nameEscaped = true;
+				pos++;
+			}
+			pos++;
+		}
+		nameEnd = pos++;
+		expect(':');
+	}
+	
+	/**
+	 * @param quotedName Name as written by ByteJsonWriter.encodeName(), <code>"x":</code>
+	 * @return True if the last name is the same.
+	 */
+	boolean nameEquals(byte[] quotedName) {
+		return !nameEscaped && Arrays.equals(buf, nameStart, nameEnd, quotedName, 1, quotedName.length - 2);
+	}
+	
+	String nameString() {
+		return nameEscaped ? decodeString(nameStart, nameEnd) : new String(buf, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @return True if the next value was null, and it was skipped.
+	 */
+	boolean skipNull() {
+		if (peekByte() == 'n') {
+			expectWord("null");
+			return true;
+		}
+		return false;
+	}
+	
+	private void expectWord(String word) {
+		if (pos + word.length() > end) throw fallback();
+		for (int i = 0; i < word.length(); i++) {
+			if (buf[pos + i] != word.charAt(i)) throw fallback();
+		}
+		pos += word.length();
+	}
+	
+	boolean nextBoolean() {
+		int b = peekByte();
+		if (b == 't') {
+			expectWord("true");
+			return true;
+		}
+		if (b == 'f') {
+			expectWord("false");
+			return false;
+		}
+		throw fallback();
+	}
+	
+	long nextLong() {
+		peekByte();
+		boolean negative = false;
+		if (pos < end && buf[pos] == '-') {
+			negative = true;
+			pos++;
+		}
+		
+		int start = pos;
+		long value = 0;
+		while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+			if (pos - start >= 18) throw fallback(); //Might overflow.
+			value = value * 10 + (buf[pos++] - '0');
+		}
+		
+		if (pos == start || (pos < end && (buf[pos] == '.' || buf[pos] == 'e' || buf[pos] == 'E'))) {
+			throw fallback();
+		}
+		return negative ? -value : value;
+	}
+	
+	int nextInt() {
+		long value = nextLong();
+		if (value != (int) value) {
+			throw fallback();
+		}
+		return (int) value;
+	}
+	
+	/**
+	 * Plain numbers with less than 2^53 as the digits and a power of ten from -22 to 22 are computed directly,
+	 * that gives exactly what Double.parseDouble() gives. Others are parsed with Double.parseDouble().
+	 * @return
+	 */
+	double nextDouble() {
+		peekByte();
+		int start = pos;
+		
+		double value = parseSimpleDouble();
+		if (!Double.isNaN(value)) {
+			return value;
+		}
+		
+		pos = start;
+		while (pos < end) {
+			byte b = buf[pos];
+			if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+				pos++;
+			} else {
+				break;
+			}
+		}
+		if (pos == start) throw fallback();
+		
+		try {
+			return Double.parseDouble(new String(buf, start, pos - start, StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			throw fallback();
+		}
+	}
+	
+	/**
+	 * Reads -123, 1.5 or 25e-3, the plain forms Double.parseDouble() reads the same way.
+	 * @return The number, or NaN if it has to be parsed with Double.parseDouble().
+	 */
+	private double parseSimpleDouble() {
+		boolean negative = false;
+		if (pos < end && buf[pos] == '-') {
+			negative = true;
+			pos++;
+		}
+		
+		long mantissa = 0;
+		int digits = 0; //Significant digits in the mantissa.
+		int exponent = 0;
+		
+		int start = pos;
+		while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+			if (mantissa != 0 || buf[pos] != '0') digits++;
+			mantissa = mantissa * 10 + (buf[pos++] - '0');
+		}
+		if (pos == start) return Double.NaN;
+		
+		if (pos < end && buf[pos] == '.') {
+			pos++;
+			start = pos;
+			while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+				if (mantissa != 0 || buf[pos] != '0') digits++;
+				mantissa = mantissa * 10 + (buf[pos++] - '0');
+				exponent--;
+			}
+			if (pos == start) return Double.NaN;
+		}
+		if (digits > 18) return Double.NaN; //Might have overflowed.
+		
+		if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+			pos++;
+			boolean negativeExponent = false;
+			if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+				negativeExponent = buf[pos++] == '-';
+			}
+			
+			start = pos;
+			int e = 0;
+			while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+				if (pos - start >= 4) return Double.NaN;
+				e = e * 10 + (buf[pos++] - '0');
+			}
+			if (pos == start) return Double.NaN;
+			exponent += negativeExponent ? -e : e;
+		}
+		
+		if (pos < end) {
+			byte b = buf[pos];
+			if (b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') return Double.NaN; //Not a plain number, let parseDouble() decide.
+		}
+		
+		if (mantissa == 0) {
+			return negative ? -0.0 : 0.0;
+		}
+		if (mantissa >= (1L << 53) || exponent < -22 || exponent > 22) { //Not exact as a double, would need rounding twice.
+			return Double.NaN;
+		}
+		
+		double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+		return negative ? -value : value;
+	}
+	
+	/**
+	 * Finds the raw bytes of the next string, without decoding it.
+	 */
+	private void scanString() {
+		expect('"');
+		stringStart = pos;
+		stringAscii = true;
+		stringEscaped = false;
+		
+		while (true) {
+			if (pos >= end) throw fallback();
+			byte b = buf[pos];
+			if (b == '"') break;
+			if (b == '\\') {
+				stringEscaped = true;
+				pos++;
+			} else if (b < 0) {
+				stringAscii = false;
+			}
+			pos++;
+		}
+		stringEnd = pos++;
+	}
+	
+	private String decodeScannedString() {
+		if (stringEscaped) {
+			return decodeString(stringStart, stringEnd);
+		}
+		return new String(buf, stringStart, stringEnd - stringStart, stringAscii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @param s
+	 * @return True if the last scanned string has the same text as s.
+	 */
+	private boolean scannedStringEquals(String s) {
+		if (!stringAscii || stringEscaped || s.length() != stringEnd - stringStart) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) != buf[stringStart + i]) return false;
+		}
+		return true;
+	}
+	
+	String nextString() {
+		scanString();
+		return decodeScannedString();
+	}
+	
+	/**
+	 * Same as nextString(), but short strings that were read recently are returned from the cache instead of a new String.
+	 * Fields that have only a few different values, like names or states, don't create garbage then.
+	 * The cache is shared by threads, that's fine since strings can't change.
+	 * @param recent Cache of the field, length is a power of two.
+	 * @return
+	 */
+	String nextRecentString(String[] recent) {
+		scanString();
+		int length = stringEnd - stringStart;
+		if (!stringAscii || stringEscaped || length > MAX_RECENT_STRING_BYTES) {
+			return decodeScannedString();
+		}
+		
+		int hash = 0; //Same as String.hashCode() for ASCII.
+		for (int i = stringStart; i < stringEnd; i++) {
+			hash = 31 * hash + buf[i];
+		}
+		
+		int slot = (hash ^ (hash >>> 16)) & (recent.length - 1);
+		String cached = recent[slot];
+		if (cached != null && cached.hashCode() == hash && scannedStringEquals(cached)) {
+			return cached;
+		}
+		
+		String value = decodeScannedString();
+		recent[slot] = value;
+		return value;
+	}
+	
+	/**
+	 * Same as nextString(), but if the string is one of the candidates, returns it instead of a new String.
+	 * @param candidates
+	 * @return
+	 */
+	String nextString(String[] candidates) {
+		scanString();
+		for (String candidate : candidates) {
+			if (scannedStringEquals(candidate)) return candidate;
+		}
+		return decodeScannedString();
+	}
+	
+	/**
+	 * Reads a UUID written as a string. UUIDs that were read recently are returned from the cache instead of a new UUID.
+	 * @param recent Cache of the field, length is a power of two.
+	 * @return
+	 */
+	UUID nextUuid(UUID[] recent) {
+		scanString();
+		if (stringEscaped || stringEnd - stringStart != 36) { //Not the usual form, UUID.fromString() decides.
+			return UUID.fromString(decodeScannedString());
+		}
+		
+		long mostSig = 0, leastSig = 0;
+		for (int i = 0; i < 36; i++) {
+			byte b = buf[stringStart + i];
+			if (i == 8 || i == 13 || i == 18 || i == 23) {
+				if (b != '-') return UUID.fromString(decodeScannedString());
+				continue;
+			}
+			
+			int digit = Character.digit(b, 16);
+			if (digit < 0) return UUID.fromString(decodeScannedString()); //Throws the error.
+			if (i < 18) {
+				mostSig = (mostSig << 4) | digit;
+			} else {
+				leastSig = (leastSig << 4) | digit;
+			}
+		}
+		
+		long hash = mostSig ^ leastSig;
+		int slot = (int) (hash ^ (hash >>> 32)) & (recent.length - 1);
+		UUID cached = recent[slot];
+		if (cached != null && cached.getMostSignificantBits() == mostSig && cached.getLeastSignificantBits() == leastSig) {
+			return cached;
+		}
+		
+		UUID value = new UUID(mostSig, leastSig);
+		recent[slot] = value;
+		return value;
+	}
+	
+	private String decodeString(int start, int stringEnd) {
+		StringBuilder sb = new StringBuilder(stringEnd - start);
+		int runStart = start;
+		int i = start;
+		
+		while (i < stringEnd) {
+			if (buf[i] != '\\') {
+				i++;
+				continue;
+			}
+			
+			sb.append(new String(buf, runStart, i - runStart, StandardCharsets.UTF_8));
+			if (i + 1 >= stringEnd) throw fallback();
+			
+			byte escape = buf[i + 1];
+			i += 2;
+			switch (escape) {
+				case '"': sb.append('"'); break;
+				case '\\': sb.append('\\'); break;
+				case '/': sb.append('/'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'u':
+					if (i + 4 > stringEnd) throw fallback();
+					int c = 0;
+					for (int j = 0; j < 4; j++) {
+						int digit = Character.digit(buf[i + j], 16);
+						if (digit < 0) throw fallback();
+						c = (c << 4) | digit;
+					}
+					sb.append((char) c);
+					i += 4;
+					break;
+				default:
+					throw fallback();
+			}
+			runStart = i;
+		}
+		
+		sb.append(new String(buf, runStart, stringEnd - runStart, StandardCharsets.UTF_8));
+		return sb.toString();
+	}
+	
+	/**
+	 * Skips the next value, whatever it is.
+	 */
+	void skipValue() {
+		int b = peekByte();
+		if (b == '{' || b == '[') {
+			pos++;
+			int close = b == '{' ? '}' : ']';
+			while (hasNext()) {
+				if (b == '{') {
+					nextName();
+				}
+				skipValue();
+			}
+			expect(close);
+		} else if (b == '"') {
+			nextString();
+		} else if (b == 't' || b == 'f') {
+			nextBoolean();
+		} else if (b == 'n') {
+			expectWord("null");
+		} else {
+			nextDouble();
+		}
+	}
+	
+	/**
+	 * Skips the next value and returns it as JSON, so it can be given to Gson.
+	 * @return
+	 */
+	String nextRawValue() {
+		peekByte();
+		int start = pos;
+		skipValue();
+		return new String(buf, start, pos - start, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Checks that there is nothing but whitespace left.
+	 */
+	void endDocument() {
+		while (pos < end) {
+			byte b = buf[pos++];
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				throw fallback();
+			}
+		}
+	}
+}
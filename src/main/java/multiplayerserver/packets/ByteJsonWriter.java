@@ -0,0 +1,241 @@
+package multiplayerserver.packets;
+
+import java.util.Arrays;
+
+/**
+ * Writes JSON straight to a UTF-8 byte array, the same way Gson's JsonWriter writes it
+ * (HTML-safe escaping, no whitespace), but without going through a Writer and a String.
+ * Used by PacketAdapterFactory. Not thread safe, each thread reuses its own writer.
+ */
+final class ByteJsonWriter {
+	private static final String[] REPLACEMENT_CHARS = new String[128]; //Same escapes as Gson's HTML-safe JsonWriter.
+	
+	static {
+		for (int i = 0; i <= 0x1f; i++) {
+			REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+		}
+		REPLACEMENT_CHARS['"'] = "\\\"";
+		REPLACEMENT_CHARS['\\'] = "\\\\";
+		REPLACEMENT_CHARS['\t'] = "\\t";
+		REPLACEMENT_CHARS['\b'] = "\\b";
+		REPLACEMENT_CHARS['\n'] = "\\n";
+		REPLACEMENT_CHARS['\r'] = "\\r";
+		REPLACEMENT_CHARS['\f'] = "\\f";
+		REPLACEMENT_CHARS['<'] = "\\u003c";
+		REPLACEMENT_CHARS['>'] = "\\u003e";
+		REPLACEMENT_CHARS['&'] = "\\u0026";
+		REPLACEMENT_CHARS['='] = "\\u003d";
+		REPLACEMENT_CHARS['\''] = "\\u0027";
+	}
+	
+	private byte[] buf = new byte[256];
+	private int pos = 0;
+	
+	private final boolean[] needsComma = new boolean[64]; //Per nesting level.
+	private int depth = 0;
+	
+	void reset() {
+		pos = 0;
+		depth = 0;
+	}
+	
+	byte[] toByteArray() {
+		return Arrays.copyOf(buf, pos);
+	}
+	
+	private void ensure(int bytes) {
+		if (pos + bytes > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes));
+		}
+	}
+	
+	void writeByte(int b) {
+		ensure(1);
+		buf[pos++] = (byte) b;
+	}
+	
+	void writeBytes(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buf, pos, bytes.length);
+		pos += bytes.length;
+	}
+	
+	/**
+	 * Writes a String that only has ASCII characters, without escaping.
+	 * @param s
+	 */
+	void writeAscii(String s) {
+		int length = s.length();
+		ensure(length);
+		for (int i = 0; i < length; i++) {
+			buf[pos++] = (byte) s.charAt(i);
+		}
+	}
+	
+	/**
+	 * Writes already escaped JSON, for example from Gson, as UTF-8.
+	 * @param json
+	 */
+	void writeRaw(String json) {
+		writeChars(json, false);
+	}
+	
+	private void beforeValue() {
+		if (depth > 0) {
+			if (needsComma[depth]) {
+				writeByte(',');
+			}
+			needsComma[depth] = true;
+		}
+	}
+	
+	void beginObject() {
+		beforeValue();
+		writeByte('{');
+		needsComma[++depth] = false;
+	}
+	
+	void endObject() {
+		depth--;
+		writeByte('}');
+	}
+	
+	void beginArray() {
+		beforeValue();
+		writeByte('[');
+		needsComma[++depth] = false;
+	}
+	
+	void endArray() {
+		depth--;
+		writeByte(']');
+	}
+	
+	/**
+	 * Writes the name of an object member.
+	 * @param name Name already written as JSON with the colon, for example <code>"x":</code>
+	 */
+	void name(byte[] name) {
+		if (needsComma[depth]) {
+			writeByte(',');
+		}
+		writeBytes(name);
+		needsComma[depth] = false; //Value comes right after, without a comma. Writing the value sets it again.
+	}
+	
+	void value(long value) {
+		beforeValue();
+		if (value == Long.MIN_VALUE) {
+			writeAscii(Long.toString(value));
+			return;
+		}
+		
+		ensure(20);
+		if (value < 0) {
+			buf[pos++] = '-';
+			value = -value;
+		}
+		
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			buf[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		pos += digits;
+	}
+	
+	void value(double value) {
+		beforeValue();
+		writeAscii(Double.toString(value));
+	}
+	
+	void value(float value) {
+		beforeValue();
+		writeAscii(Float.toString(value));
+	}
+	
+	void value(boolean value) {
+		beforeValue();
+		writeAscii(value ? "true" : "false");
+	}
+	
+	void value(String value) {
+		beforeValue();
+		writeString(value);
+	}
+	
+	void nullValue() {
+		beforeValue();
+		writeAscii("null");
+	}
+	
+	/**
+	 * Writes a value that is already JSON, for example from Gson.
+	 * @param json
+	 */
+	void rawValue(String json) {
+		beforeValue();
+		writeRaw(json);
+	}
+	
+	private void writeString(String value) {
+		writeByte('"');
+		writeChars(value, true);
+		writeByte('"');
+	}
+	
+	private void writeChars(String s, boolean escape) {
+		int length = s.length();
+		ensure(length);
+		
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			
+			if (c < 0x80) {
+				String replacement = escape ? REPLACEMENT_CHARS[c] : null;
+				if (replacement != null) {
+					writeAscii(replacement);
+				} else {
+					ensure(1);
+					buf[pos++] = (byte) c;
+				}
+			} else if (escape && (c == '\u2028' || c == '\u2029')) {
+				writeAscii(c == '\u2028' ? "\\u2028" : "\\u2029");
+			} else if (c < 0x800) {
+				ensure(2);
+				buf[pos++] = (byte) (0xc0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, s.charAt(++i));
+					ensure(4);
+					buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+					buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+					buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+					buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+				} else {
+					writeByte('?'); //Same as String.getBytes() does with a lone surrogate.
+				}
+			} else {
+				ensure(3);
+				buf[pos++] = (byte) (0xe0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+	}
+	
+	/**
+	 * @param name
+	 * @return The name as JSON with the colon, for example <code>"x":</code>
+	 */
+	static byte[] encodeName(String name) {
+		ByteJsonWriter writer = new ByteJsonWriter();
+		writer.writeString(name);
+		writer.writeByte(':');
+		return writer.toByteArray();
+	}
+}
@@ -0,0 +1,27 @@
+package multiplayerserver.packets;
+
+/**
+ * Built-in packet that carries one region of a file sent with Server.sendFile().
+ * The raw data of the packet is the file region, which is written to the socket straight from the file,
+ * and the client writes it straight to a file, so it never goes through a byte array.
+ * It's never parsed with its data like other DataPackets, dataLength tells how many bytes of the file follow the json.
+ */
+public class FileChunkPacket extends DataPacket {
+	public int transferId;	//Unique per transfer from the server
+	public String name;		//Name given by the sender, for example a file name or an asset id
+	public long fileLength;	//Length of the whole transfer
+	public long offset;		//Where this region goes in the file
+	
+	public FileChunkPacket() {
+		super(null);
+	}
+	
+	public FileChunkPacket(int transferId, String name, long fileLength, long offset, int regionLength) {
+		super(null);
+		this.transferId = transferId;
+		this.name = name;
+		this.fileLength = fileLength;
+		this.offset = offset;
+		this.dataLength = regionLength;
+	}
+}
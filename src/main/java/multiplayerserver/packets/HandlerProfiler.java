@@ -0,0 +1,242 @@
+package multiplayerserver.packets;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Times the handlers a PacketRegistry calls. Handlers run on the network threads, so one slow handler delays
+ * every packet after it on that thread, this tells which one it is. See PacketRegistry.setProfiler().
+ * <p>
+ * Every call is timed with System.nanoTime(), which costs a few tens of nanoseconds. With a stall threshold, a watchdog thread
+ * also reports the handlers that run longer than it, while they are still running.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * HandlerProfiler profiler = new HandlerProfiler();
+ * profiler.setStallThreshold(50); //Milliseconds
+ * server.getPacketRegistry().setProfiler(profiler);
+ * //Later, for example from an admin command:
+ * System.out.println(profiler.dump(10));
+ * }</pre>
+ * One profiler can be used by many registries, then their handlers are counted together.
+ */
+public class HandlerProfiler {
+	public static final String GLOBAL = "global";	//Name of the global handler's stats.
+	public static final String DEFAULT = "default";	//Name of the default handler's stats.
+	
+	private final Map<String, HandlerStats> stats = new ConcurrentHashMap<>();
+	
+	private volatile long thresholdNanos = 0; //0 if stalls aren't reported.
+	private volatile Consumer<HandlerStall> stallListener = stall -> System.err.println("Warning: " + stall);
+	private ScheduledExecutorService watchdog; //Started when a threshold is set.
+	
+	private final Queue<Slot> slots = new ConcurrentLinkedQueue<>(); //Handler call in progress on each thread, for the watchdog.
+	private final ThreadLocal<Slot> threadSlot = ThreadLocal.withInitial(() -> {
+		Slot slot = new Slot();
+		slots.add(slot);
+		return slot;
+	});
+	
+	/**
+	 * What one thread is calling. Written by the thread and read by the watchdog, the sequence is odd while
+	 * a handler runs and changes on every call, so the watchdog can tell if it read a finished call.
+	 */
+	private static final class Slot {
+		final Thread thread = Thread.currentThread();
+		volatile long sequence = 0;
+		volatile String handler;
+		volatile Packet packet;
+		volatile long start;
+		final AtomicLong reported = new AtomicLong(-1); //Sequence of the last reported call.
+		
+		long begin(String handler, Packet packet, long start) {
+			this.handler = handler;
+			this.packet = packet;
+			this.start = start;
+			return ++sequence; //Fields are visible to the watchdog after this.
+		}
+		
+		void end() {
+			packet = null;
+			sequence++;
+		}
+		
+		/**
+		 * @param call Sequence of the call.
+		 * @return True if the call wasn't reported yet, then the caller reports it.
+		 */
+		boolean claim(long call) {
+			return reported.getAndSet(call) != call;
+		}
+	}
+	
+	/**
+	 * Calls the handler and records how long it took.
+	 * @param name Name of the handler.
+	 * @param handler
+	 * @param packet 
+	 */
+	void call(String name, Consumer<Packet> handler, Packet packet) {
+		long threshold = thresholdNanos;
+		Slot slot = threshold > 0 ? threadSlot.get() : null;
+		if (slot != null && (slot.sequence & 1) != 0) { //Handler called another handler, the outer call is watched.
+			slot = null;
+		}
+		long start = System.nanoTime();
+		long call = slot != null ? slot.begin(name, packet, start) : 0;
+		
+		try {
+			handler.accept(packet);
+		} finally {
+			long nanos = System.nanoTime() - start;
+			if (slot != null) {
+				slot.end();
+			}
+			getOrCreate(name).record(nanos);
+			
+			if (slot != null && nanos > threshold && slot.claim(call)) {
+				report(new HandlerStall(name, packet, slot.thread.getName(), nanos, null));
+			}
+		}
+	}
+	
+	private HandlerStats getOrCreate(String name) {
+		HandlerStats handlerStats = stats.get(name); //Without locking in the common case.
+		return handlerStats != null ? handlerStats : stats.computeIfAbsent(name, HandlerStats::new);
+	}
+	
+	/**
+	 * Called by the watchdog thread. Reports the handlers that have run longer than the threshold.
+	 */
+	private void checkStalls() {
+		try {
+			long threshold = thresholdNanos;
+			long now = System.nanoTime();
+			
+			for (Slot slot : slots) {
+				if (!slot.thread.isAlive()) {
+					slots.remove(slot);
+					continue;
+				}
+				
+				long call = slot.sequence;
+				if ((call & 1) == 0) { //Nothing running.
+					continue;
+				}
+				String handler = slot.handler;
+				Packet packet = slot.packet;
+				long start = slot.start;
+				if (slot.sequence != call || packet == null || threshold <= 0 || now - start <= threshold) {
+					continue;
+				}
+				
+				if (slot.claim(call)) {
+					report(new HandlerStall(handler, packet, slot.thread.getName(), now - start, slot.thread.getStackTrace()));
+				}
+			}
+		} catch (RuntimeException e) { //Exception would cancel the scheduled task.
+			e.printStackTrace(System.err);
+		}
+	}
+	
+	private void report(HandlerStall stall) {
+		Consumer<HandlerStall> listener = stallListener;
+		if (listener != null) {
+			listener.accept(stall);
+		}
+	}
+	
+	/**
+	 * Reports handler calls that take longer than this. Starts the watchdog thread, which checks the running handlers
+	 * a few times per threshold, so a handler that never returns is reported too.
+	 * @param millis 0 to stop reporting, which is the default.
+	 */
+	public synchronized void setStallThreshold(long millis) {
+		thresholdNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+		
+		if (watchdog != null) {
+			watchdog.shutdownNow();
+			watchdog = null;
+		}
+		if (millis > 0) {
+			watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "Handler-watchdog");
+				t.setDaemon(true);
+				return t;
+			});
+			long interval = Math.max(1, millis / 4);
+			watchdog.scheduleAtFixedRate(this::checkStalls, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	public long getStallThreshold() {
+		return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+	}
+	
+	/**
+	 * Called with every slow handler call, on the watchdog thread or on the handler's thread.
+	 * By default they are printed to System.err.
+	 * @param listener Null to only collect the times.
+	 */
+	public void setStallListener(Consumer<HandlerStall> listener) {
+		this.stallListener = listener;
+	}
+	
+	/**
+	 * @param name HandlerProfiler.GLOBAL, HandlerProfiler.DEFAULT, or the class name of a packet type.
+	 * @return Stats of the handler, or null if it hasn't been called.
+	 */
+	public HandlerStats getStats(String name) {
+		return stats.get(name);
+	}
+	
+	public List<HandlerStats> getStats() {
+		return new ArrayList<>(stats.values());
+	}
+	
+	/**
+	 * @param limit
+	 * @return Handlers that have taken the most time in total, the most first.
+	 */
+	public List<HandlerStats> getTopOffenders(int limit) {
+		List<HandlerStats> list = getStats();
+		list.sort(Comparator.comparingLong(HandlerStats::getTotalNanos).reversed());
+		return list.subList(0, Math.min(limit, list.size()));
+	}
+	
+	/**
+	 * @param limit
+	 * @return Top offenders as text, one handler per line.
+	 */
+	public String dump(int limit) {
+		StringBuilder text = new StringBuilder("Handlers by total time:");
+		for (HandlerStats handlerStats : getTopOffenders(limit)) {
+			text.append("\n  ").append(handlerStats);
+		}
+		return text.toString();
+	}
+	
+	/**
+	 * Forgets the collected times, for example after loading a level.
+	 */
+	public void reset() {
+		stats.clear();
+	}
+	
+	/**
+	 * Stops the watchdog thread. Times are still collected if the profiler is used.
+	 */
+	public synchronized void close() {
+		setStallThreshold(0);
+	}
+}
@@ -0,0 +1,91 @@
+package multiplayerserver.packets;
+
+import java.util.UUID;
+
+/**
+ * Handler call that took longer than the stall threshold of a HandlerProfiler.
+ * Each slow call is reported once: by the watchdog while the handler is still running, with the stack trace
+ * of the thread so you can see where it's stuck, or when it finishes if the watchdog didn't see it yet.
+ */
+public class HandlerStall {
+	private final String handler;
+	private final String packetType;
+	private final UUID senderUuid;
+	private final int senderId;
+	private final String threadName;
+	private final long nanos;
+	private final StackTraceElement[] stackTrace;
+	
+	HandlerStall(String handler, Packet packet, String threadName, long nanos, StackTraceElement[] stackTrace) {
+		this.handler = handler;
+		this.packetType = packet.getClass().getName();
+		this.senderUuid = packet.senderUuid;
+		this.senderId = packet.senderId;
+		this.threadName = threadName;
+		this.nanos = nanos;
+		this.stackTrace = stackTrace;
+	}
+	
+	/**
+	 * @return HandlerProfiler.GLOBAL, HandlerProfiler.DEFAULT, or the class name of the packet type the handler is for.
+	 */
+	public String getHandler() {
+		return handler;
+	}
+	
+	public String getPacketType() {
+		return packetType;
+	}
+	
+	/**
+	 * @return Sender of the packet, null if the packet came from the server.
+	 */
+	public UUID getSenderUuid() {
+		return senderUuid;
+	}
+	
+	public int getSenderId() {
+		return senderId;
+	}
+	
+	/**
+	 * @return Thread the handler was called on, for example the TCP listener of a client.
+	 */
+	public String getThreadName() {
+		return threadName;
+	}
+	
+	/**
+	 * @return How long the handler had run when it was reported.
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+	
+	/**
+	 * @return True if the handler was still running when it was reported.
+	 */
+	public boolean isRunning() {
+		return stackTrace != null;
+	}
+	
+	/**
+	 * @return Where the handler's thread was when it was reported, or null if the handler had already finished.
+	 */
+	public StackTraceElement[] getStackTrace() {
+		return stackTrace;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append("Handler ").append(handler).append(isRunning() ? " has been running for " : " took ").append(nanos / 1000000).append(" ms")
+				.append(" on ").append(threadName).append(", packet ").append(packetType).append(" from ").append(senderUuid);
+		if (stackTrace != null) {
+			for (StackTraceElement element : stackTrace) {
+				text.append("\n\tat ").append(element);
+			}
+		}
+		return text.toString();
+	}
+}
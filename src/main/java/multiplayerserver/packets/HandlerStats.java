@@ -0,0 +1,108 @@
+package multiplayerserver.packets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How long the calls of one handler took, collected by HandlerProfiler. Updated from many threads without locking.
+ * <p>
+ * Times are counted in a histogram with power of two buckets: bucket 0 has the calls under 2 microseconds,
+ * bucket i the calls from 2^i to 2^(i+1) microseconds, and the last bucket everything longer.
+ */
+public class HandlerStats {
+	public static final int BUCKETS = 24; //Last one starts at about 8 seconds.
+	
+	private final String name;
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS); //Also the count, so a call only updates three counters.
+	
+	HandlerStats(String name) {
+		this.name = name;
+	}
+	
+	void record(long nanos) {
+		totalNanos.add(nanos);
+		if (nanos > maxNanos.get()) {
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+		histogram.incrementAndGet(bucketOf(nanos));
+	}
+	
+	static int bucketOf(long nanos) {
+		long micros = nanos / 1000;
+		return Math.min(63 - Long.numberOfLeadingZeros(micros | 1), BUCKETS - 1);
+	}
+	
+	/**
+	 * @return HandlerProfiler.GLOBAL, HandlerProfiler.DEFAULT, or the class name of the packet type the handler is for.
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += histogram.get(i);
+		}
+		return count;
+	}
+	
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+	
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+	
+	public long getMeanNanos() {
+		long calls = getCount();
+		return calls > 0 ? getTotalNanos() / calls : 0;
+	}
+	
+	/**
+	 * @return Copy of the histogram, number of calls in each bucket.
+	 */
+	public long[] getHistogram() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = histogram.get(i);
+		}
+		return copy;
+	}
+	
+	/**
+	 * Reads the percentile from the histogram, so it's only as exact as the buckets.
+	 * @param percentile From 0 to 100, for example 99.
+	 * @return Upper bound of the bucket the percentile is in, in microseconds. For the last bucket the longest call.
+	 */
+	public long getPercentileMicros(double percentile) {
+		long[] counts = getHistogram();
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return 2L << i;
+			}
+		}
+		return getMaxNanos() / 1000;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: %d calls, total %.1f ms, mean %d us, p50 <%d us, p99 <%d us, max %d us", name, getCount(),
+				getTotalNanos() / 1e6, getMeanNanos() / 1000, getPercentileMicros(50), getPercentileMicros(99), getMaxNanos() / 1000);
+	}
+}
@@ -0,0 +1,23 @@
+package multiplayerserver.packets;
+
+import java.util.UUID;
+
+/**
+ * Built-in packet that is sent periodically by both the server and the clients.
+ * Receiving any packet marks the peer alive, this just makes sure something is received even when the game is idle.
+ * Heartbeats are consumed by Server and Client, and never reach the handlers.
+ */
+public class HeartbeatPacket extends Packet {
+	public int sequence; //Counts up in UDP heartbeats, so the receiver can measure UDP loss. 0 in TCP heartbeats.
+	public long received; //In the client's TCP heartbeats, how many TCP frames it has received in its session. Server can forget those.
+	
+	public HeartbeatPacket() {}
+	
+	public HeartbeatPacket(int sequence) {
+		this.sequence = sequence;
+	}
+	
+	public HeartbeatPacket(UUID uuid) {
+		super(uuid);
+	}
+}
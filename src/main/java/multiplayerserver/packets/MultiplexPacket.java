@@ -0,0 +1,21 @@
+package multiplayerserver.packets;
+
+/**
+ * Built-in packet that carries frames for virtual clients, which share one connection (see Client.addVirtualClient()).
+ * The server sends a frame once per connection for all the virtual clients behind it that get it, instead of once per client.
+ * <p>
+ * The raw data is one or more frames in TCP format ([4 bytes total length][4 bytes json length][json bytes][raw data bytes]),
+ * and all the frames are for every session in sessionIds.
+ */
+public class MultiplexPacket extends DataPacket {
+	public int[] sessionIds;	//Virtual clients the frames are for
+	
+	public MultiplexPacket() {
+		super(null);
+	}
+	
+	public MultiplexPacket(int[] sessionIds, byte[] frames) {
+		super(frames);
+		this.sessionIds = sessionIds;
+	}
+}
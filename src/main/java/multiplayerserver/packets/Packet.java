@@ -6,6 +6,7 @@ import multiplayerserver.targets.Target;
 
 public abstract class Packet {
 	public UUID senderUuid;
+	public int senderId;		//Session ID the server gave the sender, sent instead of senderUuid when set. 0 if not set.
 	public Protocol protocol;
 	public Target[] targets;
 	
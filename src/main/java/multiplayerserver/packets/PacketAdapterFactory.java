@@ -0,0 +1,1247 @@
+package multiplayerserver.packets;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import multiplayerserver.Protocol;
+import multiplayerserver.targets.Target;
+import multiplayerserver.targets.TargetTypes;
+
+/**
+ * Creates a specialized TypeAdapter for each Packet class, so Gson doesn't need to go through its reflective adapter.
+ * Fields are read and written through MethodHandles that are looked up once, and the common field types
+ * (primitives, String, UUID, enums like Protocol, and Target[]) are written straight to the JsonWriter
+ * without looking up an adapter for them.
+ * <p>
+ * Output is the same as Gson's reflective adapter: same field order, nulls left out, same number formats.
+ * Only targets are written differently, with the type IDs from TargetTypes.
+ * Other field types are delegated to Gson. Classes that Gson can't handle the same way here
+ * (generic packets, @JsonAdapter) are left to Gson.
+ * <p>
+ * Besides the TypeAdapter methods, the adapters can write to and read from UTF-8 bytes directly
+ * with ByteJsonWriter and ByteJsonReader, which PacketRegistry uses for the frames.
+ * The bytes can also be read into an existing packet, for the types that are reused (PacketOptions.reusable()).
+ */
+class PacketAdapterFactory implements TypeAdapterFactory {
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final MethodHandle ALLOCATE = findAllocate(); //(Class)Object, creates an object without calling a constructor. Null if not available.
+	
+	private final TargetTypes targetTypes;
+	
+	PacketAdapterFactory(TargetTypes targetTypes) {
+		this.targetTypes = targetTypes;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+		Class<? super T> raw = type.getRawType();
+		if (!Packet.class.isAssignableFrom(raw) || !isSupported(raw)) {
+			return null;
+		}
+		
+		try {
+			return (TypeAdapter<T>) new PacketAdapter<>(gson, (Class<? extends Packet>) raw, targetTypes);
+		} catch (ReflectiveOperationException | RuntimeException e) { //For example a module that doesn't open the class, let Gson try then.
+			return null;
+		}
+	}
+	
+	/**
+	 * Classes without a no-args constructor are created with Unsafe.allocateInstance(), like Gson does.
+	 * @return Null if Unsafe isn't available, then Gson creates those classes.
+	 */
+	private static MethodHandle findAllocate() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			return LOOKUP.findVirtual(unsafeClass, "allocateInstance", MethodType.methodType(Object.class, Class.class)).bindTo(unsafe);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+	
+	private static boolean isSupported(Class<?> clazz) {
+		if (Modifier.isAbstract(clazz.getModifiers()) || clazz.isAnonymousClass() || clazz.isLocalClass()
+				|| (clazz.isMemberClass() && !Modifier.isStatic(clazz.getModifiers()))) { //Gson excludes these.
+			return false;
+		}
+		
+		for (Class<?> c = clazz; c != Object.class; c = c.getSuperclass()) {
+			if (c.getTypeParameters().length > 0 || c.isAnnotationPresent(JsonAdapter.class)) {
+				return false;
+			}
+			for (Field field : c.getDeclaredFields()) {
+				if (isSerialized(field) && (field.isAnnotationPresent(JsonAdapter.class) || hasTypeVariable(field.getGenericType()))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	private static boolean hasTypeVariable(Type type) {
+		if (type instanceof TypeVariable) {
+			return true;
+		}
+		if (type instanceof ParameterizedType) {
+			for (Type arg : ((ParameterizedType) type).getActualTypeArguments()) {
+				if (hasTypeVariable(arg)) return true;
+			}
+		}
+		if (type instanceof GenericArrayType) {
+			return hasTypeVariable(((GenericArrayType) type).getGenericComponentType());
+		}
+		if (type instanceof WildcardType) {
+			WildcardType wildcard = (WildcardType) type;
+			for (Type bound : wildcard.getUpperBounds()) {
+				if (hasTypeVariable(bound)) return true;
+			}
+			for (Type bound : wildcard.getLowerBounds()) {
+				if (hasTypeVariable(bound)) return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean isSerialized(Field field) {
+		int modifiers = field.getModifiers();
+		return !Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic();
+	}
+	
+	static class PacketAdapter<T extends Packet> extends TypeAdapter<T> {
+		private final byte[] prefix; //"className:" in UTF-8
+		private final MethodHandle constructor; //()Packet
+		private final FieldBinding[] writeOrder;
+		private final Map<String, FieldBinding> byName = new HashMap<>();
+		private FieldBinding senderUuid; //Fields of Packet that can be written differently from the packet's own values.
+		private EnumField protocol;
+		private volatile Packet defaults; //New packet, fields that are missing from the JSON get their values from it when a packet is reused.
+		
+		private PacketAdapter(Gson gson, Class<T> clazz, TargetTypes targetTypes) throws ReflectiveOperationException {
+			prefix = (clazz.getName() + ":").getBytes(StandardCharsets.UTF_8);
+			
+			MethodHandle newInstance;
+			try {
+				Constructor<T> c = clazz.getDeclaredConstructor();
+				c.setAccessible(true);
+				newInstance = LOOKUP.unreflectConstructor(c);
+			} catch (NoSuchMethodException e) { //Created the same way as Gson creates it, without calling a constructor.
+				if (ALLOCATE == null) {
+					throw e;
+				}
+				newInstance = MethodHandles.insertArguments(ALLOCATE, 0, clazz);
+			}
+			constructor = newInstance.asType(MethodType.methodType(Packet.class));
+			
+			Map<String, FieldBinding> fields = new LinkedHashMap<>(); //Subclass fields first, like in Gson.
+			for (Class<?> c = clazz; c != Object.class; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if (!isSerialized(field)) continue;
+					
+					field.setAccessible(true);
+					FieldBinding binding = FieldBinding.create(gson, field, targetTypes);
+					
+					if (fields.put(binding.name, binding) != null) {
+						throw new IllegalArgumentException(clazz + " declares multiple JSON fields named " + binding.name);
+					}
+					byName.put(binding.name, binding);
+					if (c == Packet.class && field.getName().equals("senderUuid")) {
+						senderUuid = binding;
+					} else if (c == Packet.class && binding instanceof EnumField && field.getName().equals("protocol")) {
+						protocol = (EnumField) binding;
+					}
+					
+					SerializedName annotation = field.getAnnotation(SerializedName.class);
+					if (annotation != null) {
+						for (String alternate : annotation.alternate()) {
+							byName.putIfAbsent(alternate, binding);
+						}
+					}
+				}
+			}
+			writeOrder = fields.values().toArray(new FieldBinding[0]);
+			for (int i = 0; i < writeOrder.length; i++) {
+				writeOrder[i].index = i;
+			}
+		}
+		
+		private Packet newPacket() throws Throwable {
+			return (Packet) constructor.invokeExact();
+		}
+		
+		/**
+		 * Creates the packet that is reused for this type. Its target array is copied, since it's filled in place.
+		 * @return
+		 */
+		Packet newReusable() {
+			try {
+				Packet packet = newPacket();
+				for (FieldBinding field : writeOrder) {
+					if (field instanceof TargetsField) {
+						field.copy(packet, packet);
+					}
+				}
+				return packet;
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new AssertionError(t);
+			}
+		}
+		
+		private Packet getDefaults() throws Throwable {
+			Packet packet = defaults;
+			if (packet == null) {
+				packet = newPacket(); //Might be created twice by different threads, doesn't matter.
+				defaults = packet;
+			}
+			return packet;
+		}
+		
+		@Override
+		public void write(JsonWriter out, T packet) throws IOException {
+			if (packet == null) {
+				out.nullValue();
+				return;
+			}
+			write(out, packet, false, null);
+		}
+		
+		/**
+		 * Writes the packet without modifying it, but with some of the Packet fields changed.
+		 * @param out
+		 * @param packet
+		 * @param skipSender Leaves senderUuid out.
+		 * @param protocolValue Written instead of the packet's protocol, or null to write the packet's own.
+		 * @throws IOException 
+		 */
+		void write(JsonWriter out, Packet packet, boolean skipSender, Protocol protocolValue) throws IOException {
+			out.beginObject();
+			try {
+				for (FieldBinding field : writeOrder) {
+					if (skipSender && field == senderUuid) continue;
+					if (protocolValue != null && field == protocol) {
+						protocol.writeValue(out, protocolValue);
+						continue;
+					}
+					field.write(out, packet);
+				}
+			} catch (IOException | RuntimeException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new AssertionError(t);
+			}
+			out.endObject();
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		public T read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			
+			T packet;
+			try {
+				packet = (T) (Packet) constructor.invokeExact();
+				
+				in.beginObject();
+				while (in.hasNext()) {
+					FieldBinding field = byName.get(in.nextName());
+					if (field == null) {
+						in.skipValue();
+					} else {
+						field.read(in, packet);
+					}
+				}
+				in.endObject();
+			} catch (IllegalStateException | NumberFormatException e) {
+				throw new JsonSyntaxException(e);
+			} catch (IOException | RuntimeException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new AssertionError(t);
+			}
+			return packet;
+		}
+		
+		/**
+		 * Writes "className:" and the packet as JSON, same bytes as write() would give in UTF-8.
+		 * @param out
+		 * @param packet 
+		 * @param skipSender Leaves senderUuid out.
+		 * @param protocolValue Written instead of the packet's protocol, or null to write the packet's own.
+		 */
+		void writeBytes(ByteJsonWriter out, Packet packet, boolean skipSender, Protocol protocolValue) {
+			out.writeBytes(prefix);
+			out.beginObject();
+			try {
+				for (FieldBinding field : writeOrder) {
+					if (skipSender && field == senderUuid) continue;
+					if (protocolValue != null && field == protocol) {
+						protocol.writeValueBytes(out, protocolValue);
+						continue;
+					}
+					field.writeBytes(out, packet);
+				}
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new AssertionError(t);
+			}
+			out.endObject();
+		}
+		
+		/**
+		 * Reads the JSON of the packet.
+		 * @param in
+		 * @return
+		 * @throws ByteJsonReader.Fallback If the JSON needs to be read with Gson instead.
+		 */
+		Packet readBytes(ByteJsonReader in) {
+			return readBytes(in, null);
+		}
+		
+		/**
+		 * Same as readBytes(in), but can read into a packet that is reused.
+		 * Fields that are missing from the JSON get the values a new packet has, transient fields are left as they are.
+		 * @param in
+		 * @param reused Packet of this type to read into, or null to create a new one.
+		 * @return
+		 * @throws ByteJsonReader.Fallback If the JSON needs to be read with Gson instead. Then the reused packet is half read.
+		 */
+		Packet readBytes(ByteJsonReader in, Packet reused) {
+			try {
+				Packet packet = reused != null ? reused : newPacket();
+				boolean trackSeen = reused != null && writeOrder.length <= Long.SIZE;
+				long seen = 0; //Bits by field index.
+				
+				if (reused != null && !trackSeen) { //Too many fields to track, so all are reset first.
+					Packet defaultPacket = getDefaults();
+					for (FieldBinding field : writeOrder) {
+						field.copy(packet, defaultPacket);
+					}
+				}
+				
+				in.beginObject();
+				int expected = 0; //Members are usually in the same order as they were written.
+				while (in.hasNext()) {
+					in.nextName();
+					
+					FieldBinding field = null;
+					for (int i = 0; i < writeOrder.length; i++) {
+						FieldBinding candidate = writeOrder[(expected + i) % writeOrder.length];
+						if (in.nameEquals(candidate.nameBytes)) {
+							field = candidate;
+							expected = (expected + i + 1) % writeOrder.length;
+							break;
+						}
+					}
+					if (field == null) {
+						field = byName.get(in.nameString()); //Escaped or alternate name.
+					}
+					
+					if (field == null) {
+						in.skipValue();
+					} else {
+						field.readBytes(in, packet);
+						seen |= 1L << field.index;
+					}
+				}
+				in.endObject();
+				
+				if (trackSeen && Long.bitCount(seen) != writeOrder.length) {
+					Packet defaultPacket = getDefaults();
+					for (FieldBinding field : writeOrder) {
+						if ((seen & (1L << field.index)) == 0) {
+							field.copy(packet, defaultPacket);
+						}
+					}
+				}
+				return packet;
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new AssertionError(t);
+			}
+		}
+	}
+	
+	/**
+	 * Reads and writes one field. Getter and setter are MethodHandles adapted to take a Packet,
+	 * so they can be called with invokeExact.
+	 */
+	private abstract static class FieldBinding {
+		final String name;
+		final byte[] nameBytes; //"name":
+		final MethodHandle getter;
+		final MethodHandle setter;
+		final MethodHandle copier; //(to, from), sets the field of to from the field of from.
+		int index; //In the write order.
+		
+		FieldBinding(Field field, Class<?> type) throws IllegalAccessException {
+			SerializedName annotation = field.getAnnotation(SerializedName.class);
+			this.name = annotation != null ? annotation.value() : field.getName();
+			this.nameBytes = ByteJsonWriter.encodeName(name);
+			this.getter = LOOKUP.unreflectGetter(field).asType(MethodType.methodType(type, Packet.class));
+			this.setter = LOOKUP.unreflectSetter(field).asType(MethodType.methodType(void.class, Packet.class, type));
+			this.copier = MethodHandles.filterArguments(setter, 1, getter);
+		}
+		
+		/**
+		 * Copies the field's value, used to reset a reused packet.
+		 * @param to
+		 * @param from
+		 * @throws Throwable 
+		 */
+		void copy(Packet to, Packet from) throws Throwable {
+			copier.invokeExact(to, from);
+		}
+		
+		abstract void write(JsonWriter out, Packet packet) throws Throwable;
+		
+		abstract void read(JsonReader in, Packet packet) throws Throwable;
+		
+		abstract void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable;
+		
+		abstract void readBytes(ByteJsonReader in, Packet packet) throws Throwable;
+		
+		static FieldBinding create(Gson gson, Field field, TargetTypes targetTypes) throws IllegalAccessException {
+			Class<?> type = field.getType();
+			
+			if (type == int.class) return new IntField(field);
+			if (type == long.class) return new LongField(field);
+			if (type == double.class) return new DoubleField(field);
+			if (type == float.class) return new FloatField(field);
+			if (type == boolean.class) return new BooleanField(field);
+			if (type == short.class || type == byte.class || type == char.class) return new SmallField(field, type);
+			if (type == String.class) return new StringField(field);
+			if (type == UUID.class) return new UuidField(field);
+			if (type == Target[].class) return new TargetsField(gson, field, targetTypes);
+			if (type.isEnum() && field.getGenericType() == type) return new EnumField(field, type);
+			return new DelegateField(gson, field);
+		}
+		
+		static boolean skipNull(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return true;
+			}
+			return false;
+		}
+	}
+	
+	private static class IntField extends FieldBinding {
+		IntField(Field field) throws IllegalAccessException {
+			super(field, int.class);
+		}
+		
+		@Override
+		void write(JsonWriter out, Packet packet) throws Throwable {
+			out.name(name).value((int) getter.invokeExact(packet));
+		}
+		
+		@Override
+		void read(JsonReader in, Packet packet) throws Throwable {
+			if (!skipNull(in)) setter.invokeExact(packet, in.nextInt());
+		}
+		
+		@Override
+		void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable {
+			out.name(nameBytes);
+			out.value((int) getter.invokeExact(packet));
+		}
+		
+		@Override
+		void readBytes(ByteJsonReader in, Packet packet) throws Throwable {
+			if (!in.skipNull()) setter.invokeExact(packet, in.nextInt());
+		}
+	}
+	
+	private static class LongField extends FieldBinding {
+		LongField(Field field) throws IllegalAccessException {
+			super(field, long.class);
+		}
+		
+		@Override
+		void write(JsonWriter out, Packet packet) throws Throwable {
+			out.name(name).value((long) getter.invokeExact(packet));
+		}
+		
+		@Override
+		void read(JsonReader in, Packet packet) throws Throwable {
+			if (!skipNull(in)) setter.invokeExact(packet, in.nextLong());
+		}
+		
+		@Override
+		void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable {
+			out.name(nameBytes);
+			out.value((long) getter.invokeExact(packet));
+		}
+		
+		@Override
+		void readBytes(ByteJsonReader in, Packet packet) throws Throwable {
+			if (!in.skipNull()) setter.invokeExact(packet, in.nextLong());
+		}
+	}
+	
+	private static class DoubleField extends FieldBinding {
+		DoubleField(Field field) throws IllegalAccessException {
+			super(field, double.class);
+		}
+		
+		@Override
+		void write(JsonWriter out, Packet packet) throws Throwable {
+			double value = (double) getter.invokeExact(packet);
+			checkFloatingPoint(value);
+			out.name(name).value(value);
+		}
+		
+		@Override
+		void read(JsonReader in, Packet packet) throws Throwable {
+			if (!skipNull(in)) setter.invokeExact(packet, in.nextDouble());
+		}
+		
+		@Override
+		void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable {
+			double value = (double) getter.invokeExact(packet);
+			checkFloatingPoint(value);
+			out.name(nameBytes);
+			out.value(value);
+		}
+		
+		@Override
+		void readBytes(ByteJsonReader in, Packet packet) throws Throwable {
+			if (!in.skipNull()) setter.invokeExact(packet, in.nextDouble());
+		}
+	}
+	
+	private static class FloatField extends FieldBinding {
+		FloatField(Field field) throws IllegalAccessException {
+			super(field, float.class);
+		}
+		
+		@Override
+		void write(JsonWriter out, Packet packet) throws Throwable {
+			float value = (float) getter.invokeExact(packet);
+			checkFloatingPoint(value);
+			out.name(name).value((Number) value); //Float's own toString, like Gson.
+		}
+		
+		@Override
+		void read(JsonReader in, Packet packet) throws Throwable {
+			if (!skipNull(in)) setter.invokeExact(packet, (float) in.nextDouble());
+		}
+		
+		@Override
+		void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable {
+			float value = (float) getter.invokeExact(packet);
+			checkFloatingPoint(value);
+			out.name(nameBytes);
+			out.value(value);
+		}
+		
+		@Override
+		void readBytes(ByteJsonReader in, Packet packet) throws Throwable {
+			if (!in.skipNull()) setter.invokeExact(packet, (float) in.nextDouble());
+		}
+	}
+	
+	private static void checkFloatingPoint(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			throw new IllegalArgumentException(value + " is not a valid double value as per JSON specification.");
+		}
+	}
+	
+	private static class BooleanField extends FieldBinding {
+		BooleanField(Field field) throws IllegalAccessException {
+			super(field, boolean.class);
+		}
+		
+		@Override
+		void write(JsonWriter out, Packet packet) throws Throwable {
+			out.name(name).value((boolean) getter.invokeExact(packet));
+		}
+		
+		@Override
+		void read(JsonReader in, Packet packet) throws Throwable {
+			if (skipNull(in)) return;
+			boolean value = in.peek() == JsonToken.STRING ? Boolean.parseBoolean(in.nextString()) : in.nextBoolean();
+			setter.invokeExact(packet, value);
+		}
+		
+		@Override
+		void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable {
+			out.name(nameBytes);
+			out.value((boolean) getter.invokeExact(packet));
+		}
+		
+		@Override
+		void readBytes(ByteJsonReader in, Packet packet) throws Throwable {
+			if (!in.skipNull()) setter.invokeExact(packet, in.nextBoolean());
+		}
+	}
+	
+	/**
+	 * Short, byte and char are rare in packets, so they are boxed.
+	 */
+	private static class SmallField extends FieldBinding {
+		private final Class<?> type;
+		
+		SmallField(Field field, Class<?> type) throws IllegalAccessException {
+			super(field, Object.class);
+			this.type = type;
+		}
+		
+		@Override
+		void write(JsonWriter out, Packet packet) throws Throwable {
+			Object value = getter.invokeExact(packet);
+			if (type == char.class) {
+				out.name(name).value(String.valueOf(value));
+			} else {
+				out.name(name).value((Number) value);
+			}
+		}
+		
+		@Override
+		void read(JsonReader in, Packet packet) throws Throwable {
+			if (skipNull(in)) return;
+			
+			Object value;
+			if (type == char.class) {
+				String s = in.nextString();
+				if (s.length() != 1) {
+					throw new JsonSyntaxException("Expecting character, got: " + s);
+				}
+				value = s.charAt(0);
+			} else if (type == short.class) {
+				value = (short) in.nextInt();
+			} else {
+				value = (byte) in.nextInt();
+			}
+			setter.invokeExact(packet, value);
+		}
+		
+		@Override
+		void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable {
+			Object value = getter.invokeExact(packet);
+			out.name(nameBytes);
+			if (type == char.class) {
+				out.value(String.valueOf(value));
+			} else {
+				out.value(((Number) value).longValue());
+			}
+		}
+		
+		@Override
+		void readBytes(ByteJsonReader in, Packet packet) throws Throwable {
+			if (in.skipNull()) return;
+			
+			Object value;
+			if (type == char.class) {
+				String s = in.nextString();
+				if (s.length() != 1) {
+					throw ByteJsonReader.Fallback.INSTANCE; //Gson throws the error.
+				}
+				value = s.charAt(0);
+			} else if (type == short.class) {
+				value = (short) in.nextInt();
+			} else {
+				value = (byte) in.nextInt();
+			}
+			setter.invokeExact(packet, value);
+		}
+	}
+	
+	private static class StringField extends FieldBinding {
+		private final String[] recent = new String[ByteJsonReader.RECENT_VALUES];
+		
+		StringField(Field field) throws IllegalAccessException {
+			super(field, String.class);
+		}
+		
+		@Override
+		void write(JsonWriter out, Packet packet) throws Throwable {
+			out.name(name).value((String) getter.invokeExact(packet));
+		}
+		
+		@Override
+		void read(JsonReader in, Packet packet) throws Throwable {
+			JsonToken token = in.peek();
+			if (token == JsonToken.NULL) {
+				in.nextNull();
+				setter.invokeExact(packet, (String) null);
+			} else if (token == JsonToken.BOOLEAN) {
+				setter.invokeExact(packet, Boolean.toString(in.nextBoolean()));
+			} else {
+				setter.invokeExact(packet, in.nextString());
+			}
+		}
+		
+		@Override
+		void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable {
+			String value = (String) getter.invokeExact(packet);
+			if (value != null) {
+				out.name(nameBytes);
+				out.value(value);
+			}
+		}
+		
+		@Override
+		void readBytes(ByteJsonReader in, Packet packet) throws Throwable {
+			String value = in.skipNull() ? null : in.nextRecentString(recent);
+			setter.invokeExact(packet, value);
+		}
+	}
+	
+	private static class UuidField extends FieldBinding {
+		private final UUID[] recent = new UUID[ByteJsonReader.RECENT_VALUES];
+		
+		UuidField(Field field) throws IllegalAccessException {
+			super(field, UUID.class);
+		}
+		
+		@Override
+		void write(JsonWriter out, Packet packet) throws Throwable {
+			UUID value = (UUID) getter.invokeExact(packet);
+			out.name(name).value(value == null ? null : value.toString());
+		}
+		
+		@Override
+		void read(JsonReader in, Packet packet) throws Throwable {
+			UUID value = skipNull(in) ? null : UUID.fromString(in.nextString());
+			setter.invokeExact(packet, value);
+		}
+		
+		@Override
+		void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable {
+			UUID value = (UUID) getter.invokeExact(packet);
+			if (value != null) {
+				out.name(nameBytes);
+				out.value(value.toString());
+			}
+		}
+		
+		@Override
+		void readBytes(ByteJsonReader in, Packet packet) throws Throwable {
+			UUID value = in.skipNull() ? null : in.nextUuid(recent);
+			setter.invokeExact(packet, value);
+		}
+	}
+	
+	private static class EnumField extends FieldBinding {
+		private final Map<String, Object> nameToConstant = new HashMap<>();
+		private final Map<Object, String> constantToName = new HashMap<>();
+		private final String[] names; //Keys of nameToConstant, so reading doesn't create a String.
+		
+		EnumField(Field field, Class<?> type) throws IllegalAccessException {
+			super(field, Object.class);
+			
+			for (Object constant : type.getEnumConstants()) {
+				String constantName = ((Enum<?>) constant).name();
+				try {
+					SerializedName annotation = type.getField(constantName).getAnnotation(SerializedName.class);
+					if (annotation != null) {
+						constantName = annotation.value();
+						for (String alternate : annotation.alternate()) {
+							nameToConstant.put(alternate, constant);
+						}
+					}
+				} catch (NoSuchFieldException e) {
+					throw new AssertionError(e);
+				}
+				nameToConstant.put(constantName, constant);
+				constantToName.put(constant, constantName);
+			}
+			names = nameToConstant.keySet().toArray(new String[0]);
+		}
+		
+		@Override
+		void write(JsonWriter out, Packet packet) throws Throwable {
+			writeValue(out, getter.invokeExact(packet));
+		}
+		
+		void writeValue(JsonWriter out, Object value) throws IOException {
+			out.name(name).value(value == null ? null : constantToName.get(value));
+		}
+		
+		@Override
+		void read(JsonReader in, Packet packet) throws Throwable {
+			Object value = skipNull(in) ? null : nameToConstant.get(in.nextString());
+			setter.invokeExact(packet, value);
+		}
+		
+		@Override
+		void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable {
+			writeValueBytes(out, getter.invokeExact(packet));
+		}
+		
+		void writeValueBytes(ByteJsonWriter out, Object value) {
+			if (value != null) {
+				out.name(nameBytes);
+				out.value(constantToName.get(value));
+			}
+		}
+		
+		@Override
+		void readBytes(ByteJsonReader in, Packet packet) throws Throwable {
+			Object value = in.skipNull() ? null : nameToConstant.get(in.nextString(names));
+			setter.invokeExact(packet, value);
+		}
+	}
+	
+	/**
+	 * Targets are in every packet, so they are written directly, and with the type IDs from TargetTypes:
+	 * <code>1</code> for a target without a value, <code>[7,12]</code> or <code>[5,"value"]</code> with one
+	 * (values that are ints, like team or session IDs, are written as numbers).
+	 * Types without an ID are written as <code>{"type":..,"value":..}</code>, like Gson writes them.
+	 * Subclasses of Target are written with Gson, so their own fields are included.
+	 */
+	private static class TargetsField extends FieldBinding {
+		private static final byte[] TYPE = ByteJsonWriter.encodeName("type");
+		private static final byte[] VALUE = ByteJsonWriter.encodeName("value");
+		
+		private final Gson gson;
+		private final TargetTypes targetTypes;
+		private final String[] recentValues = new String[ByteJsonReader.RECENT_VALUES];
+		private final Target[] recent = new Target[2 * ByteJsonReader.RECENT_VALUES]; //Targets with a value, like session targets.
+		
+		TargetsField(Gson gson, Field field, TargetTypes targetTypes) throws IllegalAccessException {
+			super(field, Target[].class);
+			this.gson = gson;
+			this.targetTypes = targetTypes;
+		}
+		
+		/**
+		 * @param value
+		 * @return True if the value is an int written the same way as Integer.toString() writes it, so it can be sent as a number.
+		 */
+		private static boolean isInt(String value) {
+			int start = value.startsWith("-") ? 1 : 0;
+			int length = value.length() - start;
+			if (length == 0 || length > 9 || (value.charAt(start) == '0' && (length > 1 || start == 1))) {
+				return false;
+			}
+			
+			for (int i = start; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c < '0' || c > '9') {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		void write(JsonWriter out, Packet packet) throws Throwable {
+			Target[] targets = (Target[]) getter.invokeExact(packet);
+			if (targets == null) {
+				out.name(name).nullValue();
+				return;
+			}
+			
+			out.name(name).beginArray();
+			for (Target target : targets) {
+				if (target == null) {
+					out.nullValue();
+				} else if (target.getClass() != Target.class) {
+					((TypeAdapter<Target>) gson.getAdapter(target.getClass())).write(out, target);
+				} else {
+					int id = targetTypes.getId(target);
+					String value = target.getValue();
+					
+					if (id == 0) {
+						out.beginObject();
+						out.name("type").value(target.getType());
+						out.name("value").value(value);
+						out.endObject();
+					} else if (value == null) {
+						out.value(id);
+					} else {
+						out.beginArray();
+						out.value(id);
+						if (isInt(value)) {
+							out.value(Integer.parseInt(value));
+						} else {
+							out.value(value);
+						}
+						out.endArray();
+					}
+				}
+			}
+			out.endArray();
+		}
+		
+		@Override
+		void read(JsonReader in, Packet packet) throws Throwable {
+			if (skipNull(in)) {
+				setter.invokeExact(packet, (Target[]) null);
+				return;
+			}
+			
+			List<Target> targets = new ArrayList<>();
+			in.beginArray();
+			while (in.hasNext()) {
+				JsonToken token = in.peek();
+				
+				if (token == JsonToken.NULL) {
+					in.nextNull();
+					targets.add(null);
+				} else if (token == JsonToken.NUMBER) {
+					targets.add(targetTypes.getTarget(in.nextInt(), null));
+				} else if (token == JsonToken.BEGIN_ARRAY) {
+					in.beginArray();
+					int id = in.nextInt();
+					String value = in.hasNext() ? readString(in) : null; //Numbers are read as strings too.
+					in.endArray();
+					targets.add(targetTypes.getTarget(id, value));
+				} else {
+					targets.add(readObject(in));
+				}
+			}
+			in.endArray();
+			
+			setter.invokeExact(packet, targets.toArray(new Target[0]));
+		}
+		
+		private static Target readObject(JsonReader in) throws IOException {
+			String type = null;
+			String value = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				String key = in.nextName();
+				if (key.equals("type")) {
+					type = readString(in);
+				} else if (key.equals("value")) {
+					value = readString(in);
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return new Target(type, value);
+		}
+		
+		private static String readString(JsonReader in) throws IOException {
+			return skipNull(in) ? null : in.nextString();
+		}
+		
+		@Override
+		void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable {
+			Target[] targets = (Target[]) getter.invokeExact(packet);
+			if (targets == null) {
+				return;
+			}
+			
+			out.name(nameBytes);
+			out.beginArray();
+			for (Target target : targets) {
+				if (target == null) {
+					out.nullValue();
+				} else if (target.getClass() != Target.class) {
+					out.rawValue(toJson(gson, gson.getAdapter(target.getClass()), target));
+				} else {
+					int id = targetTypes.getId(target);
+					String value = target.getValue();
+					
+					if (id == 0) {
+						out.beginObject();
+						if (target.getType() != null) {
+							out.name(TYPE);
+							out.value(target.getType());
+						}
+						if (value != null) {
+							out.name(VALUE);
+							out.value(value);
+						}
+						out.endObject();
+					} else if (value == null) {
+						out.value(id);
+					} else {
+						out.beginArray();
+						out.value(id);
+						if (isInt(value)) {
+							out.value(Integer.parseInt(value));
+						} else {
+							out.value(value);
+						}
+						out.endArray();
+					}
+				}
+			}
+			out.endArray();
+		}
+		
+		/**
+		 * When reading into a reused packet, its array is reused if the number of targets is the same.
+		 * Targets with a value that were read recently are taken from a cache, the ones without are shared anyway.
+		 */
+		@Override
+		void readBytes(ByteJsonReader in, Packet packet) throws Throwable {
+			if (in.skipNull()) {
+				setter.invokeExact(packet, (Target[]) null);
+				return;
+			}
+			
+			Target[] current = in.isReusing() ? (Target[]) getter.invokeExact(packet) : null;
+			List<Target> targets = current == null ? new ArrayList<>(2) : null; //Only used if they don't fit in current.
+			int count = 0;
+			
+			in.beginArray();
+			while (in.hasNext()) {
+				Target target = readTarget(in);
+				
+				if (targets == null && count < current.length) {
+					current[count] = target;
+				} else {
+					if (targets == null) {
+						targets = new ArrayList<>(Arrays.asList(current));
+					}
+					targets.add(target);
+				}
+				count++;
+			}
+			in.endArray();
+			
+			Target[] result;
+			if (targets != null) {
+				result = targets.toArray(new Target[0]);
+			} else {
+				result = count == current.length ? current : Arrays.copyOf(current, count);
+			}
+			setter.invokeExact(packet, result);
+		}
+		
+		private Target readTarget(ByteJsonReader in) {
+			int next = in.peek();
+			
+			if (in.skipNull()) {
+				return null;
+			} else if (next == '[') {
+				in.beginArray();
+				int id = in.nextInt();
+				
+				Target target;
+				if (!in.hasNext() || in.skipNull()) {
+					target = targetTypes.getTarget(id, null);
+				} else if (in.peek() == '"') {
+					String value = in.nextRecentString(recentValues);
+					target = recentTarget(id, value.hashCode(), value, 0);
+				} else {
+					long value = in.nextLong();
+					target = recentTarget(id, Long.hashCode(value), null, value);
+				}
+				in.endArray();
+				return target;
+			} else if (next == '{') {
+				return readObject(in);
+			} else {
+				return targetTypes.getTarget(in.nextInt(), null);
+			}
+		}
+		
+		/**
+		 * Targets can't change, so the same one can be in many packets, and used by many threads.
+		 * @param id
+		 * @param hash Hash of the value.
+		 * @param value Value, or null if it was a number.
+		 * @param number Value if it was a number.
+		 * @return Target from the cache, or a new one.
+		 */
+		private Target recentTarget(int id, int hash, String value, long number) {
+			int slot = (31 * id + hash) & (recent.length - 1);
+			Target cached = recent[slot];
+			if (cached != null && targetTypes.getId(cached) == id
+					&& (value != null ? value.equals(cached.getValue()) : isLong(cached.getValue(), number))) {
+				return cached;
+			}
+			
+			Target target = targetTypes.getTarget(id, value != null ? value : Long.toString(number));
+			recent[slot] = target;
+			return target;
+		}
+		
+		/**
+		 * @param s Can be null.
+		 * @param value
+		 * @return True if s is Long.toString(value), checked without creating the String.
+		 */
+		private static boolean isLong(String s, long value) {
+			if (s == null || s.isEmpty() || s.length() > 20) {
+				return false;
+			}
+			
+			int i = s.length();
+			long rest = value;
+			do {
+				int digit = (int) Math.abs(rest % 10);
+				if (--i < 0 || s.charAt(i) != '0' + digit) return false;
+				rest /= 10;
+			} while (rest != 0);
+			
+			if (value < 0) {
+				return i == 1 && s.charAt(0) == '-';
+			}
+			return i == 0;
+		}
+		
+		/**
+		 * Reused packets get their own copy of the array, since it's filled in place.
+		 */
+		@Override
+		void copy(Packet to, Packet from) throws Throwable {
+			Target[] targets = (Target[]) getter.invokeExact(from);
+			Target[] copy = targets != null ? targets.clone() : null;
+			setter.invokeExact(to, copy);
+		}
+		
+		private static Target readObject(ByteJsonReader in) {
+			String type = null;
+			String value = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				in.nextName();
+				if (in.nameEquals(TYPE)) {
+					type = in.skipNull() ? null : in.nextString();
+				} else if (in.nameEquals(VALUE)) {
+					value = in.skipNull() ? null : in.nextString();
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return new Target(type, value);
+		}
+	}
+	
+	/**
+	 * Any other field type uses Gson's adapter for it. Like in Gson, the runtime type of the value
+	 * is used for writing when it's more specific than the field's type.
+	 */
+	private static class DelegateField extends FieldBinding {
+		private final Gson gson;
+		private final TypeAdapter<Object> adapter;
+		private final boolean primitive;
+		
+		@SuppressWarnings("unchecked")
+		DelegateField(Gson gson, Field field) throws IllegalAccessException {
+			super(field, Object.class);
+			this.gson = gson;
+			this.adapter = (TypeAdapter<Object>) gson.getAdapter(TypeToken.get(field.getGenericType()));
+			this.primitive = field.getType().isPrimitive();
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		void write(JsonWriter out, Packet packet) throws Throwable {
+			Object value = getter.invokeExact(packet);
+			if (value == packet) { //Gson skips fields that point to the object itself.
+				return;
+			}
+			
+			out.name(name);
+			chooseAdapter(value).write(out, value);
+		}
+		
+		@SuppressWarnings("unchecked")
+		private TypeAdapter<Object> chooseAdapter(Object value) {
+			if (value != null) {
+				TypeAdapter<Object> runtime = (TypeAdapter<Object>) gson.getAdapter(value.getClass());
+				if (runtime != adapter && (!isReflective(runtime) || isReflective(adapter))) {
+					return runtime;
+				}
+			}
+			return adapter;
+		}
+		
+		/**
+		 * Gson's reflective adapter is recognized by its class name, so Gson's internal classes aren't needed to compile.
+		 * @param adapter
+		 * @return 
+		 */
+		private static boolean isReflective(TypeAdapter<?> adapter) {
+			return adapter instanceof PacketAdapter || adapter.getClass().getName().startsWith("com.google.gson.internal.bind.ReflectiveTypeAdapterFactory$");
+		}
+		
+		@Override
+		void read(JsonReader in, Packet packet) throws Throwable {
+			Object value = adapter.read(in);
+			if (value != null || !primitive) {
+				setter.invokeExact(packet, value);
+			}
+		}
+		
+		@Override
+		void writeBytes(ByteJsonWriter out, Packet packet) throws Throwable {
+			Object value = getter.invokeExact(packet);
+			if (value == null || value == packet) {
+				return;
+			}
+			
+			String json = toJson(gson, chooseAdapter(value), value);
+			if (!json.equals("null")) { //Gson leaves out members that are written as null.
+				out.name(nameBytes);
+				out.rawValue(json);
+			}
+		}
+		
+		@Override
+		void readBytes(ByteJsonReader in, Packet packet) throws Throwable {
+			JsonReader reader = new JsonReader(new StringReader(in.nextRawValue()));
+			reader.setLenient(true);
+			
+			Object value = adapter.read(reader);
+			if (value != null || !primitive) {
+				setter.invokeExact(packet, value);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the value with the adapter and the same settings Gson.toJson() uses.
+	 */
+	@SuppressWarnings("unchecked")
+	private static String toJson(Gson gson, TypeAdapter<?> adapter, Object value) throws IOException {
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new JsonWriter(out);
+		writer.setSerializeNulls(false);
+		writer.setHtmlSafe(true);
+		writer.setLenient(true);
+		((TypeAdapter<Object>) adapter).write(writer, value);
+		return out.toString();
+	}
+}
@@ -0,0 +1,21 @@
+package multiplayerserver.packets;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method as a handler, for PacketRegistry.registerHandlers().
+ * The method takes one parameter, the packet type it handles, which can also be a base type like DataPacket:
+ * <pre>{@code
+ * @PacketHandler
+ * void onMove(MovePacket move) {
+ *     game.movePlayer(move);
+ * }
+ * }</pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface PacketHandler {
+}
@@ -0,0 +1,147 @@
+package multiplayerserver.packets;
+
+import java.util.function.Function;
+import multiplayerserver.Constants;
+
+/**
+ * Extra settings for a packet type, given when the type is registered:
+ * <pre>{@code
+ * registry.register(PlayerStatePacket.class, handler, new PacketOptions<PlayerStatePacket>().retain());
+ * }</pre>
+ * @param <T> Packet type.
+ */
+public class PacketOptions<T extends Packet> {
+	private boolean retained = false;
+	private Function<? super T, ?> retainKey;
+	private boolean coalesced = false;
+	private boolean unreliable = false;
+	private double priority = Constants.DEFAULT_PRIORITY;
+	private Function<? super T, ?> coalesceKey;
+	private boolean reusable = false;
+	
+	/**
+	 * Server keeps the latest packet of this type from each client, and sends them to clients that join later.
+	 * Then they get the current state right away, without the other clients sending it again.
+	 * The type needs to be registered with this option on the server, clients don't need it.
+	 * @return This, so calls can be chained.
+	 */
+	public PacketOptions<T> retain() {
+		retained = true;
+		return this;
+	}
+	
+	/**
+	 * Same as retain(), but keeps the latest packet of each key from each client, for example one per entity.
+	 * @param key Gets the key from a packet, for example <code>p -> p.entityId</code>
+	 * @return This, so calls can be chained.
+	 */
+	public PacketOptions<T> retain(Function<? super T, ?> key) {
+		retained = true;
+		retainKey = key;
+		return this;
+	}
+	
+	/**
+	 * Only the newest packet of this type from each client matters, like a position.
+	 * If an older one is still waiting in a client's outbound queue on the server, the newer one replaces it
+	 * instead of being queued after it, so a slow client gets the fresh state instead of the backlog.
+	 * The type needs to be registered with this option on the server.
+	 * @return This, so calls can be chained.
+	 */
+	public PacketOptions<T> coalesce() {
+		coalesced = true;
+		return this;
+	}
+	
+	/**
+	 * Same as coalesce(), but only packets with the same key replace each other, for example per entity.
+	 * @param key Gets the key from a packet, for example <code>p -> p.entityId</code>
+	 * @return This, so calls can be chained.
+	 */
+	public PacketOptions<T> coalesce(Function<? super T, ?> key) {
+		coalesced = true;
+		coalesceKey = key;
+		return this;
+	}
+	
+	/**
+	 * Packets of this type can be lost, for example state that is sent again soon anyway.
+	 * Protocol.AUTO sends them over UDP when it can, other packet types always go over TCP.
+	 * The sender needs to register the type with this option.
+	 * @return This, so calls can be chained.
+	 */
+	public PacketOptions<T> unreliable() {
+		unreliable = true;
+		return this;
+	}
+	
+	/**
+	 * How important packets of this type are, when the server limits a client's bandwidth.
+	 * Packets with higher priority are sent first, and lower ones wait, but the longer a packet waits the sooner it's sent.
+	 * The server needs to register the type with this option.
+	 * @param priority Default is 1. For example 10 for events that must not lag, 0.1 for cosmetic updates.
+	 * @return This, so calls can be chained.
+	 */
+	public PacketOptions<T> priority(double priority) {
+		this.priority = priority;
+		return this;
+	}
+	
+	/**
+	 * Received packets of this type are read into the same packet every time, one per receiving thread,
+	 * so receiving them doesn't create garbage. For types that arrive many times per second, like positions.
+	 * <p>
+	 * The packet is only valid while its handlers run. A handler must not keep it, or give it to another thread,
+	 * since the next packet of the type overwrites it. Copy what's needed from it instead.
+	 * Fields that are missing from the received JSON get the values a new packet has, and objects in them are shared
+	 * by the reused packets, so they shouldn't be changed. Transient fields keep their values from the last packet.
+	 * Strings, UUIDs and targets aren't created again when the same ones were received recently,
+	 * but other objects in the fields and the raw data of a DataPacket are still new ones.
+	 * <p>
+	 * Only the client reuses packets, and not in inbox mode, where packets wait to be handled.
+	 * The receiver needs to register the type with this option.
+	 * @return This, so calls can be chained.
+	 */
+	public PacketOptions<T> reusable() {
+		reusable = true;
+		return this;
+	}
+	
+	public boolean isReusable() {
+		return reusable;
+	}
+	
+	public double getPriority() {
+		return priority;
+	}
+	
+	public boolean isRetained() {
+		return retained;
+	}
+	
+	/**
+	 * @param packet
+	 * @return Key the packet is retained with, or null if there's only one per client.
+	 */
+	@SuppressWarnings("unchecked")
+	public Object getRetainKey(Packet packet) {
+		return retainKey != null ? ((Function<Packet, ?>) retainKey).apply(packet) : null;
+	}
+	
+	public boolean isUnreliable() {
+		return unreliable;
+	}
+	
+	public boolean isCoalesced() {
+		return coalesced;
+	}
+	
+	/**
+	 * @param packet
+	 * @return Key of the packets that replace each other, or null if there's only one per client.
+	 */
+	@SuppressWarnings("unchecked")
+	public Object getCoalesceKey(Packet packet) {
+		return coalesceKey != null ? ((Function<Packet, ?>) coalesceKey).apply(packet) : null;
+	}
+}
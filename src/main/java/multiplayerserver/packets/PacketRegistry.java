@@ -1,10 +1,38 @@
 package multiplayerserver.packets;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
+import multiplayerserver.Protocol;
+import multiplayerserver.targets.TargetTypes;
 
 /**
  * Tracks all the different packet classes, has packet specific handlers, and serializes and parses packets.
@@ -12,13 +40,25 @@ import java.util.function.Consumer;
 public class PacketRegistry {
 	private final Map<String, Class<? extends Packet>> classNameToClass = new HashMap<>();
 	private final Map<Class<? extends Packet>, Consumer<? extends Packet>> handlers = new HashMap<>();
+	private final Map<Class<? extends Packet>, PacketOptions<?>> options = new ConcurrentHashMap<>();
+	private volatile ClassValue<HandlerChain> chains = newChains(); //Handlers of each packet class, replaced when handlers are registered.
 	
 	private Consumer<Packet> defaultHandler;
     private Consumer<Packet> globalHandler;
 	
-	private final Gson gson = new Gson();
+	private final TargetTypes targetTypes = new TargetTypes(); //Targets are written with these IDs.
+	private final Gson gson = new GsonBuilder()
+			.registerTypeAdapterFactory(new PacketAdapterFactory(targetTypes)) //Specialized adapters for packets, instead of Gson's reflective one.
+			.create();
+	private final Map<Class<?>, TypeAdapter<Packet>> adapters = new ConcurrentHashMap<>(); //Can be used for unregistered packets too, from any thread.
+	private volatile PacketType[] types = new PacketType[1]; //Registered classes by the hash of their name, replaced when a class is registered.
+	
+	//Frames are always UTF-8, whatever the default charset is, so the bytes can be written and read directly.
+	private static final ThreadLocal<ByteJsonWriter> WRITERS = ThreadLocal.withInitial(ByteJsonWriter::new);
+	private static final ThreadLocal<ByteJsonReader> READERS = ThreadLocal.withInitial(ByteJsonReader::new);
 	
 	private boolean disableWarnings = false;
+	private volatile HandlerProfiler profiler; //Null if handlers aren't timed.
 	
 	public PacketRegistry() {
 		registerBuiltInPackets();
@@ -26,6 +66,13 @@ public class PacketRegistry {
 	
 	private void registerBuiltInPackets() {
 		registerPacket(SendUuid.class);
+		registerPacket(SessionInfo.class);
+		registerPacket(SessionRoster.class);
+		registerPacket(HeartbeatPacket.class);
+		registerPacket(StreamChunkPacket.class);
+		registerPacket(FileChunkPacket.class);
+		registerPacket(MultiplexPacket.class);
+		registerPacket(VirtualClientPacket.class);
 	}
 	
 	/**
@@ -53,8 +100,23 @@ public class PacketRegistry {
 		
 		String className = clazz.getName();
         classNameToClass.put(className, clazz);
+		getAdapter(clazz); //Adapter is created when registering, not when the first packet arrives.
+		types = buildTypes();
     }
 	
+	/**
+	 * Same as registerPacket(clazz), and sets the options for the packet type, for example
+	 * <code>registry.registerPacket(PlayerStatePacket.class, new PacketOptions&lt;PlayerStatePacket&gt;().retain())</code>
+	 * @param <T>
+	 * @param clazz
+	 * @param options 
+	 */
+	public <T extends Packet> void registerPacket(Class<T> clazz, PacketOptions<T> options) {
+		registerPacket(clazz);
+		this.options.put(clazz, options);
+		types = buildTypes();
+	}
+	
 	/**
 	 * Register a packet and set a handler for that packet type.
 	 * Needs to be called for all the packets you want to handle in that client/server.
@@ -66,6 +128,7 @@ public class PacketRegistry {
 	 * on the packet type.
 	 * <p>
 	 * Packet classes need to extend Packet.
+	 * A handler for a base type, like DataPacket, is also called for its subclasses, after their own handlers.
 	 * <p>
 	 * Usage: registry.register(MovePacket.class, handlerFunction);
 	 * <p>
@@ -105,19 +168,144 @@ public class PacketRegistry {
 	public <T extends Packet> void register(Class<T> clazz, Consumer<T> handler) {
 		if (handlers.containsKey(clazz)) return;
 		
-		if (!classNameToClass.containsKey(clazz.getName())) {
-			String className = clazz.getName();
-			classNameToClass.put(className, clazz);
-		}
+		registerPacket(clazz);
 		
 		if (handler == null) {
 			return;
 		}
         handlers.put(clazz, handler);
+		chains = newChains(); //Subclasses might get this handler too.
+	}
+	
+	/**
+	 * Same as register(clazz, handler), and sets the options for the packet type.
+	 * @param <T>
+	 * @param clazz
+	 * @param handler Can be null.
+	 * @param options For example <code>new PacketOptions&lt;PlayerStatePacket&gt;().retain()</code>
+	 */
+	public <T extends Packet> void register(Class<T> clazz, Consumer<T> handler, PacketOptions<T> options) {
+		this.options.put(clazz, options);
+		register(clazz, handler);
+		types = buildTypes();
+	}
+	
+	/**
+	 * Registers the methods of the object that have the @PacketHandler annotation, with register().
+	 * Methods of its superclasses are included, and static methods too.
+	 * Each method is bound to a Consumer with LambdaMetafactory once, so calling it costs the same as calling a lambda.
+	 * <p>
+	 * Usage:
+	 * <pre>{@code
+	 * public class GameHandlers {
+	 *     @PacketHandler
+	 *     void onMove(MovePacket move) { ... }
+	 *     
+	 *     @PacketHandler
+	 *     void onAnyData(DataPacket packet) { ... } //Called for all DataPackets
+	 * }
+	 * 
+	 * registry.registerHandlers(new GameHandlers());
+	 * }</pre>
+	 * A packet type can only have one handler. If two methods take the same packet type, or the type already has a handler,
+	 * nothing is registered and an IllegalArgumentException is thrown. A method overridden in a subclass counts once.
+	 * @param listener
+	 * @throws IllegalArgumentException If a method doesn't take one packet parameter, can't be accessed, or its packet type already has a handler.
+	 * If it can't be accessed, use registerHandlers(listener, MethodHandles.lookup()), for example in a named module that doesn't open the package.
+	 */
+	public void registerHandlers(Object listener) {
+		registerHandlers(listener, MethodHandles.lookup());
+	}
+	
+	/**
+	 * Same as registerHandlers(listener), but the methods are looked up with the caller's access.
+	 * @param listener
+	 * @param lookup <code>MethodHandles.lookup()</code> from the caller.
+	 */
+	public void registerHandlers(Object listener, MethodHandles.Lookup lookup) {
+		Map<Class<?>, Method> methods = new LinkedHashMap<>();
+		Set<String> overridden = new HashSet<>(); //Methods of the subclasses, the same method in a superclass is overridden by them.
+		
+		for (Class<?> type = listener.getClass(); type != null && type != Object.class; type = type.getSuperclass()) {
+			List<String> declared = new ArrayList<>();
+			for (Method method : type.getDeclaredMethods()) {
+				String signature = method.getName() + Arrays.toString(method.getParameterTypes());
+				boolean isStatic = Modifier.isStatic(method.getModifiers());
+				if (!isStatic && !Modifier.isPrivate(method.getModifiers())) {
+					declared.add(signature);
+				}
+				if (!method.isAnnotationPresent(PacketHandler.class) || method.isBridge() || (!isStatic && overridden.contains(signature))) {
+					continue;
+				}
+				
+				Class<?>[] parameters = method.getParameterTypes();
+				if (parameters.length != 1 || !Packet.class.isAssignableFrom(parameters[0])) {
+					throw new IllegalArgumentException("Handler needs to take one packet parameter: " + method);
+				}
+				Method previous = methods.put(parameters[0], method);
+				if (previous != null) {
+					throw new IllegalArgumentException("Packet type has two handlers: " + previous + " and " + method);
+				}
+				if (handlers.containsKey(parameters[0])) {
+					throw new IllegalArgumentException("Packet type already has a handler: " + method);
+				}
+			}
+			overridden.addAll(declared);
+		}
+		
+		Map<Class<?>, Consumer<Packet>> bound = new LinkedHashMap<>(); //All are bound first, so nothing is registered if one fails.
+		for (Map.Entry<Class<?>, Method> entry : methods.entrySet()) {
+			bound.put(entry.getKey(), bindHandler(listener, entry.getValue(), lookup));
+		}
+		for (Map.Entry<Class<?>, Consumer<Packet>> entry : bound.entrySet()) {
+			@SuppressWarnings("unchecked") //Checked above that it's a Packet class.
+			Class<Packet> clazz = (Class<Packet>) entry.getKey();
+			register(clazz, entry.getValue());
+		}
 	}
 	
 	/**
-	 * Default handler will be called if no handler is registered for packet type, or it's null.
+	 * @param listener
+	 * @param method Takes one packet parameter.
+	 * @param lookup
+	 * @return Consumer that calls the method on the listener, like a lambda would.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Consumer<Packet> bindHandler(Object listener, Method method, MethodHandles.Lookup lookup) {
+		try {
+			MethodHandles.Lookup declaringLookup = MethodHandles.privateLookupIn(method.getDeclaringClass(), lookup); //Lambda is defined in the declaring class.
+			MethodHandle target = declaringLookup.unreflect(method);
+			boolean isStatic = Modifier.isStatic(method.getModifiers());
+			
+			CallSite site = LambdaMetafactory.metafactory(declaringLookup, "accept",
+					isStatic ? MethodType.methodType(Consumer.class) : MethodType.methodType(Consumer.class, method.getDeclaringClass()),
+					MethodType.methodType(void.class, Object.class), target,
+					MethodType.methodType(void.class, method.getParameterTypes()[0]));
+			return (Consumer<Packet>) (isStatic ? site.getTarget().invoke() : site.getTarget().invoke(listener));
+		} catch (Throwable e) {
+			throw new IllegalArgumentException("Couldn't bind handler " + method, e);
+		}
+	}
+	
+	/**
+	 * IDs of the target types, targets are sent with them instead of the type names.
+	 * Server shares these with its TargetRegistry, and clients get them from the server when they connect.
+	 * @return 
+	 */
+	public TargetTypes getTargetTypes() {
+		return targetTypes;
+	}
+	
+	/**
+	 * @param clazz
+	 * @return Options the packet type was registered with, or null if it doesn't have any.
+	 */
+	public PacketOptions<?> getOptions(Class<? extends Packet> clazz) {
+		return options.get(clazz);
+	}
+	
+	/**
+	 * Default handler will be called if no handler is registered for packet type or its superclasses, or it's null.
 	 * Packet type needs to be registered with register() or registerPacket().
 	 * @param handler 
 	 */
@@ -142,10 +330,181 @@ public class PacketRegistry {
 	 * @return 
 	 */
 	public String serialize(Packet packet) {
-        String json = gson.toJson(packet, packet.getClass());
-        return packet.getClass().getName() + ":" + json;
+		return serialize(packet, false, null);
+	}
+	
+	private String serialize(Packet packet, boolean skipSender, Protocol protocol) {
+		StringWriter out = new StringWriter(128);
+		out.write(packet.getClass().getName());
+		out.write(':');
+		
+		try {
+			JsonWriter writer = new JsonWriter(out); //Same settings as Gson.toJson().
+			writer.setSerializeNulls(false);
+			writer.setHtmlSafe(true);
+			writer.setLenient(true);
+			
+			TypeAdapter<Packet> adapter = getAdapter(packet.getClass());
+			if (adapter instanceof PacketAdapterFactory.PacketAdapter) {
+				((PacketAdapterFactory.PacketAdapter<?>) adapter).write(writer, packet, skipSender, protocol);
+			} else if (skipSender || protocol != null) { //Changed in a copy of the JSON tree, the packet might be sent to others at the same time.
+				JsonElement tree = adapter.toJsonTree(packet);
+				if (tree.isJsonObject()) {
+					if (skipSender) {
+						tree.getAsJsonObject().remove("senderUuid");
+					}
+					if (protocol != null) {
+						tree.getAsJsonObject().add("protocol", gson.toJsonTree(protocol));
+					}
+				}
+				gson.toJson(tree, writer);
+			} else {
+				adapter.write(writer, packet);
+			}
+		} catch (IOException e) {
+			throw new JsonIOException(e);
+		}
+		return out.toString();
     }
 	
+	/**
+	 * Same as serialize(packet) in UTF-8, but the JSON is written straight to bytes without a String in between.
+	 * @param packet
+	 * @return 
+	 */
+	public byte[] serializeToBytes(Packet packet) {
+		return serializeToBytes(packet, false, null);
+	}
+	
+	private byte[] serializeToBytes(Packet packet, boolean skipSender, Protocol protocol) {
+		TypeAdapter<Packet> adapter = getAdapter(packet.getClass());
+		if (!(adapter instanceof PacketAdapterFactory.PacketAdapter)) {
+			return serialize(packet, skipSender, protocol).getBytes(StandardCharsets.UTF_8);
+		}
+		
+		ByteJsonWriter out = WRITERS.get();
+		out.reset();
+		((PacketAdapterFactory.PacketAdapter<?>) adapter).writeBytes(out, packet, skipSender, protocol);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Same as serializeToBytes(), but if the packet has a session ID, the senderUuid is left out.
+	 * Receivers find the UUID from the session ID, so it doesn't need to be sent with every packet.
+	 * The packet isn't modified, so it can be serialized on several threads at the same time.
+	 * @param packet
+	 * @return
+	 */
+	public byte[] serializeCompact(Packet packet) {
+		return serializeCompact(packet, null);
+	}
+	
+	/**
+	 * Same as serializeCompact(packet), but the packet is written with the given protocol instead of its own protocol field.
+	 * @param packet
+	 * @param protocol Protocol the packet is sent with, null to write the packet's own.
+	 * @return
+	 */
+	public byte[] serializeCompact(Packet packet, Protocol protocol) {
+		return serializeToBytes(packet, packet.senderId != 0, protocol);
+	}
+	
+	/**
+	 * Adds the senderId to already serialized json bytes, for a payload that is forwarded without parsing it fully.
+	 * @param payload "className:{jsonData}" that doesn't have a sender yet.
+	 * @param senderId
+	 * @return New payload, or the same one if it isn't a JSON object.
+	 */
+	public static byte[] withSenderId(byte[] payload, int senderId) {
+		int colon = indexOfColon(payload);
+		if (colon < 0 || colon + 1 >= payload.length || payload[colon + 1] != '{') {
+			return payload;
+		}
+		
+		boolean empty = colon + 2 < payload.length && payload[colon + 2] == '}';
+		byte[] field = ("\"senderId\":" + senderId + (empty ? "" : ",")).getBytes(StandardCharsets.US_ASCII);
+		
+		byte[] result = new byte[payload.length + field.length];
+		System.arraycopy(payload, 0, result, 0, colon + 2);
+		System.arraycopy(field, 0, result, colon + 2, field.length);
+		System.arraycopy(payload, colon + 2, result, colon + 2 + field.length, payload.length - colon - 2);
+		return result;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private TypeAdapter<Packet> getAdapter(Class<? extends Packet> clazz) {
+		return adapters.computeIfAbsent(clazz, c -> (TypeAdapter<Packet>) gson.getAdapter(c));
+	}
+	
+	/**
+	 * Reads the JSON part of the payload, after the "className:" prefix, with the adapter of the class.
+	 * @param payload
+	 * @param clazz
+	 * @return Parsed packet, or null if the JSON is empty.
+	 */
+	private Packet read(String payload, Class<? extends Packet> clazz) throws JsonSyntaxException {
+		int colon = payload.indexOf(':');
+		
+		try {
+			StringReader in = new StringReader(payload);
+			in.skip(colon + 1);
+			
+			JsonReader reader = new JsonReader(in); //Lenient like in Gson.fromJson().
+			reader.setLenient(true);
+			Packet packet = getAdapter(clazz).read(reader);
+			
+			if (reader.peek() != JsonToken.END_DOCUMENT) {
+				throw new JsonIOException("JSON document was not fully consumed.");
+			}
+			return packet;
+		} catch (EOFException e) {
+			return null;
+		} catch (IllegalStateException | IOException e) {
+			throw new JsonSyntaxException(e);
+		}
+	}
+	
+	/**
+	 * Same as read(String, Class), but reads the bytes directly if the JSON is plain enough.
+	 * @param payload
+	 * @param offset Start of the payload.
+	 * @param colon Index of the colon after the class name.
+	 * @param end End of the payload.
+	 * @param clazz
+	 * @param adapter Adapter of the class.
+	 * @param reused Packet to read into, or null to create a new one.
+	 */
+	private Packet read(byte[] payload, int offset, int colon, int end, Class<? extends Packet> clazz, TypeAdapter<Packet> adapter, Packet reused) throws JsonSyntaxException {
+		if (colon >= 0 && adapter instanceof PacketAdapterFactory.PacketAdapter) {
+			ByteJsonReader in = READERS.get();
+			in.reset(payload, colon + 1, end, reused != null);
+			try {
+				Packet packet = ((PacketAdapterFactory.PacketAdapter<?>) adapter).readBytes(in, reused);
+				in.endDocument();
+				return packet;
+			} catch (ByteJsonReader.Fallback e) { //Let Gson read it, or throw the error.
+			} finally {
+				in.clear();
+			}
+		}
+		return read(new String(payload, offset, end - offset, StandardCharsets.UTF_8), clazz);
+	}
+	
+	private static int indexOfColon(byte[] payload) {
+		for (int i = 0; i < payload.length; i++) {
+			if (payload[i] == ':') return i;
+		}
+		return -1;
+	}
+	
+	private static String getClassName(byte[] payload, int offset, int end) {
+		int colon = offset;
+		while (colon < end && payload[colon] != ':') {
+			colon++;
+		}
+		return new String(payload, offset, colon - offset, StandardCharsets.UTF_8);
+	}
+	
 	/**
 	 * Takes the payload String that has "className:" + "{jsonData}" and parses it into a Packet.
 	 * Gets the packet type from the registered className.
@@ -154,8 +513,7 @@ public class PacketRegistry {
 	 * @return Parsed packet or null if packet type is not registered.
 	 */
 	public Packet parsePacket(String payload) throws JsonSyntaxException {
-		String[] parts = payload.split(":", 2);
-        String className = parts[0];
+        String className = getClassName(payload);
         Class<? extends Packet> clazz = classNameToClass.get(className);
 		
 		if (clazz == null) {
@@ -165,17 +523,141 @@ public class PacketRegistry {
 			return null;
 		}
 		
-		return gson.fromJson(parts[1], clazz);
+		return read(payload, clazz);
+	}
+	
+	/**
+	 * Same as parsePacket(String), but parses the bytes of the payload directly.
+	 * @param payload
+	 * @return Parsed packet or null if packet type is not registered.
+	 */
+	public Packet parsePacket(byte[] payload) throws JsonSyntaxException {
+		return parse(payload, 0, payload.length, false);
+	}
+	
+	/**
+	 * Same as parsePacket(byte[]), for a payload that is a part of the array.
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return Parsed packet or null if packet type is not registered.
+	 */
+	public Packet parsePacket(byte[] payload, int offset, int length) throws JsonSyntaxException {
+		return parse(payload, offset, offset + length, false);
+	}
+	
+	/**
+	 * Same as parsePacket(payload, offset, length), but a packet type registered with PacketOptions.reusable() is
+	 * read into the same packet every time, one per thread, instead of a new one. Other types are parsed as usual.
+	 * <p>
+	 * The reused packet is only valid until the next packet of the same type is parsed on the same thread,
+	 * so it must not be kept, or given to another thread. Copy what's needed from it.
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return Parsed packet or null if packet type is not registered.
+	 */
+	public Packet parseReusable(byte[] payload, int offset, int length) throws JsonSyntaxException {
+		return parse(payload, offset, offset + length, true);
+	}
+	
+	private Packet parse(byte[] payload, int offset, int end, boolean reuse) throws JsonSyntaxException {
+		PacketType type = findType(payload, offset, end);
+		
+		if (type == null) {
+			if (!disableWarnings) {
+				System.err.println("Warning: Received an unregistered packet: " + getClassName(payload, offset, end) + ". Ignoring it.");
+			}
+			return null;
+		}
+		
+		int colon = offset + type.name.length;
+		Packet reused = reuse && type.reused != null ? type.reused.get() : null;
+		return read(payload, offset, colon < end ? colon : -1, end, type.clazz, type.adapter, reused);
+	}
+	
+	/**
+	 * Finds the registered class from the bytes of the class name, without creating a String of it.
+	 * @param payload
+	 * @param offset
+	 * @param end
+	 * @return Type, or null if the class isn't registered.
+	 */
+	private PacketType findType(byte[] payload, int offset, int end) {
+		int hash = 0;
+		int nameEnd = offset;
+		while (nameEnd < end && payload[nameEnd] != ':') {
+			hash = 31 * hash + payload[nameEnd++];
+		}
+		
+		PacketType[] table = types;
+		int mask = table.length - 1;
+		for (int i = PacketType.slot(hash, mask); table[i] != null; i = (i + 1) & mask) {
+			PacketType type = table[i];
+			if (type.hash == hash && Arrays.equals(type.name, 0, type.name.length, payload, offset, nameEnd)) {
+				return type;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Builds the hash table of the registered classes, at most half full.
+	 * @return
+	 */
+	private PacketType[] buildTypes() {
+		int size = Integer.highestOneBit(Math.max(classNameToClass.size(), 1)) * 4;
+		PacketType[] table = new PacketType[size];
+		
+		for (Class<? extends Packet> clazz : classNameToClass.values()) {
+			PacketOptions<?> typeOptions = options.get(clazz);
+			PacketType type = new PacketType(clazz, getAdapter(clazz), typeOptions != null && typeOptions.isReusable());
+			
+			int i = PacketType.slot(type.hash, size - 1);
+			while (table[i] != null) {
+				i = (i + 1) & (size - 1);
+			}
+			table[i] = type;
+		}
+		return table;
+	}
+	
+	private static String getClassName(String payload) {
+		int colon = payload.indexOf(':');
+		return colon < 0 ? payload : payload.substring(0, colon);
 	}
 	
 	public boolean isPacketRegistered(String payload) {
-		String[] parts = payload.split(":", 2);
-		return classNameToClass.containsKey(parts[0]);
+		return classNameToClass.containsKey(getClassName(payload));
+	}
+	
+	public boolean isPacketRegistered(byte[] payload) {
+		return findType(payload, 0, payload.length) != null;
+	}
+	
+	/**
+	 * @param clazz
+	 * @return True if received packets of the type are reused, see PacketOptions.reusable().
+	 */
+	public boolean isReusable(Class<? extends Packet> clazz) {
+		PacketOptions<?> typeOptions = options.get(clazz);
+		return typeOptions != null && typeOptions.isReusable();
+	}
+	
+	/**
+	 * @param className
+	 * @return True if a packet class with this name is registered.
+	 */
+	public boolean isTypeRegistered(String className) {
+		return classNameToClass.containsKey(className);
 	}
 	
 	public Packet parseAsBasePacket(String payload) throws JsonSyntaxException {
-		String[] parts = payload.split(":", 2);
-		return gson.fromJson(parts[1], BasePacket.class);
+		return read(payload, BasePacket.class);
+	}
+	
+	public Packet parseAsBasePacket(byte[] payload) throws JsonSyntaxException {
+		return read(payload, 0, indexOfColon(payload), payload.length, BasePacket.class, getAdapter(BasePacket.class), null);
 	}
 	
 	/**
@@ -186,20 +668,130 @@ public class PacketRegistry {
 		disableWarnings = b;
 	}
 	
+	/**
+	 * Times the handlers, and reports the ones that take too long. See HandlerProfiler.
+	 * @param profiler Null to stop timing, which is the default.
+	 */
+	public void setProfiler(HandlerProfiler profiler) {
+		this.profiler = profiler;
+	}
+	
+	public HandlerProfiler getProfiler() {
+		return profiler;
+	}
+	
 	/**
 	 * Calls the registered handler with the packet for this packet type.
 	 * @param packet 
 	 */
 	public void callHandler(Packet packet) {
 		if (packet == null) return;
+		
+		HandlerProfiler currentProfiler = profiler;
+		if (currentProfiler != null) {
+			callProfiled(packet, currentProfiler);
+			return;
+		}
+		
         if (globalHandler != null) globalHandler.accept(packet);
 		
-		Consumer<Packet> handler = (Consumer<Packet>) handlers.get(packet.getClass());
+		Consumer<Packet>[] chain = chains.get(packet.getClass()).handlers;
 		
-        if (handler != null) {
-            handler.accept(packet);
-        } else if (defaultHandler != null) {
-            defaultHandler.accept(packet);
-        }
+        if (chain.length == 0) {
+			if (defaultHandler != null) defaultHandler.accept(packet);
+			return;
+		}
+		for (Consumer<Packet> handler : chain) {
+			handler.accept(packet);
+		}
+	}
+	
+	/**
+	 * Same as callHandler(), but every handler is timed by the profiler.
+	 * @param packet
+	 * @param profiler 
+	 */
+	private void callProfiled(Packet packet, HandlerProfiler profiler) {
+		if (globalHandler != null) profiler.call(HandlerProfiler.GLOBAL, globalHandler, packet);
+		
+		HandlerChain chain = chains.get(packet.getClass());
+		
+		if (chain.handlers.length == 0) {
+			if (defaultHandler != null) profiler.call(HandlerProfiler.DEFAULT, defaultHandler, packet);
+			return;
+		}
+		for (int i = 0; i < chain.handlers.length; i++) {
+			profiler.call(chain.names[i], chain.handlers[i], packet);
+		}
+	}
+	
+	/**
+	 * Registered packet class, found from the bytes of its name.
+	 */
+	private static final class PacketType {
+		final byte[] name; //Class name in UTF-8, like it is in the payload.
+		final int hash;
+		final Class<? extends Packet> clazz;
+		final TypeAdapter<Packet> adapter;
+		final ThreadLocal<Packet> reused; //Packet each thread reads into, null if the type isn't reusable.
+		
+		PacketType(Class<? extends Packet> clazz, TypeAdapter<Packet> adapter, boolean reusable) {
+			this.name = clazz.getName().getBytes(StandardCharsets.UTF_8);
+			this.clazz = clazz;
+			this.adapter = adapter;
+			
+			int h = 0;
+			for (byte b : name) {
+				h = 31 * h + b;
+			}
+			this.hash = h;
+			
+			if (reusable && adapter instanceof PacketAdapterFactory.PacketAdapter) {
+				PacketAdapterFactory.PacketAdapter<?> packetAdapter = (PacketAdapterFactory.PacketAdapter<?>) adapter;
+				this.reused = ThreadLocal.withInitial(packetAdapter::newReusable);
+			} else {
+				this.reused = null;
+			}
+		}
+		
+		static int slot(int hash, int mask) {
+			return (hash ^ (hash >>> 16)) & mask;
+		}
+	}
+	
+	/**
+	 * Handlers a packet class gets: the handler of the class itself first, then the handlers of its superclasses.
+	 * Resolved once per class, so a handler for a base type costs nothing extra per packet.
+	 */
+	private static final class HandlerChain {
+		final Consumer<Packet>[] handlers;
+		final String[] names; //Class names of the types the handlers were registered for.
+		
+		HandlerChain(List<Consumer<Packet>> handlers, List<String> names) {
+			@SuppressWarnings("unchecked") //Generic arrays can't be created, the list only has Consumer<Packet>s.
+			Consumer<Packet>[] array = (Consumer<Packet>[]) handlers.toArray(new Consumer<?>[0]);
+			this.handlers = array;
+			this.names = names.toArray(new String[0]);
+		}
+	}
+	
+	private ClassValue<HandlerChain> newChains() {
+		return new ClassValue<HandlerChain>() {
+			@Override
+			protected HandlerChain computeValue(Class<?> type) {
+				List<Consumer<Packet>> chain = new ArrayList<>();
+				List<String> names = new ArrayList<>();
+				
+				for (Class<?> c = type; c != null && Packet.class.isAssignableFrom(c); c = c.getSuperclass()) {
+					@SuppressWarnings("unchecked") //Handler of a class, or of its superclass, gets the packets of that class.
+					Consumer<Packet> handler = (Consumer<Packet>) handlers.get(c);
+					if (handler != null) {
+						chain.add(handler);
+						names.add(c.getName());
+					}
+				}
+				return new HandlerChain(chain, names);
+			}
+		};
 	}
 }
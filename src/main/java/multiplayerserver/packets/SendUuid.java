@@ -4,6 +4,11 @@ import java.util.UUID;
 
 public class SendUuid extends Packet {
 	public int udpPort = -1;
+	public String resumeToken; //Set when reconnecting, to resume the previous session.
+	public long receivedFrames; //When resuming, how many TCP frames the client received in the session. Server writes the rest again.
+	public String[] codecs; //Names of the codecs the client can decompress frames with, see Server.setCompression().
+	public String multicastGroup; //Group the client joined, null if it doesn't listen to multicast.
+	public int multicastPort;
 	
 	public SendUuid() {}
 	
@@ -12,4 +17,10 @@ public class SendUuid extends Packet {
 		
 		this.udpPort = udpPort;
 	}
+	
+	public SendUuid(UUID uuid, int udpPort, String resumeToken) {
+		this(uuid, udpPort);
+		
+		this.resumeToken = resumeToken;
+	}
 }
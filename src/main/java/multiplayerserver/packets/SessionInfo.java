@@ -0,0 +1,22 @@
+package multiplayerserver.packets;
+
+/**
+ * Built-in packet the server sends back to a client after receiving its SendUuid.
+ * Contains the token the client can use to resume its session if the connection drops,
+ * the session ID the client sends in its packets instead of its UUID, and the IDs of the target types.
+ */
+public class SessionInfo extends Packet {
+	public String resumeToken;
+	public int sessionId;
+	public boolean resumed;		//True if the server resumed an existing session instead of creating a new one
+	public String[] targetTypes;	//Target types registered on the server, index is the ID
+	
+	public SessionInfo() {}
+	
+	public SessionInfo(String resumeToken, int sessionId, boolean resumed, String[] targetTypes) {
+		this.resumeToken = resumeToken;
+		this.sessionId = sessionId;
+		this.resumed = resumed;
+		this.targetTypes = targetTypes;
+	}
+}
@@ -0,0 +1,21 @@
+package multiplayerserver.packets;
+
+import java.util.UUID;
+
+/**
+ * Built-in packet the server sends to clients when clients join or leave.
+ * Packets carry the sender's session ID instead of its UUID, and clients find the UUID from the roster.
+ */
+public class SessionRoster extends Packet {
+	public int[] sessionIds;
+	public UUID[] uuids;	//Same order as sessionIds, null if the session ended
+	public boolean full;	//True if this replaces the whole roster, sent when the client connects or resumes
+	
+	public SessionRoster() {}
+	
+	public SessionRoster(int[] sessionIds, UUID[] uuids, boolean full) {
+		this.sessionIds = sessionIds;
+		this.uuids = uuids;
+		this.full = full;
+	}
+}
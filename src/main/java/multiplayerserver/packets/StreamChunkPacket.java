@@ -0,0 +1,32 @@
+package multiplayerserver.packets;
+
+import java.util.UUID;
+import multiplayerserver.targets.Target;
+
+/**
+ * Built-in packet that carries one chunk of a large packet.
+ * Large TCP packets are split into chunks that are sent in between normal packets, so they don't block them.
+ * The receiver puts the chunks back together and handles the original packet when all the chunks have arrived.
+ * <p>
+ * The raw data is a part of the original packet's bytes ([4 bytes json length][json bytes][raw data bytes]).
+ * Chunks have the original packet's targets, so the server can forward them without waiting for the whole packet.
+ */
+public class StreamChunkPacket extends DataPacket {
+	public int streamId;		//Unique per sender
+	public String innerType;	//className of the original packet
+	public int totalLength;		//Length of the original packet's bytes
+	public int offset;			//Where this chunk goes in the original packet's bytes
+	
+	public StreamChunkPacket() {
+		super(null);
+	}
+	
+	public StreamChunkPacket(UUID senderUuid, int streamId, String innerType, int totalLength, int offset, byte[] data, Target... targets) {
+		super(data, targets);
+		this.senderUuid = senderUuid;
+		this.streamId = streamId;
+		this.innerType = innerType;
+		this.totalLength = totalLength;
+		this.offset = offset;
+	}
+}
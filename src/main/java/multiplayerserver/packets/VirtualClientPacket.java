@@ -0,0 +1,20 @@
+package multiplayerserver.packets;
+
+import java.util.UUID;
+
+/**
+ * Built-in packet that adds or removes a virtual client on a shared connection.
+ * The client sends it when a virtual client is added or removed, and the server sends it back if it removed one,
+ * for example because the UUID was already in use.
+ */
+public class VirtualClientPacket extends Packet {
+	public UUID uuid;		//UUID of the virtual client
+	public boolean removed;	//False when the virtual client is added
+	
+	public VirtualClientPacket() {}
+	
+	public VirtualClientPacket(UUID uuid, boolean removed) {
+		this.uuid = uuid;
+		this.removed = removed;
+	}
+}
@@ -0,0 +1,38 @@
+package multiplayerserver.replication;
+
+import com.google.gson.JsonObject;
+import multiplayerserver.packets.Packet;
+
+/**
+ * Sent by ReplicationServer on every tick that has changes for the client.
+ * Has the fields that changed after the baseline, which is the last tick the client acknowledged with SnapshotAck.
+ */
+public class EntitySnapshot extends Packet {
+	public int tick;
+	public int baseline;			//0 if this has every entity with all their fields, and entities not in it are gone
+	public EntityState[] entities;
+	public int[] removed;			//IDs of entities removed after the baseline
+	
+	public static class EntityState {
+		public int id;
+		public String type;			//Class name, only when the client doesn't have the entity yet
+		public JsonObject fields;	//Changed fields by name, or all of them with type
+		
+		public EntityState() {}
+		
+		public EntityState(int id, String type, JsonObject fields) {
+			this.id = id;
+			this.type = type;
+			this.fields = fields;
+		}
+	}
+	
+	public EntitySnapshot() {}
+	
+	public EntitySnapshot(int tick, int baseline, EntityState[] entities, int[] removed) {
+		this.tick = tick;
+		this.baseline = baseline;
+		this.entities = entities;
+		this.removed = removed;
+	}
+}
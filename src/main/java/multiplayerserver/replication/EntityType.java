@@ -0,0 +1,107 @@
+package multiplayerserver.replication;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replicated fields of an entity class, found once per class.
+ */
+final class EntityType {
+	private static final Map<Class<?>, EntityType> TYPES = new ConcurrentHashMap<>();
+	
+	final Class<? extends ReplicatedEntity> clazz;
+	final String name;
+	final Field[] fields;
+	private final Constructor<? extends ReplicatedEntity> constructor;
+	
+	private EntityType(Class<? extends ReplicatedEntity> clazz) {
+		this.clazz = clazz;
+		this.name = clazz.getName();
+		
+		List<Field> found = new ArrayList<>();
+		for (Class<?> c = clazz; c != ReplicatedEntity.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) {
+					continue;
+				}
+				field.setAccessible(true);
+				found.add(field);
+			}
+		}
+		this.fields = found.toArray(new Field[0]);
+		
+		try {
+			constructor = clazz.getDeclaredConstructor();
+			constructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(name + " needs a constructor without parameters", e);
+		}
+	}
+	
+	static EntityType of(Class<? extends ReplicatedEntity> clazz) {
+		return TYPES.computeIfAbsent(clazz, c -> new EntityType(clazz));
+	}
+	
+	ReplicatedEntity create() {
+		try {
+			return constructor.newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Couldn't create " + name, e);
+		}
+	}
+	
+	/**
+	 * Reads a field so it can be compared with the value on the previous tick.
+	 * Simple values are kept as they are, anything else (arrays, lists, objects) as a JsonElement,
+	 * so later changes to the same object are noticed.
+	 * @param gson
+	 * @param entity
+	 * @param i Index of the field
+	 * @return
+	 */
+	Object read(Gson gson, ReplicatedEntity entity, int i) {
+		Object value;
+		try {
+			value = fields[i].get(entity);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		
+		if (value == null || value instanceof Number || value instanceof String || value instanceof Boolean
+				|| value instanceof Character || value instanceof Enum) {
+			return value;
+		}
+		return gson.toJsonTree(value, fields[i].getGenericType());
+	}
+	
+	static JsonElement toJson(Gson gson, Object value) {
+		return value instanceof JsonElement ? (JsonElement) value : gson.toJsonTree(value);
+	}
+	
+	/**
+	 * Sets the fields that are in the JSON, others keep their value.
+	 * @param gson
+	 * @param entity
+	 * @param json
+	 */
+	void apply(Gson gson, ReplicatedEntity entity, JsonObject json) {
+		try {
+			for (Field field : fields) {
+				JsonElement value = json.get(field.getName());
+				if (value != null) {
+					field.set(entity, gson.fromJson(value, field.getGenericType()));
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package multiplayerserver.replication;
+
+/**
+ * Base class for entities the server replicates to clients with ReplicationServer.
+ * Fields that aren't static or transient are replicated, like packet fields are serialized.
+ * The server changes the fields directly, and only the fields that changed are sent on the next tick.
+ * Subclasses need a constructor without parameters, clients create the entities with it.
+ * <p>
+ * Example:
+ * <pre>{@code
+ * public class PlayerEntity extends ReplicatedEntity {
+ *     public float x, y;
+ *     public int health;
+ *     public String name;
+ * }}</pre>
+ */
+public abstract class ReplicatedEntity {
+	transient int id; //Given by ReplicationServer, the same on the server and all the clients.
+	
+	/**
+	 * @return ID of the entity, or 0 if it hasn't been added to a ReplicationServer.
+	 */
+	public int getId() {
+		return id;
+	}
+}
@@ -0,0 +1,169 @@
+package multiplayerserver.replication;
+
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import multiplayerserver.Client;
+import multiplayerserver.Protocol;
+
+/**
+ * Keeps the entities a ReplicationServer replicates, and acknowledges every snapshot it applies,
+ * so the server knows which fields the client already has.
+ * Entity types need to be registered, other types sent by the server are ignored.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * ReplicationClient replication = new ReplicationClient(client); //Before connect()
+ * replication.registerType(PlayerEntity.class);
+ * replication.setListener(new ReplicationListener() {
+ *     public void entityCreated(ReplicatedEntity entity) { game.spawn(entity); }
+ * });
+ *
+ * for (PlayerEntity player : replication.getEntities(PlayerEntity.class)) { ... }
+ * }</pre>
+ */
+public class ReplicationClient {
+	private final Client client;
+	private final Gson gson = new Gson();
+	
+	private final Map<String, EntityType> types = new ConcurrentHashMap<>();
+	private final Map<Integer, ReplicatedEntity> entities = new ConcurrentHashMap<>();
+	private int lastTick = 0; //Tick of the last applied snapshot, guarded by this.
+	private volatile ReplicationListener listener = new ReplicationListener() {};
+	
+	public ReplicationClient(Client client) {
+		this.client = client;
+		client.getPacketRegistry().register(EntitySnapshot.class, this::handleSnapshot);
+	}
+	
+	public void registerType(Class<? extends ReplicatedEntity> clazz) {
+		EntityType type = EntityType.of(clazz);
+		types.put(type.name, type);
+	}
+	
+	public void setListener(ReplicationListener listener) {
+		this.listener = listener;
+	}
+	
+	public ReplicatedEntity getEntity(int id) {
+		return entities.get(id);
+	}
+	
+	public Collection<ReplicatedEntity> getEntities() {
+		return Collections.unmodifiableCollection(entities.values());
+	}
+	
+	public <T extends ReplicatedEntity> List<T> getEntities(Class<T> clazz) {
+		List<T> found = new ArrayList<>();
+		for (ReplicatedEntity entity : entities.values()) {
+			if (clazz.isInstance(entity)) {
+				found.add(clazz.cast(entity));
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Snapshots come over both TCP and UDP, so they can arrive out of order. Older ones than the last applied are ignored.
+	 * Applying a snapshot to a newer state than its baseline gives the same result, since it has every field that changed after the baseline.
+	 * Full snapshots are always applied, a restarted or another server starts its ticks from the beginning again.
+	 * An old full snapshot that arrives late only rolls the state back until the next one.
+	 * @param snapshot
+	 */
+	private synchronized void handleSnapshot(EntitySnapshot snapshot) {
+		if (snapshot.tick <= lastTick && snapshot.baseline != 0) {
+			return;
+		}
+		
+		if (snapshot.baseline > lastTick) { //Server thinks we have state we don't, for example after reconnecting.
+			client.sendPacket(new SnapshotAck(0), ackProtocol(snapshot));
+			return;
+		}
+		
+		ReplicationListener listener = this.listener;
+		boolean full = snapshot.baseline == 0;
+		Set<Integer> received = full ? new HashSet<>() : null;
+		
+		if (snapshot.entities != null) {
+			for (EntitySnapshot.EntityState state : snapshot.entities) {
+				if (full) {
+					received.add(state.id);
+				}
+				
+				ReplicatedEntity entity = entities.get(state.id);
+				if (entity != null && (state.type == null || state.type.equals(entity.getClass().getName()))) {
+					EntityType.of(entity.getClass()).apply(gson, entity, state.fields);
+					listener.entityUpdated(entity);
+					continue;
+				}
+				if (entity != null) { //Same ID with another type, the server must have restarted.
+					entities.remove(state.id);
+					listener.entityRemoved(entity);
+				}
+				
+				EntityType type = state.type != null ? types.get(state.type) : null;
+				if (type == null) {
+					continue; //Unregistered type, or the rest of an entity we don't have.
+				}
+				
+				ReplicatedEntity created = type.create();
+				created.id = state.id;
+				type.apply(gson, created, state.fields);
+				entities.put(state.id, created);
+				listener.entityCreated(created);
+			}
+		}
+		
+		if (snapshot.removed != null) {
+			for (int id : snapshot.removed) {
+				ReplicatedEntity removed = entities.remove(id);
+				if (removed != null) {
+					listener.entityRemoved(removed);
+				}
+			}
+		}
+		
+		if (full) {
+			for (ReplicatedEntity entity : new ArrayList<>(entities.values())) {
+				if (!received.contains(entity.id)) {
+					entities.remove(entity.id);
+					listener.entityRemoved(entity);
+				}
+			}
+		}
+		
+		lastTick = snapshot.tick;
+		client.sendPacket(new SnapshotAck(snapshot.tick), ackProtocol(snapshot));
+	}
+	
+	/**
+	 * Acknowledgements go back the way the snapshot came, so a client whose UDP doesn't get through still acknowledges the TCP snapshots.
+	 * @param snapshot
+	 * @return 
+	 */
+	private static Protocol ackProtocol(EntitySnapshot snapshot) {
+		return snapshot.protocol == Protocol.UDP ? Protocol.UDP : Protocol.TCP;
+	}
+	
+	/**
+	 * Forgets all the entities without calling the listener, for example when connecting to another server.
+	 * The server sends a full snapshot when it notices.
+	 */
+	public synchronized void reset() {
+		entities.clear();
+		lastTick = 0;
+	}
+	
+	/**
+	 * @return Tick of the last snapshot that was applied, 0 if none yet.
+	 */
+	public synchronized int getTick() {
+		return lastTick;
+	}
+}
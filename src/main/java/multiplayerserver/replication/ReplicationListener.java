@@ -0,0 +1,17 @@
+package multiplayerserver.replication;
+
+/**
+ * Tells the game when ReplicationClient creates, changes or removes entities.
+ * Called on the thread that handles the packets, the game thread in inbox mode.
+ */
+public interface ReplicationListener {
+	default void entityCreated(ReplicatedEntity entity) {}
+	
+	/**
+	 * Some of the fields of the entity changed.
+	 * @param entity
+	 */
+	default void entityUpdated(ReplicatedEntity entity) {}
+	
+	default void entityRemoved(ReplicatedEntity entity) {}
+}
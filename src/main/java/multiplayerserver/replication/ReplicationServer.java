@@ -0,0 +1,272 @@
+package multiplayerserver.replication;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import multiplayerserver.ClientInformation;
+import multiplayerserver.Constants;
+import multiplayerserver.Protocol;
+import multiplayerserver.Server;
+import multiplayerserver.packets.PacketRegistry;
+
+/**
+ * Replicates entities from the server to all the clients, instead of the game sending full state packets on every change.
+ * The game changes the fields of the entities and calls tick() at its tick rate. On each tick the changed fields are found,
+ * and every client gets only the fields that changed after the last tick it acknowledged, so bandwidth depends on what changes
+ * and not on how many entities there are.
+ * <p>
+ * Snapshots are sent over UDP, or TCP if they don't fit in a datagram, like the first full snapshot often doesn't.
+ * A lost snapshot doesn't need to be resent, the next one has the same fields since it's relative to the same acknowledged tick.
+ * A snapshot sent over TCP isn't lost, so the client doesn't get another one over TCP with the same baseline
+ * until it has acknowledged it, or Constants.SNAPSHOT_RESEND_MS has passed. Otherwise every tick would queue another large snapshot.
+ * <p>
+ * Entities are added, removed and changed, and tick() is called, on the same thread, usually the game loop.
+ * Clients receive the entities with ReplicationClient.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * ReplicationServer replication = new ReplicationServer(server);
+ * PlayerEntity player = replication.add(new PlayerEntity());
+ *
+ * //Game loop, at the tick rate:
+ * player.x += speed;
+ * replication.tick();
+ * }</pre>
+ */
+public class ReplicationServer {
+	private final Server server;
+	private final PacketRegistry registry;
+	private final Gson gson = new Gson();
+	
+	private final Map<Integer, ServerEntity> entities = new LinkedHashMap<>();
+	private final List<Removal> removals = new ArrayList<>(); //Oldest first, kept while some client's baseline is older.
+	private final Map<UUID, Integer> acked = new ConcurrentHashMap<>(); //Last tick each client acknowledged, written by the listener threads.
+	private final Map<UUID, ReliableSend> reliable = new ConcurrentHashMap<>(); //Last snapshot each client was sent over TCP.
+	private int tick = 0;
+	private int forgottenTick = 0; //Tick of the newest removal that was forgotten, older baselines get a full snapshot.
+	private int nextId = 1;
+	
+	private static final class ServerEntity {
+		final ReplicatedEntity entity;
+		final EntityType type;
+		final Object[] values;	//Values on the last tick
+		final int[] changed;	//Tick when each field last changed
+		final int created;		//First tick the entity is sent on
+		
+		ServerEntity(ReplicatedEntity entity, EntityType type, int fieldCount, int created) {
+			this.entity = entity;
+			this.type = type;
+			this.values = new Object[fieldCount];
+			this.changed = new int[fieldCount];
+			this.created = created;
+		}
+	}
+	
+	private static final class ReliableSend {
+		final int baseline;
+		final long time;
+		
+		ReliableSend(int baseline, long time) {
+			this.baseline = baseline;
+			this.time = time;
+		}
+	}
+	
+	private static final class Removal {
+		final int id;
+		final int tick;
+		
+		Removal(int id, int tick) {
+			this.id = id;
+			this.tick = tick;
+		}
+	}
+	
+	public ReplicationServer(Server server) {
+		this.server = server;
+		this.registry = server.getPacketRegistry();
+		registry.register(SnapshotAck.class, this::handleAck);
+	}
+	
+	/**
+	 * Starts replicating the entity to the clients on the next tick.
+	 * @param <T>
+	 * @param entity
+	 * @return The same entity, which now has an ID.
+	 */
+	public <T extends ReplicatedEntity> T add(T entity) {
+		if (entity.id != 0) {
+			throw new IllegalArgumentException("Entity is already replicated: " + entity.id);
+		}
+		
+		EntityType type = EntityType.of(entity.getClass());
+		ServerEntity serverEntity = new ServerEntity(entity, type, type.fields.length, tick + 1);
+		for (int i = 0; i < type.fields.length; i++) {
+			serverEntity.values[i] = type.read(gson, entity, i);
+		}
+		
+		entity.id = nextId++;
+		entities.put(entity.id, serverEntity);
+		return entity;
+	}
+	
+	/**
+	 * Stops replicating the entity, and clients remove it on the next tick.
+	 * @param entity
+	 */
+	public void remove(ReplicatedEntity entity) {
+		ServerEntity removed = entities.remove(entity.id);
+		if (removed == null) {
+			return;
+		}
+		
+		if (removed.created <= tick) { //Some clients might have it.
+			removals.add(new Removal(entity.id, tick + 1));
+		}
+		entity.id = 0;
+	}
+	
+	public ReplicatedEntity getEntity(int id) {
+		ServerEntity serverEntity = entities.get(id);
+		return serverEntity != null ? serverEntity.entity : null;
+	}
+	
+	/**
+	 * Finds the fields that changed since the last tick, and sends each client what changed after its baseline.
+	 * Clients with the same baseline and protocol share the same encoded snapshot.
+	 */
+	public void tick() {
+		tick++;
+		
+		for (ServerEntity serverEntity : entities.values()) {
+			for (int i = 0; i < serverEntity.values.length; i++) {
+				Object value = serverEntity.type.read(gson, serverEntity.entity, i);
+				if (!Objects.equals(value, serverEntity.values[i])) {
+					serverEntity.values[i] = value;
+					serverEntity.changed[i] = tick;
+				}
+			}
+		}
+		
+		Map<Integer, EntitySnapshot> snapshots = new HashMap<>(); //By baseline, null if there's nothing to send.
+		Map<Integer, byte[]> encodedUDP = new HashMap<>(); //Protocol is in the json, so the client acknowledges the way it came.
+		Map<Integer, byte[]> encodedTCP = new HashMap<>();
+		Set<UUID> connected = new HashSet<>();
+		int oldestBaseline = tick;
+		long now = System.currentTimeMillis();
+		
+		for (ClientInformation client : server.getClients()) {
+			connected.add(client.getUuid());
+			if (client.isDisconnected()) {
+				continue;
+			}
+			
+			int baseline = acked.getOrDefault(client.getUuid(), 0);
+			if (baseline < forgottenTick) {
+				baseline = 0; //Removals it would need are forgotten.
+			}
+			if (baseline > 0) {
+				oldestBaseline = Math.min(oldestBaseline, baseline);
+			}
+			
+			EntitySnapshot snapshot = snapshots.computeIfAbsent(baseline, this::snapshot);
+			if (snapshot != null) {
+				byte[] jsonBytes = client.getUdpPort() != -1 //Port is -1 until the client has told it.
+						? encodedUDP.computeIfAbsent(baseline, key -> registry.serializeCompact(snapshot, Protocol.UDP)) : null;
+				Protocol protocol = Protocol.UDP;
+				
+				if (jsonBytes == null || Constants.PACKET_LENGTH_PREFIX_BYTES + jsonBytes.length > Constants.MAX_UDP_PACKET_BYTES) {
+					protocol = Protocol.TCP;
+					ReliableSend previous = reliable.get(client.getUuid());
+					if (previous != null && previous.baseline == baseline && now - previous.time < Constants.SNAPSHOT_RESEND_MS) {
+						continue; //Still on its way, or the acknowledgement is.
+					}
+					reliable.put(client.getUuid(), new ReliableSend(baseline, now));
+					jsonBytes = encodedTCP.computeIfAbsent(baseline, key -> registry.serializeCompact(snapshot, Protocol.TCP));
+				}
+				server.sendPayload(client, jsonBytes, null, protocol);
+			}
+		}
+		
+		acked.keySet().retainAll(connected);
+		reliable.keySet().retainAll(connected);
+		
+		Iterator<Removal> it = removals.iterator(); //Every client with a baseline already knows about these.
+		while (it.hasNext()) {
+			Removal removal = it.next();
+			if (removal.tick > oldestBaseline) {
+				break;
+			}
+			forgottenTick = removal.tick;
+			it.remove();
+		}
+	}
+	
+	/**
+	 * @param baseline
+	 * @return Snapshot of everything that changed after the baseline, or null if nothing did.
+	 */
+	private EntitySnapshot snapshot(int baseline) {
+		List<EntitySnapshot.EntityState> states = new ArrayList<>();
+		
+		for (ServerEntity serverEntity : entities.values()) {
+			boolean full = serverEntity.created > baseline; //Client doesn't have it yet.
+			JsonObject fields = null;
+			
+			for (int i = 0; i < serverEntity.values.length; i++) {
+				if (full || serverEntity.changed[i] > baseline) {
+					if (fields == null) {
+						fields = new JsonObject();
+					}
+					fields.add(serverEntity.type.fields[i].getName(), EntityType.toJson(gson, serverEntity.values[i]));
+				}
+			}
+			
+			if (full) {
+				states.add(new EntitySnapshot.EntityState(serverEntity.entity.id, serverEntity.type.name, fields != null ? fields : new JsonObject()));
+			} else if (fields != null) {
+				states.add(new EntitySnapshot.EntityState(serverEntity.entity.id, null, fields));
+			}
+		}
+		
+		int[] removed = null;
+		if (baseline > 0) {
+			removed = removals.stream().filter(removal -> removal.tick > baseline).mapToInt(removal -> removal.id).toArray();
+			if (states.isEmpty() && removed.length == 0) {
+				return null;
+			}
+		}
+		
+		return new EntitySnapshot(tick, baseline, states.toArray(new EntitySnapshot.EntityState[0]), removed);
+	}
+	
+	private void handleAck(SnapshotAck ack) {
+		if (ack.senderUuid == null) {
+			return;
+		}
+		
+		if (ack.tick == 0) {
+			acked.remove(ack.senderUuid); //Client lost its state and wants a full snapshot.
+			reliable.remove(ack.senderUuid);
+		} else {
+			acked.merge(ack.senderUuid, ack.tick, Math::max);
+		}
+	}
+	
+	/**
+	 * @return Number of the last tick.
+	 */
+	public int getTick() {
+		return tick;
+	}
+}
@@ -0,0 +1,19 @@
+package multiplayerserver.replication;
+
+import multiplayerserver.packets.Packet;
+import multiplayerserver.targets.Target;
+
+/**
+ * Sent by ReplicationClient after it has applied an EntitySnapshot, so the server can send the next ones
+ * relative to that tick. Tick 0 asks the server for a full snapshot.
+ */
+public class SnapshotAck extends Packet {
+	public int tick;
+	
+	public SnapshotAck() {}
+	
+	public SnapshotAck(int tick) {
+		super(Target.SERVER);
+		this.tick = tick;
+	}
+}
@@ -5,16 +5,22 @@ import java.util.UUID;
 public class Target {
 	private final String type; //This is the main group name, has to be unique
 	private final String value; //Can store other information here, for example UUID, or team id etc.
+	private final transient int typeId; //ID from TargetTypes if the target was received or is built-in, otherwise 0 and it's looked up by the type.
 	
 	public Target(String type) {
         this(type, null);
     }
 	
 	public Target(String type, String value) {
-        this.type = type;
-        this.value = value;
+        this(type, value, 0);
     }
 	
+	Target(String type, String value, int typeId) {
+		this.type = type;
+		this.value = value;
+		this.typeId = typeId;
+	}
+	
 	public String getType() {
 		return type;
 	}
@@ -23,16 +29,30 @@ public class Target {
 		return value;
 	}
 	
-	public static final Target ALL = new Target("all");
-    public static final Target SERVER = new Target("server");
-    public static final Target HOST_CLIENT = new Target("hostClient");
-    public static final Target ALL_BUT_HOST_CLIENT = new Target("allButHostClient");
+	int getTypeId() {
+		return typeId;
+	}
+	
+	public static final Target ALL = new Target("all", null, TargetTypes.ALL);
+    public static final Target SERVER = new Target("server", null, TargetTypes.SERVER);
+    public static final Target HOST_CLIENT = new Target("hostClient", null, TargetTypes.HOST_CLIENT);
+    public static final Target ALL_BUT_HOST_CLIENT = new Target("allButHostClient", null, TargetTypes.ALL_BUT_HOST_CLIENT);
 	
 	public static Target createUUIDTarget(UUID uuid) {
 		if (uuid == null) { //Can be null when registering the Target
 			return new Target("UUIDTarget", null);
 		}
 		
-		return new Target("UUIDTarget", uuid.toString());
+		return new Target("UUIDTarget", uuid.toString(), TargetTypes.UUID_TARGET);
+	}
+	
+	/**
+	 * Target for a specific client by its session ID (Client.getSessionId()).
+	 * Smaller than a UUID target when it's sent, and the server finds the client from an array.
+	 * @param sessionId
+	 * @return 
+	 */
+	public static Target createSessionTarget(int sessionId) {
+		return new Target("sessionTarget", String.valueOf(sessionId), TargetTypes.SESSION_TARGET);
 	}
 }
@@ -1,10 +1,9 @@
 package multiplayerserver.targets;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.function.BiFunction;
@@ -20,7 +19,10 @@ import multiplayerserver.HasUUID;
  * (which implement HasUUID interface) who this target applies to. (Clients/players etc.)
  * <p>
  * Built-in targets (which you don't need to register yourself) are:
- *     ALL, SERVER, HOST_CLIENT, ALL_BUT_HOST_CLIENT, and UUIDTarget.
+ *     ALL, SERVER, HOST_CLIENT, ALL_BUT_HOST_CLIENT, UUIDTarget and sessionTarget.
+ * <p>
+ * Every registered target type gets an ID from TargetTypes. Targets are sent with the ID instead of the type string,
+ * and the resolver is found from an array by the ID.
  * <p>
  * Can register new targets and resolvers like this:
  * <pre>{@code
@@ -32,11 +34,20 @@ import multiplayerserver.HasUUID;
  * lambda function and return a list of your own objects, as long as they implement HasUUID interface.
  */
 public class TargetRegistry {
-	private final Map<String, BiFunction<Target, ResolveContext, List<? extends HasUUID>>> resolvers = new HashMap<>();
+	private final TargetTypes types;
+	private volatile BiFunction<Target, ResolveContext, List<? extends HasUUID>>[] resolvers = newResolvers(8); //Index is the type ID.
 	
 	private boolean disableWarnings = false;
 	
 	public TargetRegistry() {
+		this(new TargetTypes());
+	}
+	
+	/**
+	 * @param types IDs for the target types, shared with the PacketRegistry so targets are sent with the same IDs.
+	 */
+	public TargetRegistry(TargetTypes types) {
+		this.types = types;
         registerBuiltInTargets();
 	}
 	
@@ -50,14 +61,37 @@ public class TargetRegistry {
 			return host != null ? List.of(host) : Collections.emptyList();
 		});
 		
-		register(Target.ALL_BUT_HOST_CLIENT, (t, ctx) -> ctx.server.getAllClientsExcept(ctx.server.getHostClient().getUuid()));
+		register(Target.ALL_BUT_HOST_CLIENT, (t, ctx) -> {
+			ClientInformation host = ctx.server.getHostClient();
+			return ctx.server.getAllClientsExcept(host != null ? host.getUuid() : null);
+		});
 		
 		register(Target.createUUIDTarget(null), (t, ctx) -> {
-			ClientInformation client = ctx.server.getClient(UUID.fromString(t.getValue()));
+			ClientInformation client;
+			try {
+				client = ctx.server.getClient(UUID.fromString(t.getValue()));
+			} catch (IllegalArgumentException | NullPointerException e) { //Value comes from the client.
+				return Collections.emptyList();
+			}
+			return client != null ? List.of(client) : Collections.emptyList();
+		});
+		
+		register(Target.createSessionTarget(0), (t, ctx) -> {
+			ClientInformation client;
+			try {
+				client = ctx.server.getClient(Integer.parseInt(t.getValue()));
+			} catch (NumberFormatException e) { //Value comes from the client.
+				return Collections.emptyList();
+			}
 			return client != null ? List.of(client) : Collections.emptyList();
 		});
 	}
 	
+	@SuppressWarnings("unchecked")
+	private static BiFunction<Target, ResolveContext, List<? extends HasUUID>>[] newResolvers(int length) {
+		return (BiFunction<Target, ResolveContext, List<? extends HasUUID>>[]) new BiFunction<?, ?, ?>[length];
+	}
+	
 	/**
 	 * Register a resolver for a target.
 	 * Resolver is a BiFunction, it takes Target and ResolveContext, and
@@ -66,16 +100,32 @@ public class TargetRegistry {
 	 * @param target
 	 * @param resolver 
 	 */
-	public void register(Target target, BiFunction<Target, ResolveContext, List<? extends HasUUID>> resolver) {
-        resolvers.put(target.getType(), resolver);
+	public synchronized void register(Target target, BiFunction<Target, ResolveContext, List<? extends HasUUID>> resolver) {
+		int id = types.add(target.getType());
+		
+		BiFunction<Target, ResolveContext, List<? extends HasUUID>>[] next = resolvers;
+		if (id >= next.length) {
+			next = Arrays.copyOf(next, Math.max(next.length * 2, id + 1));
+		}
+		next[id] = resolver;
+		resolvers = next;
     }
 	
+	/**
+	 * @return IDs of the registered target types.
+	 */
+	public TargetTypes getTargetTypes() {
+		return types;
+	}
+	
 	private <T extends HasUUID> List<T> resolveTargets(Target target, ResolveContext ctx) {
 		if (target == null) {
 			return new ArrayList<>();
 		}
 		
-        BiFunction<Target, ResolveContext, List<? extends HasUUID>> resolver = resolvers.get(target.getType());
+		int id = types.getId(target);
+		BiFunction<Target, ResolveContext, List<? extends HasUUID>>[] current = resolvers;
+        BiFunction<Target, ResolveContext, List<? extends HasUUID>> resolver = id < current.length ? current[id] : null;
 		
         if (resolver == null) {
 			if (!disableWarnings) {
@@ -0,0 +1,139 @@
+package multiplayerserver.targets;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives the target types small numeric IDs, so targets are sent as numbers instead of type strings,
+ * and TargetRegistry can find the resolver from an array.
+ * <p>
+ * Built-in types always have the same IDs. Other types get the next ID when they are registered to the server's
+ * TargetRegistry, and clients get the IDs from the server when they connect (in SessionInfo).
+ * Types without an ID are still sent with their name, so register the targets before starting the server.
+ */
+public class TargetTypes {
+	static final int ALL = 1;
+	static final int SERVER = 2;
+	static final int HOST_CLIENT = 3;
+	static final int ALL_BUT_HOST_CLIENT = 4;
+	static final int UUID_TARGET = 5;
+	static final int SESSION_TARGET = 6;
+	
+	private static final String[] BUILT_IN = {null, "all", "server", "hostClient", "allButHostClient", "UUIDTarget", "sessionTarget"};
+	
+	private volatile String[] types; //Index is the ID, 0 is not used.
+	private volatile Target[] shared; //Targets without a value by ID, so received packets don't create new ones.
+	private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+	
+	public TargetTypes() {
+		set(BUILT_IN);
+	}
+	
+	/**
+	 * Gives the type the next ID, if it doesn't have one yet.
+	 * @param type
+	 * @return ID of the type.
+	 */
+	public synchronized int add(String type) {
+		Integer id = ids.get(type);
+		if (id != null) {
+			return id;
+		}
+		
+		String[] next = Arrays.copyOf(types, types.length + 1);
+		next[types.length] = type;
+		ids.put(type, types.length);
+		shared = Arrays.copyOf(shared, next.length);
+		types = next;
+		return next.length - 1;
+	}
+	
+	/**
+	 * Replaces all the IDs, for example with the ones received from the server.
+	 * @param types Type names, index is the ID.
+	 */
+	public synchronized void set(String[] types) {
+		ids.clear();
+		for (int id = 1; id < types.length; id++) {
+			if (types[id] != null) {
+				ids.put(types[id], id);
+			}
+		}
+		
+		Target[] targets = new Target[types.length];
+		for (Target builtIn : new Target[] {Target.ALL, Target.SERVER, Target.HOST_CLIENT, Target.ALL_BUT_HOST_CLIENT}) {
+			if (builtIn.getTypeId() < types.length && builtIn.getType().equals(types[builtIn.getTypeId()])) {
+				targets[builtIn.getTypeId()] = builtIn;
+			}
+		}
+		
+		shared = targets;
+		this.types = types.clone();
+	}
+	
+	/**
+	 * @return Type names, index is the ID.
+	 */
+	public String[] toArray() {
+		return types.clone();
+	}
+	
+	/**
+	 * @param id
+	 * @return Type name of the ID, or null if there's no type with the ID.
+	 */
+	public String getType(int id) {
+		String[] current = types;
+		return id > 0 && id < current.length ? current[id] : null;
+	}
+	
+	/**
+	 * @param type
+	 * @return ID of the type, or 0 if it doesn't have one.
+	 */
+	public int getId(String type) {
+		Integer id = type != null ? ids.get(type) : null;
+		return id != null ? id : 0;
+	}
+	
+	/**
+	 * Targets that were received or are built-in already know their ID, the rest are looked up by the type name.
+	 * @param target
+	 * @return ID of the target's type, or 0 if it doesn't have one.
+	 */
+	public int getId(Target target) {
+		int id = target.getTypeId();
+		if (id != 0) {
+			String[] current = types;
+			String type = id < current.length ? current[id] : null;
+			if (type != null && (type == target.getType() || type.equals(target.getType()))) {
+				return id;
+			}
+		}
+		return getId(target.getType());
+	}
+	
+	/**
+	 * Creates a target from its type ID, used when reading received packets.
+	 * Targets without a value are created only once per type.
+	 * @param id
+	 * @param value Can be null.
+	 * @return 
+	 */
+	public Target getTarget(int id, String value) {
+		if (value != null) {
+			return new Target(getType(id), value, id);
+		}
+		
+		Target[] current = shared;
+		Target target = id > 0 && id < current.length ? current[id] : null;
+		if (target == null) {
+			target = new Target(getType(id), null, id);
+			if (id > 0 && id < current.length) {
+				current[id] = target; //Might be created twice by different threads, doesn't matter.
+			}
+		}
+		return target;
+	}
+}
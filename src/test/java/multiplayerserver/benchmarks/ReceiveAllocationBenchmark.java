@@ -0,0 +1,231 @@
+package multiplayerserver.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import multiplayerserver.Client;
+import multiplayerserver.packets.Packet;
+import multiplayerserver.packets.PacketOptions;
+import multiplayerserver.packets.PacketRegistry;
+import multiplayerserver.targets.Target;
+
+/**
+ * Measures how many bytes are allocated per received packet, with new packets and with reused ones (PacketOptions.reusable()).
+ * <p>
+ * First parses and handles payloads in memory, which is what the client does for every frame.
+ * Then sends frames from a plain socket to a real Client, and counts the allocations of all threads while it receives them.
+ * The times are only rough, they depend a lot on what the JIT has compiled by then.
+ * It is in the test sources so it isn't in the jar. Run with: <code>mvn test-compile</code>, then <code>java -cp target/classes:target/test-classes:gson.jar multiplayerserver.benchmarks.ReceiveAllocationBenchmark</code>
+ */
+public class ReceiveAllocationBenchmark {
+	private static final int PAYLOADS = 1000; //Different payloads that are cycled through.
+	private static final int DECODE_PACKETS = 2_000_000;
+	private static final int NETWORK_PACKETS = 1_000_000;
+	
+	private static final String[] ANIMATIONS = {"idle", "walk", "run"};
+	private static final UUID[] OWNERS = {UUID.randomUUID(), UUID.randomUUID()};
+	
+	/**
+	 * Typical state update, sent many times per second.
+	 */
+	public static class EntityStatePacket extends Packet {
+		public int entityId;
+		public float x, y, z;
+		public double timestamp;
+		public String animation;
+		public UUID owner;
+		
+		public EntityStatePacket() {
+		}
+	}
+	
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	
+	private static long checksum = 0; //Handlers add to it, so the work isn't optimized away.
+	
+	public static void main(String[] args) throws Exception {
+		if (!THREADS.isThreadAllocatedMemorySupported()) {
+			System.out.println("This JVM can't measure allocated bytes per thread.");
+			return;
+		}
+		THREADS.setThreadAllocatedMemoryEnabled(true);
+		
+		byte[][] payloads = createPayloads();
+		
+		System.out.println("Parse and handle, " + DECODE_PACKETS + " packets:");
+		benchmarkDecode(payloads, false);
+		benchmarkDecode(payloads, true);
+		
+		System.out.println();
+		System.out.println("Received by a client over TCP, " + NETWORK_PACKETS + " packets:");
+		benchmarkNetwork(payloads, false);
+		benchmarkNetwork(payloads, true);
+	}
+	
+	private static PacketRegistry createRegistry(boolean reusable, AtomicLong received) {
+		PacketRegistry registry = new PacketRegistry();
+		PacketOptions<EntityStatePacket> options = new PacketOptions<>();
+		if (reusable) {
+			options.reusable();
+		}
+		
+		registry.register(EntityStatePacket.class, p -> {
+			checksum += p.entityId + (long) p.x + (long) p.timestamp + p.animation.length() + p.owner.hashCode() + p.targets.length;
+			received.incrementAndGet();
+		}, options);
+		return registry;
+	}
+	
+	private static byte[][] createPayloads() {
+		PacketRegistry registry = new PacketRegistry();
+		registry.registerPacket(EntityStatePacket.class);
+		
+		byte[][] payloads = new byte[PAYLOADS][];
+		for (int i = 0; i < PAYLOADS; i++) {
+			EntityStatePacket packet = new EntityStatePacket();
+			packet.senderId = 3;
+			packet.targets = new Target[] {Target.createSessionTarget(1 + i % 4)};
+			packet.entityId = i % 50;
+			packet.x = i * 0.25f;
+			packet.y = 64;
+			packet.z = -i * 0.5f;
+			packet.timestamp = 1000.125 + i;
+			packet.animation = ANIMATIONS[i % ANIMATIONS.length];
+			packet.owner = OWNERS[i % OWNERS.length];
+			payloads[i] = registry.serializeToBytes(packet);
+		}
+		return payloads;
+	}
+	
+	private static void benchmarkDecode(byte[][] payloads, boolean reusable) {
+		AtomicLong received = new AtomicLong();
+		PacketRegistry registry = createRegistry(reusable, received);
+		
+		decode(registry, payloads, DECODE_PACKETS, reusable); //Warm up.
+		
+		long threadId = Thread.currentThread().getId();
+		long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		decode(registry, payloads, DECODE_PACKETS, reusable);
+		long nanos = System.nanoTime() - start;
+		long bytes = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+		
+		print(reusable, bytes, nanos, DECODE_PACKETS);
+	}
+	
+	private static void decode(PacketRegistry registry, byte[][] payloads, int count, boolean reusable) {
+		for (int i = 0; i < count; i++) {
+			byte[] payload = payloads[i % payloads.length];
+			Packet packet = reusable ? registry.parseReusable(payload, 0, payload.length) : registry.parsePacket(payload, 0, payload.length);
+			registry.callHandler(packet);
+		}
+	}
+	
+	/**
+	 * A plain server socket writes the frames, so only the client's side is measured.
+	 * Allocations of all threads are counted, which includes the client's timer and the writing thread, but they allocate little.
+	 */
+	private static void benchmarkNetwork(byte[][] payloads, boolean reusable) throws IOException, InterruptedException {
+		byte[] frames = encodeTcpFrames(payloads);
+		
+		try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			AtomicLong received = new AtomicLong();
+			Client client = new Client(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort(), createRegistry(reusable, received));
+			DatagramSocket udpSocket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort())); //Only takes the client's UDP heartbeats.
+			
+			try {
+				client.connect();
+				
+				try (Socket socket = serverSocket.accept()) {
+					drain(socket.getInputStream());
+					OutputStream out = socket.getOutputStream();
+				
+					int rounds = NETWORK_PACKETS / payloads.length;
+					for (int i = 0; i < rounds; i++) { //Warm up.
+						out.write(frames);
+					}
+					waitFor(received, rounds * (long) payloads.length);
+				
+					received.set(0);
+					long bytesBefore = allocatedBytes();
+					long start = System.nanoTime();
+					for (int i = 0; i < rounds; i++) {
+						out.write(frames);
+					}
+					waitFor(received, rounds * (long) payloads.length);
+					long nanos = System.nanoTime() - start;
+					long bytes = allocatedBytes() - bytesBefore;
+				
+					print(reusable, bytes, nanos, rounds * payloads.length);
+				} finally {
+					client.stop();
+				}
+			} finally {
+				udpSocket.close();
+			}
+		}
+	}
+	
+	private static byte[] encodeTcpFrames(byte[][] payloads) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (byte[] payload : payloads) {
+			out.writeInt(payload.length); //[total length][json length][json], no raw data.
+			out.writeInt(payload.length);
+			out.write(payload);
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Reads what the client sends, so it never blocks on a full socket buffer.
+	 * @param in
+	 */
+	private static void drain(InputStream in) {
+		Thread thread = new Thread(() -> {
+			byte[] buffer = new byte[4096];
+			try {
+				while (in.read(buffer) >= 0) {
+				}
+			} catch (IOException e) { //Closed.
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private static void waitFor(AtomicLong received, long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 60_000;
+		while (received.get() < count) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("Received only " + received.get() + " of " + count + " packets");
+			}
+			Thread.sleep(1);
+		}
+	}
+	
+	private static long allocatedBytes() {
+		long total = 0;
+		for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+			if (bytes > 0) {
+				total += bytes;
+			}
+		}
+		return total;
+	}
+	
+	private static void print(boolean reusable, long bytes, long nanos, int packets) {
+		System.out.printf("  %-8s %8.1f bytes/packet %8.0f ns/packet (checksum %d)%n",
+				reusable ? "reused" : "new", (double) bytes / packets, (double) nanos / packets, checksum);
+	}
+}